@@ -0,0 +1,106 @@
+package com.macacomilk.sharedhealth;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.damage.DamageSource;
+import org.bukkit.damage.DamageType;
+import org.bukkit.event.entity.EntityDamageEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.destroystokyo.paper.event.server.ServerTickEndEvent;
+
+/**
+ * A whole tick of a damage storm: {@code eventsPerTick} damage events spread
+ * over the group's members, then the end-of-tick flush when batching. Each
+ * operation is one tick, so the two modes compare by what a storm costs the
+ * server per tick rather than per event.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DamageStormBenchmark {
+
+    /** Flushes buffered stats every 64 ticks, a little more often than the plugin's timer. */
+    private static final int STATS_FLUSH_MASK = 63;
+
+    @Param({"20", "100", "500"})
+    public int players;
+
+    @Param({"10", "100", "1000"})
+    public int eventsPerTick;
+
+    private PluginFixture batched;
+    private PluginFixture immediate;
+
+    private EntityDamageEvent[] batchedEvents;
+    private EntityDamageEvent[] immediateEvents;
+    private final ServerTickEndEvent tickEnd = new ServerTickEndEvent(0, 50.0, 0L);
+
+    private int tick = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        batched = new PluginFixture(players, 20, true);
+        immediate = new PluginFixture(players, 20, false);
+
+        DamageSource fall = DamageSource.builder(DamageType.FALL).build();
+        batchedEvents = new EntityDamageEvent[eventsPerTick];
+        immediateEvents = new EntityDamageEvent[eventsPerTick];
+        for (int i = 0; i < eventsPerTick; i++) {
+            batchedEvents[i] = new EntityDamageEvent(batched.players.get(i % players),
+                EntityDamageEvent.DamageCause.FALL, fall, 0.01);
+            immediateEvents[i] = new EntityDamageEvent(immediate.players.get(i % players),
+                EntityDamageEvent.DamageCause.FALL, fall, 0.01);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        batched.close();
+        immediate.close();
+    }
+
+    /**
+     * Starts a tick with the group back at full health, so no storm drains
+     * it to zero and every write still changes something.
+     */
+    private void startTick(PluginFixture fixture) {
+        if ((tick++ & STATS_FLUSH_MASK) == 0) {
+            fixture.statsStore.flush();
+        }
+        fixture.group.getVitals().reset(5f);
+    }
+
+    @Benchmark
+    public void stormBatched() {
+        startTick(batched);
+        for (EntityDamageEvent event : batchedEvents) {
+            batched.plugin.onDamage(event);
+        }
+        batched.plugin.onTickEnd(tickEnd);
+    }
+
+    @Benchmark
+    public void stormImmediate() {
+        startTick(immediate);
+        for (EntityDamageEvent event : immediateEvents) {
+            immediate.plugin.onDamage(event);
+        }
+    }
+}
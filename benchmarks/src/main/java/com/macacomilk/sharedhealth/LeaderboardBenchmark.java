@@ -0,0 +1,119 @@
+package com.macacomilk.sharedhealth;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The {@code /deaths} and {@code /damage} commands over stats for the
+ * simulated players, and re-ranking a player after a change.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LeaderboardBenchmark {
+
+    private static final MethodType COMMAND = MethodType.methodType(boolean.class,
+        CommandSender.class, Command.class, String.class, String[].class);
+    private static final String[] FIRST_PAGE = {"1"};
+    private static final String[] LAST_PAGE = {String.valueOf(Integer.MAX_VALUE)};
+    private static final String[] RUN_WINDOW = {"1", "run"};
+
+    @Param({"1", "20", "100", "500"})
+    public int players;
+
+    private PluginFixture fixture;
+    private CommandSender console;
+    private Player player;
+    private MethodHandle deathsCommand;
+    private MethodHandle damageCommand;
+    private UUID[] uuids;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, ReflectiveOperationException {
+        fixture = new PluginFixture(players, 20, true);
+        console = MockServer.stub(CommandSender.class);
+        player = fixture.players.get(0);
+
+        Random random = new Random(42);
+        uuids = new UUID[players];
+        for (int i = 0; i < players; i++) {
+            uuids[i] = fixture.players.get(i).getUniqueId();
+            for (int deaths = random.nextInt(20); deaths > 0; deaths--) {
+                fixture.statsStore.recordDeath(uuids[i]);
+                fixture.group.recordRunDeath(uuids[i]);
+            }
+            double damage = random.nextDouble() * 500;
+            fixture.statsStore.recordDamage(uuids[i], damage);
+            fixture.group.recordRunDamage(uuids[i], damage);
+        }
+        fixture.statsStore.flush();
+
+        MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(SharedHealthPlugin.class, MethodHandles.lookup());
+        deathsCommand = lookup.findVirtual(SharedHealthPlugin.class, "onDeathsCommand", COMMAND).bindTo(fixture.plugin);
+        damageCommand = lookup.findVirtual(SharedHealthPlugin.class, "onDamageCommand", COMMAND).bindTo(fixture.plugin);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        fixture.close();
+    }
+
+    @Benchmark
+    public boolean deathsFirstPage() throws Throwable {
+        return (boolean) deathsCommand.invokeExact(console, (Command) null, "deaths", FIRST_PAGE);
+    }
+
+    @Benchmark
+    public boolean deathsLastPage() throws Throwable {
+        return (boolean) deathsCommand.invokeExact(console, (Command) null, "deaths", LAST_PAGE);
+    }
+
+    @Benchmark
+    public boolean damageFirstPage() throws Throwable {
+        return (boolean) damageCommand.invokeExact(console, (Command) null, "damage", FIRST_PAGE);
+    }
+
+    @Benchmark
+    public boolean damageRunWindow() throws Throwable {
+        return (boolean) damageCommand.invokeExact((CommandSender) player, (Command) null, "damage", RUN_WINDOW);
+    }
+
+    /**
+     * Records damage for one player and moves them on the all-time board.
+     */
+    @Benchmark
+    public void rerankDamage() {
+        int index = next;
+        next = (next + 1) & Integer.MAX_VALUE;
+        fixture.statsStore.recordDamage(uuids[index % players], 1.5);
+        if ((index & 1023) == 0) {
+            fixture.statsStore.flush();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.macacomilk.sharedhealth;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bukkit.Keyed;
+import org.bukkit.Registry;
+import org.bukkit.Sound;
+import org.bukkit.attribute.Attribute;
+import org.bukkit.damage.DamageType;
+
+import io.papermc.paper.registry.RegistryAccess;
+import io.papermc.paper.registry.RegistryKey;
+
+/**
+ * Registries for the benchmarks, found by Paper through the service loader.
+ * Constants such as {@link Sound#ENTITY_PLAYER_HURT} and
+ * {@link Attribute#MAX_HEALTH} are looked up in these on first use; each
+ * lookup returns a stub of the element type, stable per key.
+ */
+public final class MockRegistryAccess implements RegistryAccess {
+
+    /** Element types of the registries the measured code reads constants from. */
+    private static final Map<String, Class<?>> ELEMENT_TYPES = Map.of(
+        "sound_event", Sound.class,
+        "attribute", Attribute.class,
+        "damage_type", DamageType.class);
+
+    private final Map<String, Registry<?>> registries = new ConcurrentHashMap<>();
+
+    @Override
+    @Deprecated
+    public <T extends Keyed> Registry<T> getRegistry(Class<T> type) {
+        return registry(type.getName(), type);
+    }
+
+    @Override
+    public <T extends Keyed> Registry<T> getRegistry(RegistryKey<T> registryKey) {
+        String name = registryKey.key().value();
+        return registry(name, ELEMENT_TYPES.get(name));
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T extends Keyed> Registry<T> registry(String name, Class<?> elementType) {
+        return (Registry<T>) registries.computeIfAbsent(name, key -> {
+            Map<Object, Object> elements = new ConcurrentHashMap<>();
+            return (Registry<?>) Proxy.newProxyInstance(MockRegistryAccess.class.getClassLoader(),
+                new Class<?>[] {Registry.class}, new MockServer.Stub() {
+                    @Override
+                    Object answer(Object proxy, Method method, Object[] args) {
+                        switch (method.getName()) {
+                            case "get":
+                            case "getOrThrow":
+                                if (elementType == null || args == null || args.length != 1) return UNHANDLED;
+                                return elements.computeIfAbsent(args[0], element -> MockServer.stub(elementType));
+                            default:
+                                return UNHANDLED;
+                        }
+                    }
+                });
+        });
+    }
+}
@@ -0,0 +1,235 @@
+package com.macacomilk.sharedhealth;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.attribute.AttributeInstance;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * Just enough of a server for the plugin's hot paths to run outside of one.
+ * Dynamic proxies stand in for the server, the plugin and the players; every
+ * call they do not model returns a default, or another stub for interface
+ * types, so the measured code runs unchanged without a real server.
+ */
+final class MockServer {
+
+    static final Logger LOGGER = Logger.getLogger("SharedHealthBench");
+
+    private static boolean installed = false;
+
+    private MockServer() {
+    }
+
+    /**
+     * Makes {@link Bukkit} answer with a stub server. Registries come from
+     * {@link MockRegistryAccess}. Idempotent.
+     */
+    static synchronized void install() {
+        if (installed) return;
+
+        Server server = proxy(Server.class, new Stub() {
+            @Override
+            Object answer(Object proxy, Method method, Object[] args) {
+                switch (method.getName()) {
+                    case "isPrimaryThread":
+                        return true;
+                    case "getLogger":
+                        return LOGGER;
+                    case "getName":
+                    case "getVersion":
+                    case "getBukkitVersion":
+                        return "SharedHealthBench";
+                    default:
+                        return UNHANDLED;
+                }
+            }
+        });
+        try {
+            // Bukkit.setServer logs version details the stub cannot provide.
+            Field field = Bukkit.class.getDeclaredField("server");
+            field.setAccessible(true);
+            field.set(null, server);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot install the mock server", e);
+        }
+        installed = true;
+    }
+
+    static <T> T stub(Class<T> type) {
+        return proxy(type, new Stub());
+    }
+
+    static World world(String name) {
+        return proxy(World.class, new Stub() {
+            @Override
+            Object answer(Object proxy, Method method, Object[] args) {
+                return method.getName().equals("getName") ? name : UNHANDLED;
+            }
+        });
+    }
+
+    static Plugin plugin(File dataFolder) {
+        return proxy(Plugin.class, new Stub() {
+            @Override
+            Object answer(Object proxy, Method method, Object[] args) {
+                switch (method.getName()) {
+                    case "getLogger":
+                        return LOGGER;
+                    case "getDataFolder":
+                        return dataFolder;
+                    case "getName":
+                        return "SharedHealthPlugin";
+                    default:
+                        return UNHANDLED;
+                }
+            }
+        });
+    }
+
+    /**
+     * A player whose health, hunger and saturation behave like the real ones.
+     * Health that drops to zero respawns at full, so damage benchmarks keep
+     * doing the same work however long they run.
+     */
+    static Player player(int index, World world, double maxHealth) {
+        return player(new UUID(0x5348L, index), "player" + index, world, maxHealth);
+    }
+
+    static Player player(UUID uuid, String name, World world, double maxHealth) {
+        return proxy(Player.class, new PlayerStub(uuid, name, world, maxHealth));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, Stub stub) {
+        return (T) Proxy.newProxyInstance(MockServer.class.getClassLoader(), new Class<?>[] {type}, stub);
+    }
+
+    /**
+     * Answers {@link Object} methods by identity, so stubs work as set and map
+     * keys, and everything else through {@link #answer} or a default.
+     */
+    static class Stub implements InvocationHandler {
+
+        static final Object UNHANDLED = new Object();
+
+        private final Map<Method, Object> children = new ConcurrentHashMap<>();
+
+        Object answer(Object proxy, Method method, Object[] args) {
+            return UNHANDLED;
+        }
+
+        @Override
+        public final Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "equals":
+                    if (method.getParameterCount() == 1) return proxy == args[0];
+                    break;
+                case "hashCode":
+                    if (method.getParameterCount() == 0) return System.identityHashCode(proxy);
+                    break;
+                case "toString":
+                    if (method.getParameterCount() == 0) return "Stub(" + method.getDeclaringClass().getSimpleName() + ")";
+                    break;
+                default:
+                    break;
+            }
+
+            Object answer = answer(proxy, method, args);
+            if (answer != UNHANDLED) return answer;
+            return defaultValue(method);
+        }
+
+        private Object defaultValue(Method method) {
+            Class<?> type = method.getReturnType();
+            if (type == void.class) return null;
+            if (type == boolean.class) return false;
+            if (type == int.class) return 0;
+            if (type == long.class) return 0L;
+            if (type == double.class) return 0.0;
+            if (type == float.class) return 0f;
+            if (type == short.class) return (short) 0;
+            if (type == byte.class) return (byte) 0;
+            if (type == char.class) return '\0';
+            if (type == String.class) return "";
+            if (!type.isInterface() || type.isSealed()) return null;
+            return children.computeIfAbsent(method, key -> proxy(type, new Stub()));
+        }
+    }
+
+    private static final class PlayerStub extends Stub {
+
+        private final UUID uuid;
+        private final String name;
+        private final Location location;
+        private final double maxHealth;
+        private final AttributeInstance maxHealthAttribute;
+
+        private double health;
+        private int foodLevel = 20;
+        private float saturation = 5;
+
+        private PlayerStub(UUID uuid, String name, World world, double maxHealth) {
+            this.uuid = uuid;
+            this.name = name;
+            this.location = new Location(world, 0, 64, 0);
+            this.maxHealth = maxHealth;
+            this.health = Math.min(maxHealth, 20);
+            this.maxHealthAttribute = proxy(AttributeInstance.class, new Stub() {
+                @Override
+                Object answer(Object proxy, Method method, Object[] args) {
+                    return method.getName().equals("getValue") ? PlayerStub.this.maxHealth : UNHANDLED;
+                }
+            });
+        }
+
+        @Override
+        Object answer(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "getUniqueId":
+                    return uuid;
+                case "getName":
+                    return name;
+                case "getHealth":
+                    return health;
+                case "setHealth":
+                    double newHealth = (Double) args[0];
+                    health = newHealth <= 0 ? maxHealth : newHealth;
+                    return null;
+                case "getFoodLevel":
+                    return foodLevel;
+                case "setFoodLevel":
+                    foodLevel = (Integer) args[0];
+                    return null;
+                case "getSaturation":
+                    return saturation;
+                case "setSaturation":
+                    saturation = (Float) args[0];
+                    return null;
+                case "getAttribute":
+                    return maxHealthAttribute;
+                case "getLocation":
+                    return args == null ? location.clone() : UNHANDLED;
+                case "getWorld":
+                    return location.getWorld();
+                case "isOnline":
+                case "isValid":
+                    return true;
+                default:
+                    return UNHANDLED;
+            }
+        }
+    }
+}
@@ -0,0 +1,351 @@
+package com.macacomilk.sharedhealth;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.bukkit.World;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * Runs several {@link NetworkSync}s against each other over a
+ * {@link LoopbackTransport}, as separate servers would, and checks that they
+ * agree on resets and vitals when servers change health at once, batches
+ * are lost or duplicated, servers restart and servers join late. Prints one line per scenario and exits with status 1 if
+ * any failed.
+ *
+ * <pre>java -cp benchmarks.jar com.macacomilk.sharedhealth.NetworkSyncCheck</pre>
+ */
+public final class NetworkSyncCheck {
+
+    private static final String GROUP = PluginFixture.GROUP;
+
+    private final List<File> folders = new ArrayList<>();
+    private final World world;
+    private int channels = 0;
+    private int failures = 0;
+
+    private NetworkSyncCheck() {
+        MockServer.install();
+        world = MockServer.world("world");
+    }
+
+    public static void main(String[] args) throws IOException {
+        NetworkSyncCheck check = new NetworkSyncCheck();
+        try {
+            check.resetReachesOthersOnce();
+            check.simultaneousDamageAddsUp();
+            check.duplicateBatchesApplyOnce();
+            check.simultaneousResetsCountOnce();
+            check.oldRunVitalsAreDropped();
+            check.vitalsOvertakingLostResetStartIt();
+            check.lostChangesResyncWhenCaughtUp();
+            check.restartKeepsEpoch();
+            check.lateServerCatchesUp();
+        } finally {
+            check.close();
+        }
+        System.out.println(check.failures == 0 ? "All checks passed" : check.failures + " check(s) failed");
+        System.exit(check.failures == 0 ? 0 : 1);
+    }
+
+    private void resetReachesOthersOnce() throws IOException {
+        String channel = channel();
+        Node a = new Node("a", channel, folder());
+        Node b = new Node("b", channel, folder());
+        a.die("alice");
+        a.sync.tick();
+        b.sync.tick();
+        b.sync.tick();
+        expect("reset reaches the other server once", b.resets.size() == 1 && "alice".equals(b.resets.get(0))
+            && a.resets.isEmpty());
+        a.close();
+        b.close();
+    }
+
+    private void simultaneousDamageAddsUp() throws IOException {
+        String channel = channel();
+        Node a = new Node("a", channel, folder());
+        Node b = new Node("b", channel, folder());
+        a.damage(5.0);
+        b.damage(8.0);
+        a.sync.tick();
+        b.sync.tick();
+        a.sync.tick();
+        expect("damage on two servers at once adds up on both", a.health() == 7.0 && b.health() == 7.0);
+        a.close();
+        b.close();
+    }
+
+    private void duplicateBatchesApplyOnce() throws IOException {
+        String channel = channel();
+        Node a = new Node("a", channel, folder());
+        Node b = new Node("b", channel, folder());
+        a.transport.duplicateNext = true;
+        a.damage(3.0);
+        a.sync.tick();
+        b.sync.tick();
+        expect("a batch delivered twice applies once", b.health() == 17.0 && b.sync.getStaleDropped() == 1);
+        a.close();
+        b.close();
+    }
+
+    private void simultaneousResetsCountOnce() throws IOException {
+        String channel = channel();
+        Node a = new Node("a", channel, folder());
+        Node b = new Node("b", channel, folder());
+        a.die("alice");
+        b.die("bob");
+        a.sync.tick();
+        b.sync.tick();
+        a.sync.tick();
+        a.damage(10.0);
+        a.sync.tick();
+        b.sync.tick();
+        expect("deaths on two servers at once reset each server once", a.resets.isEmpty() && b.resets.isEmpty()
+            && b.health() == 10.0);
+        a.close();
+        b.close();
+    }
+
+    private void oldRunVitalsAreDropped() throws IOException {
+        String channel = channel();
+        Node a = new Node("a", channel, folder());
+        Node b = new Node("b", channel, folder());
+        // A's batch is encoded before it hears of B's reset.
+        a.damage(15.0);
+        b.die("bob");
+        b.sync.tick();
+        a.sync.tick();
+        b.sync.tick();
+        expect("vitals from before a reset are dropped", a.resets.size() == 1 && a.health() == 20.0
+            && b.health() == 20.0 && b.sync.getStaleDropped() == 1);
+        a.close();
+        b.close();
+    }
+
+    private void vitalsOvertakingLostResetStartIt() throws IOException {
+        String channel = channel();
+        Node a = new Node("a", channel, folder());
+        Node b = new Node("b", channel, folder());
+        b.damage(4.0);
+        a.sync.tick();
+        b.sync.tick();
+        a.transport.dropNext = true;
+        a.die("alice");
+        a.sync.tick();
+        a.damage(8.0);
+        a.sync.tick();
+        b.sync.tick();
+        boolean caughtUp = b.resets.size() == 1 && b.resets.get(0) == null && b.health() == 12.0;
+
+        a.damage(1.0);
+        a.sync.tick();
+        b.sync.tick();
+        expect("vitals that overtake a lost reset start it", caughtUp && b.resets.size() == 1
+            && b.health() == 11.0);
+        a.close();
+        b.close();
+    }
+
+    private void lostChangesResyncWhenCaughtUp() throws IOException {
+        String channel = channel();
+        Node a = new Node("a", channel, folder());
+        Node b = new Node("b", channel, folder());
+        a.transport.dropNext = true;
+        a.damage(4.0);
+        a.sync.tick();
+        b.sync.tick();
+        boolean lost = b.health() == 20.0;
+
+        a.transport.reconnect();
+        a.sync.tick();
+        b.sync.tick();
+        expect("changes lost on the way are resynced once the connection catches up", lost && b.health() == 16.0);
+        a.close();
+        b.close();
+    }
+
+    private void restartKeepsEpoch() throws IOException {
+        String channel = channel();
+        File folderA = folder();
+        Node a = new Node("a", channel, folderA);
+        Node b = new Node("b", channel, folder());
+        a.die("alice");
+        a.sync.tick();
+        b.sync.tick();
+        a.close();
+
+        Node restarted = new Node("a", channel, folderA);
+        b.sync.tick();
+        restarted.sync.tick();
+        restarted.damage(11.0);
+        restarted.sync.tick();
+        b.sync.tick();
+        expect("a restarted server stays in its run", restarted.resets.isEmpty() && b.resets.size() == 1
+            && b.health() == 9.0);
+        restarted.close();
+        b.close();
+    }
+
+    private void lateServerCatchesUp() throws IOException {
+        String channel = channel();
+        Node a = new Node("a", channel, folder());
+        Node b = new Node("b", channel, folder());
+        a.die("alice");
+        a.sync.tick();
+        b.sync.tick();
+        b.die("bob");
+        b.sync.tick();
+        a.sync.tick();
+        a.damage(6.0);
+        a.sync.tick();
+        b.sync.tick();
+
+        Node late = new Node("c", channel, folder());
+        a.sync.tick();
+        b.sync.tick();
+        late.sync.tick();
+        late.sync.tick();
+        expect("a server that missed resets catches up once when it connects", late.resets.size() == 1
+            && late.resets.get(0) == null && a.resets.size() == 1 && b.resets.size() == 1
+            && b.health() == 14.0 && late.health() == 14.0);
+        a.close();
+        b.close();
+        late.close();
+    }
+
+    private void expect(String scenario, boolean passed) {
+        System.out.println((passed ? "ok    " : "FAIL  ") + scenario);
+        if (!passed) failures++;
+    }
+
+    private String channel() {
+        return "check-" + channels++;
+    }
+
+    private File folder() throws IOException {
+        File folder = Files.createTempDirectory("sharedhealth-network").toFile();
+        folders.add(folder);
+        return folder;
+    }
+
+    private void close() throws IOException {
+        for (File folder : folders) {
+            PluginFixture.delete(folder);
+        }
+    }
+
+    /**
+     * One server: its own group, sync and record of what it was told. A
+     * reset starts the new run at once, as if its world were already made.
+     */
+    private final class Node {
+
+        private final DroppingTransport transport;
+        private final ShareGroup group;
+        private final NetworkSync sync;
+        /** Victims of remote resets, {@code null} for a reset caught up on. */
+        private final List<String> resets = new ArrayList<>();
+
+        private Node(String id, String channel, File folder) throws IOException {
+            Plugin plugin = MockServer.plugin(folder);
+            GroupManager groups = new GroupManager(plugin, folder, GROUP, world);
+            group = groups.getGroup(GROUP);
+            transport = new DroppingTransport(new LoopbackTransport(channel));
+            sync = new NetworkSync(plugin, folder, id, transport, groups, new NetworkSync.Handler() {
+                @Override
+                public void applyVitals(ShareGroup target, PendingVitals.Snapshot vitals) {
+                    if (vitals.hasHealth()) {
+                        target.getVitals().setHealth(vitals.getHealth());
+                    }
+                }
+
+                @Override
+                public void changeHealth(ShareGroup target, double change) {
+                    target.getVitals().changeHealth(change);
+                }
+
+                @Override
+                public void reset(ShareGroup target, String origin, String victim) {
+                    resets.add(victim);
+                    startRun();
+                }
+            });
+            sync.start();
+        }
+
+        /** A member died here, as the plugin's death handler reports it. */
+        private void die(String victim) {
+            sync.publishReset(group, victim);
+            startRun();
+        }
+
+        /** A member took damage here, as the plugin's damage handler reports it. */
+        private void damage(double amount) {
+            group.getVitals().damage(amount, 0);
+            sync.publishHealth(group);
+        }
+
+        private double health() {
+            return group.getVitals().getHealth();
+        }
+
+        private void startRun() {
+            group.getVitals().reset(5f);
+            group.getVitals().setHealth(sync.getRunHealth(group));
+        }
+
+        private void close() {
+            sync.close();
+        }
+    }
+
+    /**
+     * Loses the next batch when asked, like a full send queue, or sends it
+     * twice.
+     */
+    private static final class DroppingTransport implements VitalsTransport {
+
+        private final VitalsTransport delegate;
+        private Runnable connected;
+        private boolean dropNext = false;
+        private boolean duplicateNext = false;
+
+        private DroppingTransport(VitalsTransport delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void start(Consumer<byte[]> receiver, Runnable connected) throws IOException {
+            this.connected = connected;
+            delegate.start(receiver, connected);
+        }
+
+        /** The send queue drained again after dropping batches. */
+        private void reconnect() {
+            connected.run();
+        }
+
+        @Override
+        public void send(byte[] batch) {
+            if (dropNext) {
+                dropNext = false;
+                return;
+            }
+            delegate.send(batch);
+            if (duplicateNext) {
+                duplicateNext = false;
+                delegate.send(batch);
+            }
+        }
+
+        @Override
+        public void close() {
+            delegate.close();
+        }
+    }
+}
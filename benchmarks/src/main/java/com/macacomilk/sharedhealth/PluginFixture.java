@@ -0,0 +1,136 @@
+package com.macacomilk.sharedhealth;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.Stream;
+
+import org.bukkit.World;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * A {@link SharedHealthPlugin} wired to a {@link MockServer} with one group of
+ * simulated players, without going through {@code onEnable}.
+ *
+ * <p>{@link org.bukkit.plugin.java.JavaPlugin} refuses to be constructed
+ * outside a plugin class loader, so the plugin is allocated without running
+ * its constructor and its fields are injected the way {@code onEnable} would
+ * set them.
+ */
+final class PluginFixture {
+
+    static final String GROUP = "default";
+
+    final SharedHealthPlugin plugin;
+    final List<Player> players;
+    final ShareGroup group;
+    final StatsStore statsStore;
+    final RunAnalytics runAnalytics;
+    final MaxHealthCache maxHealthCache;
+    final GroupManager groupManager;
+    final File folder;
+    private final World world;
+    private final double maxHealth;
+
+    PluginFixture(int playerCount, double maxHealth, boolean batchSync) throws IOException {
+        MockServer.install();
+        folder = Files.createTempDirectory("sharedhealth-bench").toFile();
+        Plugin stubPlugin = MockServer.plugin(folder);
+        world = MockServer.world("world");
+        this.maxHealth = maxHealth;
+
+        TaskScheduler scheduler = new TaskScheduler(stubPlugin);
+        maxHealthCache = new MaxHealthCache(scheduler);
+        statsStore = new StatsStore(stubPlugin, folder, 50000);
+        statsStore.load();
+        runAnalytics = new RunAnalytics(stubPlugin, folder, 100, 10);
+        runAnalytics.load();
+        groupManager = new GroupManager(stubPlugin, folder, GROUP, world);
+        NameCache nameCache = new NameCache(stubPlugin, scheduler, folder);
+
+        players = new ArrayList<>(playerCount);
+        for (int i = 0; i < playerCount; i++) {
+            Player player = MockServer.player(i, world, maxHealth);
+            players.add(player);
+            groupManager.join(player);
+            nameCache.remember(player.getUniqueId(), player.getName());
+        }
+        group = groupManager.getGroup(GROUP);
+
+        YamlConfiguration config = new YamlConfiguration();
+        config.set("sync.batch-per-tick", batchSync);
+        Settings settings = Settings.parse(config, false, new ArrayList<>());
+
+        plugin = allocate(SharedHealthPlugin.class);
+        PerfMonitor perf = new PerfMonitor(stubPlugin, null);
+        inject("scheduler", scheduler);
+        inject("perf", perf);
+        inject("settings", settings);
+        // Never created, so it has no world; it only tracks who is waiting.
+        inject("waitingArea", new WaitingArea(stubPlugin, scheduler, perf, settings));
+        // Never started, so hits only add up; the cost measured is recording them.
+        inject("damageFeed", new DamageFeed(scheduler, settings));
+        inject("maxHealth", maxHealthCache);
+        inject("traceRecorder", new TraceRecorder(stubPlugin, scheduler, folder));
+        inject("groupManager", groupManager);
+        inject("statsStore", statsStore);
+        inject("allTimeStats", statsStore.getRankedStats());
+        inject("runAnalytics", runAnalytics);
+        inject("nameCache", nameCache);
+        inject("pendingGroups", new ConcurrentLinkedQueue<ShareGroup>());
+    }
+
+    /**
+     * Creates a player and puts them in the group, as if they were online
+     * before the plugin was enabled.
+     */
+    Player addPlayer(UUID uuid, String name) {
+        Player player = MockServer.player(uuid, name, world, maxHealth);
+        players.add(player);
+        groupManager.join(player);
+        return player;
+    }
+
+    void close() throws IOException {
+        statsStore.close();
+        runAnalytics.close();
+        delete(folder);
+    }
+
+    static void delete(File folder) throws IOException {
+        try (Stream<Path> files = Files.walk(folder.toPath())) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private void inject(String name, Object value) {
+        try {
+            Field field = SharedHealthPlugin.class.getDeclaredField(name);
+            field.setAccessible(true);
+            field.set(plugin, value);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot set SharedHealthPlugin." + name, e);
+        }
+    }
+
+    private static <T> T allocate(Class<T> type) {
+        try {
+            Field field = sun.misc.Unsafe.class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return type.cast(((sun.misc.Unsafe) field.get(null)).allocateInstance(type));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot allocate " + type.getSimpleName(), e);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.macacomilk.sharedhealth;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Saving and loading player stats: the main-thread cost of recording a round
+ * of changes and handing them to the writer, and a full load followed by the
+ * compaction done on disable.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StatsStoreBenchmark {
+
+    @Param({"1", "20", "100", "500"})
+    public int players;
+
+    private PluginFixture fixture;
+    private UUID[] uuids;
+    /** Saved stats for the same players, owned by no open store. */
+    private File savedFolder;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        fixture = new PluginFixture(players, 20, true);
+        uuids = new UUID[players];
+        for (int i = 0; i < players; i++) {
+            uuids[i] = fixture.players.get(i).getUniqueId();
+            fixture.statsStore.recordDeath(uuids[i]);
+            fixture.statsStore.recordDamage(uuids[i], i);
+        }
+        fixture.statsStore.flush();
+
+        savedFolder = Files.createTempDirectory("sharedhealth-bench-saved").toFile();
+        StatsStore saved = new StatsStore(MockServer.plugin(savedFolder), savedFolder, 50000);
+        saved.load();
+        for (int i = 0; i < players; i++) {
+            saved.recordDeath(uuids[i]);
+            saved.recordDamage(uuids[i], i);
+        }
+        saved.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        fixture.close();
+        PluginFixture.delete(savedFolder);
+    }
+
+    /**
+     * Every player takes damage once, then the batch goes to the writer.
+     */
+    @Benchmark
+    public void recordAndFlush() {
+        for (UUID uuid : uuids) {
+            fixture.statsStore.recordDamage(uuid, 1.0);
+        }
+        fixture.statsStore.flush();
+    }
+
+    /**
+     * Loads the snapshot and log from disk, then compacts them again on close.
+     */
+    @Benchmark
+    public RankedStats loadAndSave() throws IOException {
+        StatsStore store = new StatsStore(MockServer.plugin(savedFolder), savedFolder, 50000);
+        store.load();
+        store.close();
+        return store.getRankedStats();
+    }
+}
@@ -0,0 +1,255 @@
+package com.macacomilk.sharedhealth;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.damage.DamageSource;
+import org.bukkit.damage.DamageType;
+import org.bukkit.entity.Player;
+import org.bukkit.event.entity.EntityDamageEvent;
+import org.bukkit.event.entity.EntityRegainHealthEvent;
+import org.bukkit.event.entity.FoodLevelChangeEvent;
+import org.bukkit.event.entity.PlayerDeathEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+import com.destroystokyo.paper.event.server.ServerTickEndEvent;
+
+import net.kyori.adventure.text.Component;
+
+/**
+ * Replays a trace recorded with {@code /sharedhealth trace} against the
+ * plugin on a {@link MockServer}, tick by tick, and reports how long each
+ * handler and each tick's worth of work took.
+ *
+ * <p>Every record becomes the event the plugin originally handled, built
+ * before the clock starts, so only the handler is timed. The end-of-tick
+ * flush runs after each tick that had events, and buffered stats are flushed
+ * every 100 ticks like the plugin's timer. Work the plugin schedules for
+ * later, such as world resets after a death, is dropped by the mock server
+ * and not simulated.
+ *
+ * <pre>java -cp benchmarks.jar com.macacomilk.sharedhealth.TraceReplay &lt;trace&gt; [1x|10x|max]</pre>
+ */
+public final class TraceReplay {
+
+    private static final long NANOS_PER_TICK = 50_000_000L;
+    private static final long STATS_FLUSH_TICKS = 100;
+    private static final String[] TYPE_NAMES = {"player", "damage", "heal", "food", "death", "join", "quit"};
+
+    private final PluginFixture fixture;
+    private final Map<Integer, Player> players = new HashMap<>();
+    private final DamageSource damageSource = DamageSource.builder(DamageType.GENERIC).build();
+    private final ServerTickEndEvent tickEnd = new ServerTickEndEvent(0, 50.0, 0L);
+
+    private final Samples[] handlers = new Samples[TYPE_NAMES.length];
+    private final Samples tickFlush = new Samples();
+    private final Samples statsFlush = new Samples();
+    private final Samples tickWork = new Samples();
+
+    private TraceReplay(PluginFixture fixture) {
+        this.fixture = fixture;
+        for (int i = 0; i < handlers.length; i++) {
+            handlers[i] = new Samples();
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: TraceReplay <trace> [1x|10x|max]");
+            System.exit(2);
+        }
+        Path file = Paths.get(args[0]);
+        String speedName = args.length > 1 ? args[1].toLowerCase(Locale.ROOT) : "max";
+        int speed;
+        switch (speedName) {
+            case "1x":
+                speed = 1;
+                break;
+            case "10x":
+                speed = 10;
+                break;
+            case "max":
+                speed = 0;
+                break;
+            default:
+                System.err.println("Unknown speed " + args[1] + ", expected 1x, 10x or max");
+                System.exit(2);
+                return;
+        }
+
+        // Read it all up front, so disk reads do not land in the measurements.
+        List<EventTrace.Record> records = new ArrayList<>();
+        try (EventTrace.Reader reader = new EventTrace.Reader(file)) {
+            for (EventTrace.Record record; (record = reader.next()) != null; ) {
+                records.add(record);
+            }
+        }
+
+        PluginFixture fixture = new PluginFixture(0, 20, true);
+        try {
+            TraceReplay replay = new TraceReplay(fixture);
+            long started = System.nanoTime();
+            long ticks = replay.run(records, speed);
+            long elapsed = System.nanoTime() - started;
+            System.out.printf(Locale.ROOT, "Replayed %d records over %d ticks from %s at %s in %d ms%n%n",
+                records.size(), ticks, file.getFileName(), speedName, TimeUnit.NANOSECONDS.toMillis(elapsed));
+            replay.report();
+        } finally {
+            fixture.close();
+        }
+    }
+
+    /**
+     * @return the number of ticks the trace spans
+     */
+    private long run(List<EventTrace.Record> records, int speed) throws IOException, InterruptedException {
+        if (records.isEmpty()) return 0;
+
+        long firstTick = records.get(0).tick;
+        long lastStatsFlush = firstTick;
+        long started = System.nanoTime();
+        int i = 0;
+        while (i < records.size()) {
+            long tick = records.get(i).tick;
+            if (speed > 0) {
+                long due = started + (tick - firstTick) * NANOS_PER_TICK / speed;
+                long wait = due - System.nanoTime();
+                if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+            }
+
+            long work = 0;
+            for (; i < records.size() && records.get(i).tick == tick; i++) {
+                work += dispatch(records.get(i));
+            }
+
+            long flushStarted = System.nanoTime();
+            fixture.plugin.onTickEnd(tickEnd);
+            long flushed = System.nanoTime() - flushStarted;
+            tickFlush.add(flushed);
+            work += flushed;
+
+            if (tick - lastStatsFlush >= STATS_FLUSH_TICKS) {
+                lastStatsFlush = tick;
+                long statsStarted = System.nanoTime();
+                fixture.statsStore.flush();
+                long stats = System.nanoTime() - statsStarted;
+                statsFlush.add(stats);
+                work += stats;
+            }
+            tickWork.add(work);
+        }
+        return records.get(records.size() - 1).tick - firstTick + 1;
+    }
+
+    /**
+     * @return nanoseconds spent in the handler
+     */
+    private long dispatch(EventTrace.Record record) throws IOException {
+        if (record.type == EventTrace.PLAYER) {
+            // Players in a trace were online when it started unless a join says otherwise.
+            players.put(record.player, fixture.addPlayer(record.uuid, record.name));
+            return 0;
+        }
+
+        Player player = players.get(record.player);
+        if (player == null) {
+            throw new IOException(String.format("Record for undefined player %d", record.player));
+        }
+
+        SharedHealthPlugin plugin = fixture.plugin;
+        Runnable handler;
+        switch (record.type) {
+            case EventTrace.DAMAGE: {
+                EntityDamageEvent event = new EntityDamageEvent(player,
+                    EntityDamageEvent.DamageCause.values()[record.ordinal], damageSource, record.amount);
+                handler = () -> plugin.onDamage(event);
+                break;
+            }
+            case EventTrace.HEAL: {
+                EntityRegainHealthEvent event = new EntityRegainHealthEvent(player, record.amount,
+                    EntityRegainHealthEvent.RegainReason.values()[record.ordinal]);
+                handler = () -> plugin.onHeal(event);
+                break;
+            }
+            case EventTrace.FOOD: {
+                FoodLevelChangeEvent event = new FoodLevelChangeEvent(player, record.foodLevel);
+                handler = () -> plugin.onHunger(event);
+                break;
+            }
+            case EventTrace.DEATH: {
+                PlayerDeathEvent event = new PlayerDeathEvent(player, damageSource, new ArrayList<>(), 0,
+                    (Component) null);
+                handler = () -> plugin.onPlayerDeath(event);
+                break;
+            }
+            case EventTrace.JOIN: {
+                PlayerJoinEvent event = new PlayerJoinEvent(player, (Component) null);
+                handler = () -> plugin.onPlayerJoin(event);
+                break;
+            }
+            case EventTrace.QUIT: {
+                PlayerQuitEvent event = new PlayerQuitEvent(player, (Component) null,
+                    PlayerQuitEvent.QuitReason.DISCONNECTED);
+                handler = () -> plugin.onPlayerQuit(event);
+                break;
+            }
+            default:
+                throw new IOException(String.format("Unknown record type %d", record.type));
+        }
+
+        long started = System.nanoTime();
+        handler.run();
+        long elapsed = System.nanoTime() - started;
+        handlers[record.type].add(elapsed);
+        return elapsed;
+    }
+
+    private void report() {
+        System.out.printf(Locale.ROOT, "%-12s %9s %10s %10s %10s %10s %10s%n",
+            "µs", "count", "p50", "p90", "p99", "p99.9", "max");
+        for (int type = 1; type < handlers.length; type++) {
+            handlers[type].print(TYPE_NAMES[type]);
+        }
+        tickFlush.print("tick flush");
+        statsFlush.print("stats flush");
+        tickWork.print("tick work");
+    }
+
+    /** Durations in nanoseconds, printed as percentiles in microseconds. */
+    private static final class Samples {
+
+        private long[] values = new long[1024];
+        private int size = 0;
+
+        void add(long nanos) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = nanos;
+        }
+
+        void print(String name) {
+            if (size == 0) return;
+
+            long[] sorted = Arrays.copyOf(values, size);
+            Arrays.sort(sorted);
+            System.out.printf(Locale.ROOT, "%-12s %9d %10.1f %10.1f %10.1f %10.1f %10.1f%n", name, size,
+                micros(sorted, 0.50), micros(sorted, 0.90), micros(sorted, 0.99), micros(sorted, 0.999),
+                sorted[size - 1] / 1000.0);
+        }
+
+        private static double micros(long[] sorted, double quantile) {
+            int index = (int) Math.ceil(quantile * sorted.length) - 1;
+            return sorted[Math.max(0, index)] / 1000.0;
+        }
+    }
+}
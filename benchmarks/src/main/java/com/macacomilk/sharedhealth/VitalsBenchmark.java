@@ -0,0 +1,134 @@
+package com.macacomilk.sharedhealth;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.damage.DamageSource;
+import org.bukkit.damage.DamageType;
+import org.bukkit.entity.Player;
+import org.bukkit.event.entity.EntityDamageEvent;
+import org.bukkit.event.entity.EntityRegainHealthEvent;
+import org.bukkit.event.entity.FoodLevelChangeEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.destroystokyo.paper.event.server.ServerTickEndEvent;
+
+/**
+ * The per-event paths: one damage, heal or hunger event from a group member,
+ * followed by the end-of-tick flush when batching, and the immediate sync
+ * passes that fan a change out to every member.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VitalsBenchmark {
+
+    /** Flushes buffered stats every 1024 events, like the plugin's timer, so the buffer stays bounded. */
+    private static final int STATS_FLUSH_MASK = 1023;
+
+    @Param({"1", "20", "100", "500"})
+    public int players;
+
+    private PluginFixture batched;
+    private PluginFixture immediate;
+    /** Unbounded max health, so every heal changes health instead of clamping at full. */
+    private PluginFixture healing;
+
+    private EntityDamageEvent[] damageEvents;
+    private EntityDamageEvent[] immediateDamageEvents;
+    private EntityRegainHealthEvent[] healEvents;
+    private FoodLevelChangeEvent[] hungerEvents;
+    private final ServerTickEndEvent tickEnd = new ServerTickEndEvent(0, 50.0, 0L);
+
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        batched = new PluginFixture(players, 20, true);
+        immediate = new PluginFixture(players, 20, false);
+        healing = new PluginFixture(players, Double.MAX_VALUE, true);
+
+        DamageSource fall = DamageSource.builder(DamageType.FALL).build();
+        damageEvents = new EntityDamageEvent[players];
+        immediateDamageEvents = new EntityDamageEvent[players];
+        healEvents = new EntityRegainHealthEvent[players];
+        // Alternating levels, so every flush has a change to write.
+        hungerEvents = new FoodLevelChangeEvent[players * 2];
+        for (int i = 0; i < players; i++) {
+            damageEvents[i] = new EntityDamageEvent(batched.players.get(i), EntityDamageEvent.DamageCause.FALL, fall, 2.0);
+            immediateDamageEvents[i] = new EntityDamageEvent(immediate.players.get(i),
+                EntityDamageEvent.DamageCause.FALL, fall, 2.0);
+            healEvents[i] = new EntityRegainHealthEvent(healing.players.get(i), 1.0,
+                EntityRegainHealthEvent.RegainReason.SATIATED);
+            hungerEvents[i * 2] = new FoodLevelChangeEvent(batched.players.get(i), 19);
+            hungerEvents[i * 2 + 1] = new FoodLevelChangeEvent(batched.players.get(i), 20);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        batched.close();
+        immediate.close();
+        healing.close();
+    }
+
+    private int next() {
+        int index = next;
+        next = (next + 1) & Integer.MAX_VALUE;
+        if ((index & STATS_FLUSH_MASK) == 0) {
+            batched.statsStore.flush();
+            immediate.statsStore.flush();
+        }
+        return index;
+    }
+
+    @Benchmark
+    public void damageBatched() {
+        batched.plugin.onDamage(damageEvents[next() % players]);
+        batched.plugin.onTickEnd(tickEnd);
+    }
+
+    @Benchmark
+    public void damageImmediate() {
+        immediate.plugin.onDamage(immediateDamageEvents[next() % players]);
+    }
+
+    @Benchmark
+    public void healBatched() {
+        healing.plugin.onHeal(healEvents[next() % players]);
+        healing.plugin.onTickEnd(tickEnd);
+    }
+
+    @Benchmark
+    public void hungerBatched() {
+        batched.plugin.onHunger(hungerEvents[next() % hungerEvents.length]);
+        batched.plugin.onTickEnd(tickEnd);
+    }
+
+    @Benchmark
+    public void syncHealth() {
+        int index = next();
+        Player source = immediate.players.get(index % players);
+        immediate.group.syncHealth((index & 1) == 0 ? 19.0 : 20.0, source, immediate.maxHealthCache);
+    }
+
+    @Benchmark
+    public void syncHunger() {
+        immediate.group.syncHunger((next() & 1) == 0 ? 19 : 20, 5f);
+    }
+}
@@ -0,0 +1,104 @@
+package com.macacomilk.sharedhealth;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.bukkit.Chunk;
+import org.bukkit.World;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * Loads a square of chunks around a centre chunk through Paper's async chunk
+ * API, keeping at most {@code parallelism} loads in flight. Chunks are loaded
+ * nearest-first and pinned with a plugin chunk ticket so they stay loaded
+ * until {@link World#removePluginChunkTickets(Plugin)} is called.
+ *
+ * <p>Chunk futures complete on the main thread, so no locking is needed.
+ */
+final class ChunkPreloader {
+
+    private final Plugin plugin;
+    private final World world;
+    private final int parallelism;
+    private final int[] chunkX;
+    private final int[] chunkZ;
+    private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+    private int next = 0;
+    private int inFlight = 0;
+    private int completed = 0;
+    private boolean pumping = false;
+
+    ChunkPreloader(Plugin plugin, World world, int centerX, int centerZ, int radius, int parallelism) {
+        this.plugin = plugin;
+        this.world = world;
+        this.parallelism = Math.max(1, parallelism);
+
+        int side = radius * 2 + 1;
+        this.chunkX = new int[side * side];
+        this.chunkZ = new int[side * side];
+
+        // Ring by ring outwards from the centre so spawn is ready first.
+        int index = 0;
+        chunkX[index] = centerX;
+        chunkZ[index++] = centerZ;
+        for (int ring = 1; ring <= radius; ring++) {
+            for (int d = -ring; d <= ring; d++) {
+                chunkX[index] = centerX + d;
+                chunkZ[index++] = centerZ - ring;
+                chunkX[index] = centerX + d;
+                chunkZ[index++] = centerZ + ring;
+            }
+            for (int d = -ring + 1; d <= ring - 1; d++) {
+                chunkX[index] = centerX - ring;
+                chunkZ[index++] = centerZ + d;
+                chunkX[index] = centerX + ring;
+                chunkZ[index++] = centerZ + d;
+            }
+        }
+    }
+
+    CompletableFuture<Void> start() {
+        pump();
+        return done;
+    }
+
+    int getCompleted() {
+        return completed;
+    }
+
+    int getTotal() {
+        return chunkX.length;
+    }
+
+    private void pump() {
+        // Futures for chunks that are already loaded complete inline; the
+        // flag keeps those callbacks from recursing back into this loop.
+        if (pumping) return;
+        pumping = true;
+        try {
+            while (inFlight < parallelism && next < chunkX.length && !done.isDone()) {
+                int index = next++;
+                inFlight++;
+                world.getChunkAtAsync(chunkX[index], chunkZ[index]).whenComplete(this::onChunkLoaded);
+            }
+        } finally {
+            pumping = false;
+        }
+    }
+
+    private void onChunkLoaded(Chunk chunk, Throwable error) {
+        inFlight--;
+        if (error != null) {
+            done.completeExceptionally(error);
+            return;
+        }
+
+        chunk.addPluginChunkTicket(plugin);
+        completed++;
+        if (completed == chunkX.length) {
+            done.complete(null);
+        } else {
+            pump();
+        }
+    }
+}
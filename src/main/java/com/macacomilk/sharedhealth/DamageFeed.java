@@ -0,0 +1,204 @@
+package com.macacomilk.sharedhealth;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bukkit.entity.Player;
+import org.bukkit.event.entity.EntityDamageEvent.DamageCause;
+
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.TextComponent;
+import net.kyori.adventure.text.format.NamedTextColor;
+
+/**
+ * Tells each group who took damage from what, without a message per hit.
+ *
+ * <p>Hits are merged per player and cause for one window, then each group
+ * gets a single digest: up to {@code maxLines} chat lines, or one action bar
+ * update. Fire, poison and starvation ticks that used to send a chat packet
+ * to every member per tick now add to a counter. The components for causes
+ * and the fixed words are built once.
+ *
+ * <p>{@link #record} is safe from any thread; digests are sent from the
+ * global thread.
+ */
+final class DamageFeed {
+
+    private static final DamageCause[] CAUSES = DamageCause.values();
+    private static final Component TOOK = Component.text(" took ", NamedTextColor.GRAY);
+    private static final Component FROM = Component.text(" from ", NamedTextColor.GRAY);
+    private static final Component COMMA = Component.text(", ", NamedTextColor.GRAY);
+    private static final Component BAR_SEPARATOR = Component.text(" | ", NamedTextColor.DARK_GRAY);
+
+    private final TaskScheduler scheduler;
+    private final Map<DamageCause, Component> causeNames = new EnumMap<>(DamageCause.class);
+    /** Only groups hit recently; a window that stays empty for a whole flush is dropped. */
+    private final Map<ShareGroup, Window> windows = new ConcurrentHashMap<>();
+
+    /** Guarded by {@code this}. */
+    private TaskScheduler.Task task;
+    private long windowTicks;
+    private volatile boolean actionBar;
+    private volatile int maxLines;
+
+    DamageFeed(TaskScheduler scheduler, Settings settings) {
+        this.scheduler = scheduler;
+        for (DamageCause cause : CAUSES) {
+            causeNames.put(cause, Component.text(cause.name().toLowerCase(Locale.ROOT).replace('_', ' '),
+                NamedTextColor.YELLOW));
+        }
+        this.actionBar = settings.damageFeedActionBar;
+        this.maxLines = settings.damageFeedMaxLines;
+    }
+
+    /**
+     * Starts, restarts or stops the digest timer to match reloaded settings.
+     * Hits still waiting when the feed is turned off are dropped.
+     */
+    synchronized void apply(Settings settings) {
+        actionBar = settings.damageFeedActionBar;
+        maxLines = settings.damageFeedMaxLines;
+        if (!settings.damageFeed) {
+            if (task != null) task.cancel();
+            task = null;
+            windows.clear();
+            return;
+        }
+        if (task == null || windowTicks != settings.damageFeedWindowTicks) {
+            if (task != null) task.cancel();
+            windowTicks = settings.damageFeedWindowTicks;
+            task = scheduler.runGlobalTimer(this::flush, windowTicks, windowTicks);
+        }
+    }
+
+    void record(ShareGroup group, Player player, DamageCause cause, double amount) {
+        Window window = windows.get(group);
+        if (window == null) {
+            window = windows.computeIfAbsent(group, key -> new Window());
+        }
+        while (!window.add(player, cause, amount)) {
+            // Closed by the flush that is dropping it; start the group a new one.
+            windows.remove(group, window);
+            window = windows.computeIfAbsent(group, key -> new Window());
+        }
+    }
+
+    /**
+     * Sends every group the hits of the window that just ended.
+     */
+    private void flush() {
+        boolean toActionBar = actionBar;
+        int lineLimit = maxLines;
+        for (Map.Entry<ShareGroup, Window> entry : windows.entrySet()) {
+            Window window = entry.getValue();
+            List<Hits> hits = window.drain();
+            if (hits.isEmpty()) {
+                if (window.closeIfEmpty()) {
+                    windows.remove(entry.getKey(), window);
+                }
+                continue;
+            }
+
+            ShareGroup group = entry.getKey();
+            if (toActionBar) {
+                TextComponent.Builder bar = Component.text();
+                for (int i = 0; i < hits.size(); i++) {
+                    if (i > 0) bar.append(BAR_SEPARATOR);
+                    appendHits(bar, hits.get(i));
+                }
+                Component message = bar.build();
+                for (Player player : group.getMembers()) {
+                    player.sendActionBar(message);
+                }
+                continue;
+            }
+
+            int shown = Math.min(hits.size(), lineLimit);
+            for (int i = 0; i < shown; i++) {
+                TextComponent.Builder line = Component.text();
+                appendHits(line, hits.get(i));
+                group.broadcast(line.build());
+            }
+            if (hits.size() > shown) {
+                double rest = 0;
+                for (int i = shown; i < hits.size(); i++) {
+                    rest += hits.get(i).total;
+                }
+                group.broadcast(Component.text(String.format("...and %d more took ❤ %.1f",
+                    hits.size() - shown, rest), NamedTextColor.GRAY));
+            }
+        }
+    }
+
+    /**
+     * "name took ❤ total from cause ×count, cause", causes in enum order.
+     */
+    private void appendHits(TextComponent.Builder out, Hits hits) {
+        out.append(Component.text(hits.name, NamedTextColor.RED))
+            .append(TOOK)
+            .append(Component.text(String.format("❤ %.1f", hits.total), NamedTextColor.RED))
+            .append(FROM);
+        boolean first = true;
+        for (int i = 0; i < CAUSES.length; i++) {
+            if (hits.counts[i] == 0) continue;
+            if (!first) out.append(COMMA);
+            first = false;
+            out.append(causeNames.get(CAUSES[i]));
+            if (hits.counts[i] > 1) {
+                out.append(Component.text(" ×" + hits.counts[i], NamedTextColor.GRAY));
+            }
+        }
+    }
+
+    /** One group's hits in the current window, by player in order of their first hit. */
+    private static final class Window {
+
+        private LinkedHashMap<UUID, Hits> players = new LinkedHashMap<>();
+        private boolean closed = false;
+
+        /**
+         * @return {@code false} if the window was closed and the hit not added
+         */
+        synchronized boolean add(Player player, DamageCause cause, double amount) {
+            if (closed) return false;
+            Hits hits = players.get(player.getUniqueId());
+            if (hits == null) {
+                hits = new Hits(player.getName());
+                players.put(player.getUniqueId(), hits);
+            }
+            hits.total += amount;
+            hits.counts[cause.ordinal()]++;
+            return true;
+        }
+
+        /** Stops taking hits if none came in, so the window can be dropped. */
+        synchronized boolean closeIfEmpty() {
+            closed = players.isEmpty();
+            return closed;
+        }
+
+        synchronized List<Hits> drain() {
+            if (players.isEmpty()) return List.of();
+            List<Hits> drained = new ArrayList<>(players.values());
+            players = new LinkedHashMap<>();
+            return drained;
+        }
+    }
+
+    private static final class Hits {
+
+        private final String name;
+        private final int[] counts = new int[CAUSES.length];
+        private double total;
+
+        private Hits(String name) {
+            this.name = name;
+        }
+    }
+}
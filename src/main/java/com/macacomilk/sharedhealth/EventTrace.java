@@ -0,0 +1,145 @@
+package com.macacomilk.sharedhealth;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.UUID;
+
+/**
+ * The binary format written by {@link TraceRecorder}.
+ *
+ * <p>A header ({@code int} magic, {@code int} version, {@code long} start time
+ * in epoch millis) is followed by records. Each record is a type byte, the
+ * number of ticks since the previous record as a varint, and a payload:
+ * <ul>
+ * <li>{@link #PLAYER}: varint id, UUID as two longs, UTF name. Precedes the
+ * first record that uses the id.</li>
+ * <li>{@link #DAMAGE}: varint id, cause ordinal byte, float amount.</li>
+ * <li>{@link #HEAL}: varint id, reason ordinal byte, float amount.</li>
+ * <li>{@link #FOOD}: varint id, food level byte.</li>
+ * <li>{@link #DEATH}, {@link #JOIN}, {@link #QUIT}: varint id.</li>
+ * </ul>
+ * Cause and reason ordinals are those of the API the trace was recorded with.
+ */
+final class EventTrace {
+
+    static final int MAGIC = 0x53485452;
+    static final int VERSION = 1;
+
+    static final byte PLAYER = 0;
+    static final byte DAMAGE = 1;
+    static final byte HEAL = 2;
+    static final byte FOOD = 3;
+    static final byte DEATH = 4;
+    static final byte JOIN = 5;
+    static final byte QUIT = 6;
+
+    private EventTrace() {
+    }
+
+    static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed varint in trace");
+    }
+
+    /** One decoded record; fields a type does not use are left at zero. */
+    static final class Record {
+        byte type;
+        /** Ticks since the start of the trace. */
+        long tick;
+        int player;
+        UUID uuid;
+        String name;
+        int ordinal;
+        float amount;
+        int foodLevel;
+    }
+
+    /**
+     * Reads a trace front to back.
+     */
+    static final class Reader implements Closeable {
+
+        private final DataInputStream in;
+        private final long startedMillis;
+        private long tick = 0;
+
+        Reader(Path file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16));
+            if (in.readInt() != MAGIC) {
+                in.close();
+                throw new IOException("Not an event trace: " + file.getFileName());
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                in.close();
+                throw new IOException(String.format("Unsupported event trace version %d", version));
+            }
+            startedMillis = in.readLong();
+        }
+
+        long getStartedMillis() {
+            return startedMillis;
+        }
+
+        /**
+         * @return the next record, or {@code null} at the end of the trace
+         *         or at a record cut short by a crash
+         */
+        Record next() throws IOException {
+            Record record = new Record();
+            try {
+                record.type = in.readByte();
+                tick += readVarInt(in);
+                record.tick = tick;
+                record.player = readVarInt(in);
+                switch (record.type) {
+                    case PLAYER:
+                        record.uuid = new UUID(in.readLong(), in.readLong());
+                        record.name = in.readUTF();
+                        break;
+                    case DAMAGE:
+                    case HEAL:
+                        record.ordinal = in.readUnsignedByte();
+                        record.amount = in.readFloat();
+                        break;
+                    case FOOD:
+                        record.foodLevel = in.readUnsignedByte();
+                        break;
+                    case DEATH:
+                    case JOIN:
+                    case QUIT:
+                        break;
+                    default:
+                        throw new IOException(String.format("Corrupt record type %d in trace", record.type));
+                }
+            } catch (EOFException e) {
+                return null;
+            }
+            return record;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
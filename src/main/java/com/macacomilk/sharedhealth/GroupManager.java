@@ -0,0 +1,196 @@
+package com.macacomilk.sharedhealth;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+import org.bukkit.WorldCreator;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * Owns every {@link ShareGroup} and the player to group index. Players
+ * without an explicit assignment belong to the default group. Assignments
+ * are persisted to {@code groups.yml}, and the world each group is playing in
+ * to {@code worlds.yml}, so a restart resumes runs instead of losing them.
+ *
+ * <p>Lookups are lock-free so event handlers on any region thread can use
+ * them; membership changes are serialized on this object.
+ */
+final class GroupManager {
+
+    private final Plugin plugin;
+    private final File file;
+    private final File worldsFile;
+    private final String defaultGroup;
+    private final World initialWorld;
+
+    private final Map<String, ShareGroup> groups = new ConcurrentHashMap<>();
+    private final Map<UUID, String> assignments = new ConcurrentHashMap<>();
+    private final Map<UUID, ShareGroup> onlineIndex = new ConcurrentHashMap<>();
+    /** Group name to the name of the world its run is in, as last saved. */
+    private final Map<String, String> savedWorlds = new ConcurrentHashMap<>();
+
+    GroupManager(Plugin plugin, File folder, String defaultGroup, World initialWorld) {
+        this.plugin = plugin;
+        this.file = new File(folder, "groups.yml");
+        this.worldsFile = new File(folder, "worlds.yml");
+        this.defaultGroup = defaultGroup;
+        this.initialWorld = initialWorld;
+        getOrCreate(defaultGroup);
+    }
+
+    void load() {
+        if (worldsFile.exists()) {
+            YamlConfiguration worlds = YamlConfiguration.loadConfiguration(worldsFile);
+            for (String group : worlds.getKeys(false)) {
+                savedWorlds.put(group, worlds.getString(group));
+            }
+        }
+        if (!file.exists()) return;
+
+        YamlConfiguration config = YamlConfiguration.loadConfiguration(file);
+        for (String key : config.getKeys(false)) {
+            try {
+                assignments.put(UUID.fromString(key), config.getString(key));
+            } catch (IllegalArgumentException e) {
+                plugin.getLogger().warning(String.format("Ignoring invalid UUID in groups.yml: %s", key));
+            }
+        }
+    }
+
+    /**
+     * Loads the world each group was playing in before the server stopped and
+     * puts the group back in it. Must be called on the main thread, before
+     * {@link WorldReaper#reapOrphans} would treat those worlds as leftovers.
+     */
+    void restoreWorlds() {
+        savedWorlds.forEach((name, worldName) -> {
+            World world = Bukkit.getWorld(worldName);
+            if (world == null && new File(Bukkit.getWorldContainer(), worldName).isDirectory()) {
+                world = new WorldCreator(worldName)
+                    .environment(World.Environment.NORMAL)
+                    .createWorld();
+            }
+            if (world == null) {
+                plugin.getLogger().warning(String.format("World %s of group %s is gone; the group starts in %s",
+                    worldName, name, initialWorld.getName()));
+                return;
+            }
+            getOrCreate(name).setCurrentWorld(world);
+            plugin.getLogger().info(String.format("Group %s resumes its run in %s", name, worldName));
+        });
+    }
+
+    private void saveWorlds() {
+        YamlConfiguration config = new YamlConfiguration();
+        savedWorlds.forEach(config::set);
+        try {
+            config.save(worldsFile);
+        } catch (IOException e) {
+            plugin.getLogger().severe(String.format("Failed to save group worlds: %s", e.getMessage()));
+        }
+    }
+
+    private void save() {
+        YamlConfiguration config = new YamlConfiguration();
+        assignments.forEach((uuid, group) -> config.set(uuid.toString(), group));
+        try {
+            config.save(file);
+        } catch (IOException e) {
+            plugin.getLogger().severe(String.format("Failed to save groups: %s", e.getMessage()));
+        }
+    }
+
+    ShareGroup getOrCreate(String name) {
+        // New groups start out in the server's main world until their first reset.
+        return groups.computeIfAbsent(name, key -> new ShareGroup(key, initialWorld));
+    }
+
+    ShareGroup getGroup(String name) {
+        return groups.get(name);
+    }
+
+    /** The group players are in until assigned another; always exists. */
+    ShareGroup getDefaultGroup() {
+        return getOrCreate(defaultGroup);
+    }
+
+    Collection<ShareGroup> getGroups() {
+        return Collections.unmodifiableCollection(groups.values());
+    }
+
+    /**
+     * The group of an online player, or {@code null} if they have not joined.
+     */
+    ShareGroup getGroup(Player player) {
+        return onlineIndex.get(player.getUniqueId());
+    }
+
+    /**
+     * Indexes a player who came online and returns their group.
+     */
+    synchronized ShareGroup join(Player player) {
+        ShareGroup group = getOrCreate(assignments.getOrDefault(player.getUniqueId(), defaultGroup));
+        group.addMember(player);
+        onlineIndex.put(player.getUniqueId(), group);
+        return group;
+    }
+
+    /**
+     * Removes a player who went offline and returns the group they were in.
+     */
+    synchronized ShareGroup quit(Player player) {
+        ShareGroup group = onlineIndex.remove(player.getUniqueId());
+        if (group != null) {
+            group.removeMember(player);
+        }
+        return group;
+    }
+
+    /**
+     * Moves a player into another group, updating the index if they are online.
+     */
+    synchronized ShareGroup assign(Player player, String name) {
+        ShareGroup target = getOrCreate(name);
+        if (name.equals(defaultGroup)) {
+            assignments.remove(player.getUniqueId());
+        } else {
+            assignments.put(player.getUniqueId(), name);
+        }
+        save();
+
+        ShareGroup previous = onlineIndex.put(player.getUniqueId(), target);
+        if (previous != null) {
+            previous.removeMember(player);
+        }
+        target.addMember(player);
+        return target;
+    }
+
+    /**
+     * Moves a group's run to another world and remembers it across restarts.
+     */
+    synchronized void setCurrentWorld(ShareGroup group, World world) {
+        group.setCurrentWorld(world);
+        savedWorlds.put(group.getName(), world.getName());
+        saveWorlds();
+    }
+
+    /**
+     * Whether any group other than {@code except} is still playing in the world.
+     */
+    boolean isWorldInUse(World world, ShareGroup except) {
+        for (ShareGroup group : groups.values()) {
+            if (group != except && world.equals(group.getCurrentWorld())) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,82 @@
+package com.macacomilk.sharedhealth;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Entries of a {@link PlayerStatsTable} ranked by one score, highest first.
+ * Each update re-positions a single entry in O(log n), so reading a page
+ * never has to sort.
+ *
+ * <p>Not thread-safe; {@link RankedStats} guards its boards.
+ */
+final class Leaderboard {
+
+    static final int PAGE_SIZE = 10;
+
+    private Rank[] ranks = new Rank[64];
+    private final TreeSet<Rank> order = new TreeSet<>((a, b) -> {
+        int byScore = Double.compare(b.score, a.score);
+        return byScore != 0 ? byScore : Integer.compare(a.entry, b.entry);
+    });
+
+    void update(int entry, double score) {
+        if (entry >= ranks.length) {
+            ranks = Arrays.copyOf(ranks, Math.max(ranks.length * 2, entry + 1));
+        }
+
+        Rank rank = ranks[entry];
+        if (rank == null) {
+            rank = new Rank(entry);
+            ranks[entry] = rank;
+        } else {
+            if (rank.score == score) return;
+            order.remove(rank);
+        }
+        rank.score = score;
+        order.add(rank);
+    }
+
+    int size() {
+        return order.size();
+    }
+
+    int pageCount() {
+        return Math.max(1, (order.size() + PAGE_SIZE - 1) / PAGE_SIZE);
+    }
+
+    /**
+     * Entry indices on the given 1-based page, best first.
+     */
+    List<Integer> page(int page) {
+        List<Integer> entries = new ArrayList<>(PAGE_SIZE);
+        int skip = (page - 1) * PAGE_SIZE;
+        Iterator<Rank> iterator = order.iterator();
+        while (iterator.hasNext() && entries.size() < PAGE_SIZE) {
+            Rank rank = iterator.next();
+            if (skip > 0) {
+                skip--;
+                continue;
+            }
+            entries.add(rank.entry);
+        }
+        return entries;
+    }
+
+    void clear() {
+        order.clear();
+        Arrays.fill(ranks, null);
+    }
+
+    private static final class Rank {
+        private final int entry;
+        private double score;
+
+        private Rank(int entry) {
+            this.entry = entry;
+        }
+    }
+}
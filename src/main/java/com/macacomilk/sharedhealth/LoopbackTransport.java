@@ -0,0 +1,58 @@
+package com.macacomilk.sharedhealth;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Connects every transport on the same channel inside one JVM, so several
+ * {@link NetworkSync}s can be checked against each other without a network
+ * or a server; see {@code NetworkSyncCheck} in the benchmarks. Batches are
+ * handed to the other transports' receivers on the sending thread.
+ */
+final class LoopbackTransport implements VitalsTransport {
+
+    private static final Map<String, Set<LoopbackTransport>> CHANNELS = new ConcurrentHashMap<>();
+
+    private final String channel;
+    private volatile Consumer<byte[]> receiver;
+    private volatile Runnable connected;
+
+    LoopbackTransport(String channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public void start(Consumer<byte[]> receiver, Runnable connected) {
+        this.receiver = receiver;
+        this.connected = connected;
+        Set<LoopbackTransport> peers = CHANNELS.computeIfAbsent(channel, key -> ConcurrentHashMap.newKeySet());
+        for (LoopbackTransport peer : peers) {
+            peer.connected.run();
+        }
+        if (!peers.isEmpty()) {
+            connected.run();
+        }
+        peers.add(this);
+    }
+
+    @Override
+    public void send(byte[] batch) {
+        Set<LoopbackTransport> peers = CHANNELS.get(channel);
+        if (peers == null) return;
+        for (LoopbackTransport peer : peers) {
+            if (peer != this) {
+                peer.receiver.accept(batch);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        Set<LoopbackTransport> peers = CHANNELS.get(channel);
+        if (peers != null) {
+            peers.remove(this);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.macacomilk.sharedhealth;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bukkit.attribute.Attribute;
+import org.bukkit.attribute.AttributeInstance;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.entity.EntityPotionEffectEvent;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
+import org.bukkit.event.player.PlayerItemHeldEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.event.player.PlayerRespawnEvent;
+import org.bukkit.event.player.PlayerSwapHandItemsEvent;
+import org.bukkit.potion.PotionEffectType;
+
+import com.destroystokyo.paper.event.player.PlayerArmorChangeEvent;
+
+/**
+ * Each online player's max health, so a sync does not look up the attribute
+ * of every member on every event. An entry is dropped when something that can
+ * change the attribute happens: armour, held items, Health Boost, respawning
+ * or changing worlds. Anything else, such as another plugin changing the
+ * attribute, is caught by {@link VitalsReconciler}.
+ *
+ * <p>Safe to read from any thread, but a miss reads the attribute and so has
+ * to run on the player's own thread, as every vitals write already does.
+ */
+final class MaxHealthCache implements Listener {
+
+    private final TaskScheduler scheduler;
+    private final Map<UUID, Double> values = new ConcurrentHashMap<>();
+
+    MaxHealthCache(TaskScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * @return the player's max health, or {@code NaN} if they have none
+     */
+    double get(Player player) {
+        Double cached = values.get(player.getUniqueId());
+        if (cached != null) return cached;
+        double value = read(player);
+        if (!Double.isNaN(value)) {
+            values.put(player.getUniqueId(), value);
+        }
+        return value;
+    }
+
+    /**
+     * Reads the attribute again and caches it.
+     *
+     * @return {@code false} if the cached value was out of date
+     */
+    boolean verify(Player player) {
+        double value = read(player);
+        Double cached = Double.isNaN(value)
+            ? values.remove(player.getUniqueId())
+            : values.put(player.getUniqueId(), value);
+        return cached == null || cached == value;
+    }
+
+    private static double read(Player player) {
+        AttributeInstance maxHealthAttr = player.getAttribute(Attribute.MAX_HEALTH);
+        return maxHealthAttr == null ? Double.NaN : maxHealthAttr.getValue();
+    }
+
+    /**
+     * Drops the player's entry once the change behind the event has been
+     * applied; equipment and effects only update attributes on the next tick.
+     */
+    private void invalidate(Player player) {
+        UUID uuid = player.getUniqueId();
+        scheduler.runForEntityLater(player, () -> values.remove(uuid), 1L);
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPotionEffect(EntityPotionEffectEvent event) {
+        if (event.getEntity() instanceof Player && event.getModifiedType() == PotionEffectType.HEALTH_BOOST) {
+            invalidate((Player) event.getEntity());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onArmorChange(PlayerArmorChangeEvent event) {
+        invalidate(event.getPlayer());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onItemHeld(PlayerItemHeldEvent event) {
+        invalidate(event.getPlayer());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onSwapHands(PlayerSwapHandItemsEvent event) {
+        invalidate(event.getPlayer());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onRespawn(PlayerRespawnEvent event) {
+        invalidate(event.getPlayer());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onChangedWorld(PlayerChangedWorldEvent event) {
+        invalidate(event.getPlayer());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onQuit(PlayerQuitEvent event) {
+        values.remove(event.getPlayer().getUniqueId());
+    }
+}
@@ -0,0 +1,126 @@
+package com.macacomilk.sharedhealth;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bukkit.Bukkit;
+import org.bukkit.OfflinePlayer;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * Last known name of every player who joined, persisted to {@code names.yml}
+ * so leaderboards can show offline players without asking the server, which
+ * may hit the disk or the user cache on the main thread. Players who joined
+ * before the cache existed are filled in once, asynchronously, from the
+ * server's own records.
+ *
+ * <p>Lookups and updates may happen on any thread; saving encodes the YAML
+ * on the caller's thread and writes it asynchronously.
+ */
+final class NameCache {
+
+    private final Plugin plugin;
+    private final TaskScheduler scheduler;
+    private final File file;
+    private final Map<UUID, String> names = new ConcurrentHashMap<>();
+    private final AtomicBoolean dirty = new AtomicBoolean();
+    private final AtomicLong version = new AtomicLong();
+    /** Guarded by {@code this}; keeps a slow async save from overwriting a newer one. */
+    private long writtenVersion = 0;
+
+    NameCache(Plugin plugin, TaskScheduler scheduler, File folder) {
+        this.plugin = plugin;
+        this.scheduler = scheduler;
+        this.file = new File(folder, "names.yml");
+    }
+
+    void load() {
+        if (!file.exists()) return;
+
+        YamlConfiguration config = YamlConfiguration.loadConfiguration(file);
+        for (String key : config.getKeys(false)) {
+            try {
+                names.put(UUID.fromString(key), config.getString(key));
+            } catch (IllegalArgumentException e) {
+                plugin.getLogger().warning(String.format("Ignoring invalid UUID in names.yml: %s", key));
+            }
+        }
+    }
+
+    /**
+     * Adds the names the server already knows for players missing from the
+     * cache, off the main thread. Names learned since are never overwritten.
+     */
+    void seedFromServer() {
+        scheduler.runAsync(() -> {
+            int added = 0;
+            for (OfflinePlayer player : Bukkit.getOfflinePlayers()) {
+                String name = player.getName();
+                if (name != null && names.putIfAbsent(player.getUniqueId(), name) == null) {
+                    added++;
+                }
+            }
+            if (added > 0) {
+                dirty.set(true);
+                plugin.getLogger().info(String.format("Learned %d player name(s) from the server", added));
+            }
+        });
+    }
+
+    void remember(UUID uuid, String name) {
+        if (!name.equals(names.put(uuid, name))) {
+            dirty.set(true);
+        }
+    }
+
+    String getName(UUID uuid) {
+        String name = names.get(uuid);
+        return name != null ? name : uuid.toString().substring(0, 8);
+    }
+
+    void save() {
+        if (!dirty.getAndSet(false)) return;
+
+        String yaml = encode();
+        long saveVersion = version.incrementAndGet();
+        scheduler.runAsync(() -> write(yaml, saveVersion));
+    }
+
+    /**
+     * Writes synchronously; used on disable when async tasks no longer run.
+     */
+    void saveNow() {
+        if (!dirty.getAndSet(false)) return;
+        write(encode(), version.incrementAndGet());
+    }
+
+    private String encode() {
+        YamlConfiguration config = new YamlConfiguration();
+        names.forEach((uuid, name) -> config.set(uuid.toString(), name));
+        return config.saveToString();
+    }
+
+    private synchronized void write(String yaml, long saveVersion) {
+        if (saveVersion < writtenVersion) return;
+        writtenVersion = saveVersion;
+
+        Path target = file.toPath();
+        Path temp = target.resolveSibling(file.getName() + ".tmp");
+        try {
+            Files.write(temp, yaml.getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            plugin.getLogger().severe(String.format("Failed to save player names: %s", e.getMessage()));
+        }
+    }
+}
@@ -0,0 +1,598 @@
+package com.macacomilk.sharedhealth;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * Shares each group's vitals, and its resets, with the same group on the
+ * other servers of a network.
+ *
+ * <p>Local changes are collected during the tick and sent in one batch from
+ * {@link #tick()}. Health goes out as the change this server made to it, so
+ * damage taken on two servers at once adds up everywhere instead of one
+ * server's value replacing the other's; each batch carries its server's id,
+ * a session picked at startup and a batch number, and a batch already seen
+ * is ignored. Food goes out as the latest level. Every value carries a
+ * Lamport sequence number and the id of the server that set it; a received
+ * food level only wins if its sequence, then its server id, is higher than
+ * that of the one in place, so every server settles on the same one. Each
+ * reset starts a new epoch of the group. Values from an older epoch are
+ * dropped, and a reset for an epoch already started here is a duplicate of
+ * one this server made at the same time.
+ *
+ * <p>A server can miss changes and resets: batches are dropped when a
+ * connection falls behind, and nothing is resent after a reconnect. So
+ * vitals from a newer epoch start that epoch's reset here rather than being
+ * applied to the old run, and whenever a connection opens, or catches up
+ * after dropping batches, every server announces its epochs with the
+ * group's absolute health and the sequence of its last change. The newest
+ * of those replaces the health everywhere. Epochs are saved to
+ * {@code network.yml}, so a restart does not put a server back at the first
+ * run.
+ *
+ * <p>The sync keeps its own copy of each group's health in the current run,
+ * which {@link #getRunHealth} hands to a group starting that run here: its
+ * members only join it once the new world is ready, and the other servers
+ * may have taken damage in it by then.
+ *
+ * <p>The publish methods may be called from any thread; {@link #tick()} and
+ * the {@link Handler} run on the global thread.
+ */
+final class NetworkSync {
+
+    static final byte PROTOCOL_VERSION = 3;
+
+    private static final byte VITALS = 1;
+    private static final byte RESET = 2;
+    private static final byte EPOCH = 3;
+    private static final byte HAS_HEALTH = 1;
+    private static final byte HAS_FOOD = 2;
+
+    /** What to do with changes received from other servers. */
+    interface Handler {
+
+        /** Apply vitals another server set for the group, or the health of a resync. */
+        void applyVitals(ShareGroup group, PendingVitals.Snapshot vitals);
+
+        /** Apply a change another server made to the group's health. */
+        void changeHealth(ShareGroup group, double change);
+
+        /**
+         * Start the group's next run because {@code victim} died on
+         * {@code origin}, or because {@code origin} is already in a newer
+         * run, when {@code victim} is {@code null}.
+         */
+        void reset(ShareGroup group, String origin, String victim);
+    }
+
+    private final Plugin plugin;
+    private final File file;
+    private final String serverId;
+    private final VitalsTransport transport;
+    private final GroupManager groupManager;
+    private final Handler handler;
+
+    /** Tells this run of the server apart from earlier ones, whose batch numbers started over. */
+    private final long session = ThreadLocalRandom.current().nextLong();
+    private final AtomicLong clock = new AtomicLong();
+    private final Map<String, Versions> versions = new ConcurrentHashMap<>();
+    /** The last batch received from each server; only used on the global thread. */
+    private final Map<String, Peer> peers = new HashMap<>();
+    /** Guarded by itself. */
+    private final Map<String, Outgoing> outgoing = new LinkedHashMap<>();
+    private final Queue<byte[]> incoming = new ConcurrentLinkedQueue<>();
+    /** Set when a connection opens; the next batch carries every epoch. */
+    private final AtomicBoolean announce = new AtomicBoolean();
+
+    private final AtomicLong batchesSent = new AtomicLong();
+    private final AtomicLong batchesReceived = new AtomicLong();
+    private final AtomicLong staleDropped = new AtomicLong();
+
+    NetworkSync(Plugin plugin, File folder, String serverId, VitalsTransport transport, GroupManager groupManager,
+            Handler handler) {
+        this.plugin = plugin;
+        this.file = new File(folder, "network.yml");
+        this.serverId = serverId;
+        this.transport = transport;
+        this.groupManager = groupManager;
+        this.handler = handler;
+    }
+
+    void start() throws IOException {
+        load();
+        transport.start(incoming::add, () -> announce.set(true));
+    }
+
+    private void load() {
+        if (!file.exists()) return;
+        YamlConfiguration config = YamlConfiguration.loadConfiguration(file);
+        for (String name : config.getKeys(false)) {
+            versionsOf(name).epoch = config.getInt(name);
+        }
+    }
+
+    /** Runs on the global thread whenever an epoch changes, which is once per reset. */
+    private void saveEpochs() {
+        YamlConfiguration config = new YamlConfiguration();
+        versions.forEach((name, groupVersions) -> {
+            synchronized (groupVersions) {
+                config.set(name, groupVersions.epoch);
+            }
+        });
+        try {
+            config.save(file);
+        } catch (IOException e) {
+            plugin.getLogger().severe(String.format("Failed to save network epochs: %s", e.getMessage()));
+        }
+    }
+
+    void close() {
+        transport.close();
+    }
+
+    /**
+     * Queues the change made to the group's health here since the last call.
+     */
+    void publishHealth(ShareGroup group) {
+        SharedVitals vitals = group.getVitals();
+        double change = vitals.takeHealthChange();
+        if (change == 0) return;
+        double health = vitals.getHealth();
+
+        Versions groupVersions = versionsOf(group.getName());
+        synchronized (groupVersions) {
+            long sequence = clock.incrementAndGet();
+            groupVersions.setHealth(sequence, serverId);
+            groupVersions.health = health;
+            synchronized (outgoing) {
+                Outgoing out = outgoingOf(group.getName(), groupVersions.epoch);
+                if (out != null) {
+                    out.healthSequence = sequence;
+                    out.healthChange += change;
+                }
+            }
+        }
+    }
+
+    void publishFood(ShareGroup group, int foodLevel) {
+        Versions groupVersions = versionsOf(group.getName());
+        synchronized (groupVersions) {
+            long sequence = clock.incrementAndGet();
+            groupVersions.setFood(sequence, serverId);
+            synchronized (outgoing) {
+                Outgoing out = outgoingOf(group.getName(), groupVersions.epoch);
+                if (out != null) {
+                    out.foodSequence = sequence;
+                    out.foodLevel = foodLevel;
+                }
+            }
+        }
+    }
+
+    void publish(ShareGroup group, PendingVitals.Snapshot vitals) {
+        if (vitals.hasHealth()) {
+            publishHealth(group);
+        }
+        if (vitals.hasFood()) {
+            publishFood(group, vitals.getFoodLevel());
+        }
+    }
+
+    /**
+     * Starts the group's next epoch here and tells the other servers to
+     * reset too. Vitals still waiting to be sent belong to the old run and
+     * are dropped.
+     */
+    void publishReset(ShareGroup group, String victim) {
+        Versions groupVersions = versionsOf(group.getName());
+        synchronized (groupVersions) {
+            groupVersions.startEpoch(groupVersions.epoch + 1);
+            synchronized (outgoing) {
+                Outgoing out = new Outgoing(groupVersions.epoch);
+                out.victim = victim;
+                outgoing.put(group.getName(), out);
+            }
+        }
+        saveEpochs();
+    }
+
+    /**
+     * Sends this tick's changes and applies everything received since the
+     * last tick. Runs on the global thread.
+     */
+    void tick() {
+        byte[] batch = encodeOutgoing();
+        if (batch != null) {
+            transport.send(batch);
+        }
+
+        byte[] received;
+        while ((received = incoming.poll()) != null) {
+            batchesReceived.incrementAndGet();
+            try {
+                receive(received);
+            } catch (IOException e) {
+                plugin.getLogger().warning(String.format("Dropped a malformed vitals batch: %s", e.getMessage()));
+            }
+        }
+    }
+
+    String getServerId() {
+        return serverId;
+    }
+
+    long getBatchesSent() {
+        return batchesSent.get();
+    }
+
+    long getBatchesReceived() {
+        return batchesReceived.get();
+    }
+
+    /**
+     * Batches seen before, and values from an older run or older than the
+     * one in place, that were ignored.
+     */
+    long getStaleDropped() {
+        return staleDropped.get();
+    }
+
+    /**
+     * The group's health in the run this server is in, including changes
+     * other servers made while the group was still starting it here. Read
+     * once the group's vitals were reset for the new run.
+     */
+    double getRunHealth(ShareGroup group) {
+        Versions groupVersions = versionsOf(group.getName());
+        synchronized (groupVersions) {
+            return groupVersions.health;
+        }
+    }
+
+    private byte[] encodeOutgoing() {
+        Map<String, Announcement> epochs = new LinkedHashMap<>();
+        if (announce.getAndSet(false)) {
+            versions.forEach((name, groupVersions) -> {
+                synchronized (groupVersions) {
+                    if (groupVersions.epoch > 0 || groupVersions.healthSequence > 0) {
+                        epochs.put(name, new Announcement(groupVersions));
+                    }
+                }
+            });
+        }
+        List<Map.Entry<String, Outgoing>> changes;
+        synchronized (outgoing) {
+            if (outgoing.isEmpty() && epochs.isEmpty()) return null;
+            changes = new ArrayList<>(outgoing.entrySet());
+            outgoing.clear();
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + (changes.size() + epochs.size()) * 48);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(PROTOCOL_VERSION);
+            out.writeUTF(serverId);
+            // Numbers the batch, so a receiver can ignore one it already had.
+            out.writeLong(session);
+            out.writeLong(batchesSent.incrementAndGet());
+            // Lets a server that just started catch its clock up before it publishes.
+            out.writeLong(clock.get());
+            out.writeInt(changes.size() + epochs.size());
+            for (Map.Entry<String, Outgoing> entry : changes) {
+                Outgoing change = entry.getValue();
+                if (change.victim != null) {
+                    out.writeByte(RESET);
+                    out.writeUTF(entry.getKey());
+                    out.writeInt(change.epoch);
+                    out.writeUTF(change.victim);
+                    continue;
+                }
+
+                out.writeByte(VITALS);
+                out.writeUTF(entry.getKey());
+                out.writeInt(change.epoch);
+                int mask = (change.healthSequence > 0 ? HAS_HEALTH : 0) | (change.foodSequence > 0 ? HAS_FOOD : 0);
+                out.writeByte(mask);
+                if (change.healthSequence > 0) {
+                    out.writeLong(change.healthSequence);
+                    out.writeDouble(change.healthChange);
+                }
+                if (change.foodSequence > 0) {
+                    out.writeLong(change.foodSequence);
+                    out.writeByte(change.foodLevel);
+                }
+            }
+            // After the changes, so a reset in this batch arrives with its victim.
+            for (Map.Entry<String, Announcement> entry : epochs.entrySet()) {
+                Announcement announcement = entry.getValue();
+                out.writeByte(EPOCH);
+                out.writeUTF(entry.getKey());
+                out.writeInt(announcement.epoch);
+                out.writeLong(announcement.healthSequence);
+                out.writeUTF(announcement.healthOrigin);
+                out.writeDouble(announcement.health);
+            }
+        } catch (IOException e) {
+            // ByteArrayOutputStream does not throw.
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private void receive(byte[] batch) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(batch));
+        int version = in.readByte();
+        if (version != PROTOCOL_VERSION) {
+            throw new IOException(String.format("unsupported protocol version %d", version));
+        }
+        String origin = in.readUTF();
+        long originSession = in.readLong();
+        long number = in.readLong();
+        Peer peer = peers.computeIfAbsent(origin, key -> new Peer());
+        if (peer.session == originSession && number <= peer.batch) {
+            staleDropped.incrementAndGet();
+            return;
+        }
+        peer.session = originSession;
+        peer.batch = number;
+        clock.accumulateAndGet(in.readLong(), Math::max);
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            byte type = in.readByte();
+            String name = in.readUTF();
+            int epoch = in.readInt();
+            if (type == RESET) {
+                receiveReset(name, epoch, origin, in.readUTF());
+            } else if (type == EPOCH) {
+                long healthSequence = in.readLong();
+                String healthOrigin = in.readUTF();
+                double health = in.readDouble();
+                receiveEpoch(name, epoch, origin, healthSequence, healthOrigin, health);
+            } else if (type == VITALS) {
+                int mask = in.readByte();
+                boolean hasHealth = (mask & HAS_HEALTH) != 0;
+                boolean hasFood = (mask & HAS_FOOD) != 0;
+                long healthSequence = hasHealth ? in.readLong() : 0;
+                double healthChange = hasHealth ? in.readDouble() : 0;
+                long foodSequence = hasFood ? in.readLong() : 0;
+                int foodLevel = hasFood ? in.readByte() : 0;
+                receiveVitals(name, epoch, origin, healthSequence, healthChange, foodSequence, foodLevel);
+            } else {
+                throw new IOException(String.format("unknown message type %d", type));
+            }
+        }
+    }
+
+    private void receiveVitals(String name, int epoch, String origin, long healthSequence, double healthChange,
+            long foodSequence, int foodLevel) {
+        clock.accumulateAndGet(Math.max(healthSequence, foodSequence), Math::max);
+        if (catchUp(name, epoch)) {
+            // The reset for this epoch was lost or is still on its way. These
+            // vitals are the new run's; the group starts it with them.
+            startReset(name, origin, null);
+        }
+        Versions groupVersions = versionsOf(name);
+        boolean applyFood;
+        synchronized (groupVersions) {
+            if (epoch < groupVersions.epoch) {
+                // From the run before the last reset.
+                staleDropped.incrementAndGet();
+                return;
+            }
+            if (healthSequence > 0) {
+                groupVersions.health = Math.max(groupVersions.health + healthChange, 0.0);
+                groupVersions.setHealth(healthSequence, origin);
+            }
+            applyFood = foodSequence > 0 && groupVersions.setFood(foodSequence, origin);
+        }
+        if (foodSequence > 0 && !applyFood) {
+            staleDropped.incrementAndGet();
+        }
+
+        ShareGroup group = groupManager.getGroup(name);
+        // Members of a group starting its next run are still in the old one;
+        // the new run takes its health from getRunHealth.
+        if (group == null || group.isGeneratingWorld()) return;
+        if (healthSequence > 0) {
+            handler.changeHealth(group, healthChange);
+        }
+        if (applyFood) {
+            handler.applyVitals(group, PendingVitals.Snapshot.of(false, 0, true, foodLevel));
+        }
+    }
+
+    /**
+     * Another server's epoch and health, sent when a connection opens or
+     * catches up. The health replaces this server's if its last change is
+     * newer.
+     */
+    private void receiveEpoch(String name, int epoch, String origin, long healthSequence, String healthOrigin,
+            double health) {
+        clock.accumulateAndGet(healthSequence, Math::max);
+        if (catchUp(name, epoch)) {
+            startReset(name, origin, null);
+        }
+        Versions groupVersions = versionsOf(name);
+        synchronized (groupVersions) {
+            if (epoch != groupVersions.epoch || healthSequence == 0
+                    || !groupVersions.setHealth(healthSequence, healthOrigin)) {
+                return;
+            }
+            groupVersions.health = health;
+        }
+
+        ShareGroup group = groupManager.getGroup(name);
+        if (group == null || group.isGeneratingWorld()) return;
+        handler.applyVitals(group, PendingVitals.Snapshot.of(true, health, false, 0));
+    }
+
+    private void receiveReset(String name, int epoch, String origin, String victim) {
+        if (!catchUp(name, epoch)) {
+            // Started here already, by a death at the same time, an earlier
+            // message or vitals that overtook this reset.
+            staleDropped.incrementAndGet();
+            return;
+        }
+        startReset(name, origin, victim);
+    }
+
+    /**
+     * Moves the group to a newer epoch another server is already in, dropping
+     * changes of the old run still waiting to be sent.
+     *
+     * @return {@code false} if this server is in that epoch, or a later one, already
+     */
+    private boolean catchUp(String name, int epoch) {
+        Versions groupVersions = versionsOf(name);
+        synchronized (groupVersions) {
+            if (epoch <= groupVersions.epoch) return false;
+            groupVersions.startEpoch(epoch);
+        }
+        synchronized (outgoing) {
+            Outgoing pending = outgoing.get(name);
+            if (pending != null && pending.epoch < epoch) {
+                outgoing.remove(name);
+            }
+        }
+        saveEpochs();
+        return true;
+    }
+
+    private void startReset(String name, String origin, String victim) {
+        if (victim == null) {
+            plugin.getLogger().warning(String.format("Group %s missed a reset; %s is in a newer run", name, origin));
+        }
+        ShareGroup group = groupManager.getGroup(name);
+        if (group != null) {
+            handler.reset(group, origin, victim);
+        }
+    }
+
+    private Versions versionsOf(String name) {
+        Versions groupVersions = versions.get(name);
+        if (groupVersions == null) {
+            groupVersions = versions.computeIfAbsent(name, key -> new Versions());
+        }
+        return groupVersions;
+    }
+
+    /**
+     * Caller holds the lock on {@link #outgoing}.
+     *
+     * @return {@code null} while a reset of the group is waiting to be sent;
+     *         vitals set in the tick of the death belong to the old run, and
+     *         every server starts the new one from full health anyway
+     */
+    private Outgoing outgoingOf(String name, int epoch) {
+        Outgoing out = outgoing.get(name);
+        if (out != null && out.victim != null) return null;
+        if (out == null || out.epoch != epoch) {
+            out = new Outgoing(epoch);
+            outgoing.put(name, out);
+        }
+        return out;
+    }
+
+    /**
+     * A group's run, its health in that run and who changed it last, and who
+     * set its food. Guarded by its own monitor.
+     */
+    private static final class Versions {
+
+        /** The run this server is in; only goes up. */
+        private int epoch = 0;
+        private double health = SharedVitals.FULL_HEALTH;
+        private long healthSequence = 0;
+        private String healthOrigin = "";
+        private long foodSequence = 0;
+        private String foodOrigin = "";
+
+        /** Every run starts at full health that nobody changed yet. */
+        private void startEpoch(int epoch) {
+            this.epoch = epoch;
+            health = SharedVitals.FULL_HEALTH;
+            healthSequence = 0;
+            healthOrigin = "";
+        }
+
+        /**
+         * @return whether the change is newer than the one in place, and now in place
+         */
+        private boolean setHealth(long sequence, String origin) {
+            if (!isNewer(sequence, origin, healthSequence, healthOrigin)) return false;
+            healthSequence = sequence;
+            healthOrigin = origin;
+            return true;
+        }
+
+        private boolean setFood(long sequence, String origin) {
+            if (!isNewer(sequence, origin, foodSequence, foodOrigin)) return false;
+            foodSequence = sequence;
+            foodOrigin = origin;
+            return true;
+        }
+
+        private static boolean isNewer(long sequence, String origin, long currentSequence, String currentOrigin) {
+            return sequence > currentSequence || (sequence == currentSequence && origin.compareTo(currentOrigin) > 0);
+        }
+    }
+
+    /** A group's changes waiting for the next batch. */
+    private static final class Outgoing {
+
+        private final int epoch;
+        /** 0 when unchanged. */
+        private long healthSequence = 0;
+        /** The sum of this tick's changes. */
+        private double healthChange = 0;
+        private long foodSequence = 0;
+        private int foodLevel;
+        /** Set when this is a reset rather than vitals. */
+        private String victim;
+
+        private Outgoing(int epoch) {
+            this.epoch = epoch;
+        }
+    }
+
+    /** A group's epoch and health, copied for the batch that announces them. */
+    private static final class Announcement {
+
+        private final int epoch;
+        private final long healthSequence;
+        private final String healthOrigin;
+        private final double health;
+
+        /** Caller holds the lock on {@code versions}. */
+        private Announcement(Versions versions) {
+            this.epoch = versions.epoch;
+            this.healthSequence = versions.healthSequence;
+            this.healthOrigin = versions.healthOrigin;
+            this.health = versions.health;
+        }
+    }
+
+    /** The last batch received from a server. */
+    private static final class Peer {
+
+        private long session;
+        private long batch = 0;
+    }
+}
@@ -0,0 +1,123 @@
+package com.macacomilk.sharedhealth;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.bukkit.entity.Player;
+
+/**
+ * Which of a group's {@link SharedVitals} changed during a single server
+ * tick, and which members caused it. Every damage, heal and hunger event of
+ * the tick only marks its field, so the plugin pushes the group's final
+ * values to each player once.
+ *
+ * <p>Thread-safe: on Folia the group's members are ticked, and fire their
+ * events, on different region threads.
+ */
+final class PendingVitals {
+
+    private boolean healthDirty = false;
+    private final Set<Player> sources = new HashSet<>();
+    private boolean foodDirty = false;
+    private boolean absorptionDirty = false;
+
+    /**
+     * @param source the member who was hurt or healed; vanilla already
+     *               changed their health, so they get no hurt effect
+     */
+    synchronized void markHealth(Player source) {
+        healthDirty = true;
+        sources.add(source);
+    }
+
+    synchronized void markFood() {
+        foodDirty = true;
+    }
+
+    synchronized void markAbsorption() {
+        absorptionDirty = true;
+    }
+
+    /**
+     * Takes everything marked so far, with the current shared values, and
+     * resets for the next tick.
+     */
+    synchronized Snapshot drain(SharedVitals vitals) {
+        Snapshot snapshot = vitals.snapshot(healthDirty, foodDirty, absorptionDirty,
+            healthDirty ? new HashSet<>(sources) : Collections.emptySet());
+        healthDirty = false;
+        sources.clear();
+        foodDirty = false;
+        absorptionDirty = false;
+        return snapshot;
+    }
+
+    /** The vitals of one flush; safe to hand to other threads. */
+    static final class Snapshot {
+        private final boolean hasHealth;
+        private final double health;
+        private final Set<Player> sources;
+        private final boolean hasFood;
+        private final int foodLevel;
+        private final float saturation;
+        private final boolean hasAbsorption;
+        private final double absorption;
+
+        Snapshot(boolean hasHealth, double health, Set<Player> sources, boolean hasFood, int foodLevel,
+                float saturation, boolean hasAbsorption, double absorption) {
+            this.hasHealth = hasHealth;
+            this.health = health;
+            this.sources = sources;
+            this.hasFood = hasFood;
+            this.foodLevel = foodLevel;
+            this.saturation = saturation;
+            this.hasAbsorption = hasAbsorption;
+            this.absorption = absorption;
+        }
+
+        /**
+         * Vitals set elsewhere, such as on another server; nobody here caused them.
+         */
+        static Snapshot of(boolean hasHealth, double health, boolean hasFood, int foodLevel) {
+            return new Snapshot(hasHealth, Math.max(health, 0.0), Collections.emptySet(), hasFood, foodLevel,
+                0f, false, 0);
+        }
+
+        boolean isEmpty() {
+            return !hasHealth && !hasFood && !hasAbsorption;
+        }
+
+        boolean hasHealth() {
+            return hasHealth;
+        }
+
+        double getHealth() {
+            return health;
+        }
+
+        boolean isSource(Player player) {
+            return sources.contains(player);
+        }
+
+        boolean hasFood() {
+            return hasFood;
+        }
+
+        int getFoodLevel() {
+            return foodLevel;
+        }
+
+        float getSaturation() {
+            return saturation;
+        }
+
+        boolean hasAbsorption() {
+            return hasAbsorption;
+        }
+
+        double getAbsorption() {
+            return absorption;
+        }
+    }
+}
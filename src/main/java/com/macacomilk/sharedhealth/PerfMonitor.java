@@ -0,0 +1,330 @@
+package com.macacomilk.sharedhealth;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.bukkit.plugin.Plugin;
+
+/**
+ * Timers and size counters for the plugin's own work: each event handler,
+ * the waiting area's repeating tasks, the phases of a world reset and how
+ * many players each vitals sync writes to.
+ *
+ * <p>Each {@link Metric} keeps a log-linear histogram per 10-second slot for
+ * the last five minutes, so recording is a lock and an array increment and
+ * any window up to five minutes can be summarized with p50, p99 and max.
+ * Quantiles are accurate to within 12.5%. Safe to record from any thread.
+ */
+final class PerfMonitor {
+
+    private static final int SLOT_SECONDS = 10;
+    private static final long SLOT_NANOS = SLOT_SECONDS * 1_000_000_000L;
+    /** Five minutes of complete slots plus the one being filled. */
+    private static final int SLOTS = 31;
+    private static final int SUB_BITS = 3;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+    private static final int EXPORT_WINDOW_SECONDS = 60;
+
+    private final Plugin plugin;
+    private final File exportFile;
+    private final List<Family> families = new ArrayList<>();
+
+    private final Family handlers = family("sharedhealth_handler_seconds",
+        "Time spent in event handlers", "handler", true);
+    final Metric damage = handlers.metric("damage");
+    final Metric heal = handlers.metric("heal");
+    final Metric hunger = handlers.metric("hunger");
+    final Metric death = handlers.metric("death");
+    final Metric join = handlers.metric("join");
+    final Metric quit = handlers.metric("quit");
+    final Metric tickEnd = handlers.metric("tick_end");
+
+    private final Family tasks = family("sharedhealth_task_seconds",
+        "Time spent in repeating tasks", "task", true);
+    final Metric waitingAreaTask = tasks.metric("waiting_area");
+    final Metric ambientSoundTask = tasks.metric("ambient_sounds");
+    final Metric reconcileTask = tasks.metric("reconcile");
+
+    private final Family reset = family("sharedhealth_reset_seconds",
+        "Time spent in each phase of a world reset; create and teleport are wall time until the world is ready"
+            + " and everyone has arrived", "phase", true);
+    final Metric resetCreate = reset.metric("create");
+    final Metric resetTeleport = reset.metric("teleport");
+    final Metric resetCleanup = reset.metric("cleanup");
+
+    private final Family fanout = family("sharedhealth_sync_fanout_players",
+        "Players written to by each vitals sync", "sync", false);
+    final Metric flushFanout = fanout.metric("flush");
+    final Metric healthFanout = fanout.metric("health");
+    final Metric hungerFanout = fanout.metric("hunger");
+
+    /**
+     * @param exportFile where {@link #export()} writes, or {@code null} to never export
+     */
+    PerfMonitor(Plugin plugin, File exportFile) {
+        this.plugin = plugin;
+        this.exportFile = exportFile;
+    }
+
+    private Family family(String name, String help, String label, boolean nanos) {
+        Family family = new Family(name, help, label, nanos);
+        families.add(family);
+        return family;
+    }
+
+    List<Family> getFamilies() {
+        return Collections.unmodifiableList(families);
+    }
+
+    /**
+     * Writes every metric to the export file in the Prometheus text format,
+     * with quantiles over the last minute, replacing the file atomically so a
+     * scrape never reads half of it. Blocks on disk; run it off the main thread.
+     */
+    void export() {
+        if (exportFile == null) return;
+
+        StringBuilder out = new StringBuilder(4096);
+        for (Family family : families) {
+            family.export(out);
+        }
+
+        Path target = exportFile.toPath();
+        Path temp = target.resolveSibling(exportFile.getName() + ".tmp");
+        try {
+            Files.createDirectories(target.toAbsolutePath().getParent());
+            Files.write(temp, out.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            plugin.getLogger().warning(String.format("Failed to export metrics: %s", e.getMessage()));
+        }
+    }
+
+    static int bucket(long value) {
+        if (value < SUB_COUNT) return (int) Math.max(0, value);
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    static long bucketUpperBound(int index) {
+        if (index < SUB_COUNT) return index;
+        int shift = index / SUB_COUNT - 1;
+        long lower = (long) (SUB_COUNT + index % SUB_COUNT) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    /** Metrics that share a name and unit and differ in one label. */
+    static final class Family {
+
+        private final String name;
+        private final String help;
+        private final String label;
+        private final boolean nanos;
+        private final List<Metric> metrics = new ArrayList<>();
+
+        private Family(String name, String help, String label, boolean nanos) {
+            this.name = name;
+            this.help = help;
+            this.label = label;
+            this.nanos = nanos;
+        }
+
+        private Metric metric(String labelValue) {
+            Metric metric = new Metric(this, labelValue);
+            metrics.add(metric);
+            return metric;
+        }
+
+        String getLabel() {
+            return label;
+        }
+
+        /** Whether values are durations in nanoseconds rather than plain counts. */
+        boolean isNanos() {
+            return nanos;
+        }
+
+        List<Metric> getMetrics() {
+            return Collections.unmodifiableList(metrics);
+        }
+
+        private void export(StringBuilder out) {
+            double scale = nanos ? 1e-9 : 1.0;
+            out.append("# HELP ").append(name).append(' ').append(help)
+                .append(", quantiles over the last ").append(EXPORT_WINDOW_SECONDS).append(" seconds\n");
+            out.append("# TYPE ").append(name).append(" summary\n");
+            List<Summary> summaries = new ArrayList<>(metrics.size());
+            for (Metric metric : metrics) {
+                Summary summary = metric.summarize(EXPORT_WINDOW_SECONDS);
+                summaries.add(summary);
+                String labels = label + "=\"" + metric.labelValue + "\"";
+                sample(out, name, labels + ",quantile=\"0.5\"", Double.toString(summary.getP50() * scale));
+                sample(out, name, labels + ",quantile=\"0.99\"", Double.toString(summary.getP99() * scale));
+                sample(out, name + "_sum", labels, Double.toString(summary.getLifetimeSum() * scale));
+                sample(out, name + "_count", labels, Long.toString(summary.getLifetimeCount()));
+            }
+
+            out.append("# HELP ").append(name).append("_max ").append(help)
+                .append(", maximum over the last ").append(EXPORT_WINDOW_SECONDS).append(" seconds\n");
+            out.append("# TYPE ").append(name).append("_max gauge\n");
+            for (int i = 0; i < metrics.size(); i++) {
+                String labels = label + "=\"" + metrics.get(i).labelValue + "\"";
+                sample(out, name + "_max", labels, Double.toString(summaries.get(i).getMax() * scale));
+            }
+        }
+
+        private static void sample(StringBuilder out, String name, String labels, String value) {
+            out.append(name).append('{').append(labels).append("} ").append(value).append('\n');
+        }
+    }
+
+    /**
+     * One timer or size distribution. Guarded by its own monitor.
+     */
+    static final class Metric {
+
+        private final Family family;
+        private final String labelValue;
+
+        private final int[][] counts = new int[SLOTS][];
+        private final long[] slotEpochs = new long[SLOTS];
+        private final long[] slotMax = new long[SLOTS];
+        private long lifetimeCount;
+        private long lifetimeSum;
+
+        private Metric(Family family, String labelValue) {
+            this.family = family;
+            this.labelValue = labelValue;
+            Arrays.fill(slotEpochs, Long.MIN_VALUE);
+        }
+
+        String getLabelValue() {
+            return labelValue;
+        }
+
+        Family getFamily() {
+            return family;
+        }
+
+        /**
+         * Records the time since {@code startedNanos}, a {@link System#nanoTime()} reading.
+         */
+        void recordSince(long startedNanos) {
+            long now = System.nanoTime();
+            record(now, now - startedNanos);
+        }
+
+        void record(long value) {
+            record(System.nanoTime(), value);
+        }
+
+        private synchronized void record(long now, long value) {
+            long epoch = now / SLOT_NANOS;
+            int slot = (int) Math.floorMod(epoch, (long) SLOTS);
+            int[] slotCounts = counts[slot];
+            if (slotCounts == null) {
+                slotCounts = new int[BUCKETS];
+                counts[slot] = slotCounts;
+            }
+            if (slotEpochs[slot] != epoch) {
+                Arrays.fill(slotCounts, 0);
+                slotEpochs[slot] = epoch;
+                slotMax[slot] = 0;
+            }
+
+            slotCounts[bucket(value)]++;
+            slotMax[slot] = Math.max(slotMax[slot], value);
+            lifetimeCount++;
+            lifetimeSum += value;
+        }
+
+        /**
+         * Summarizes the slot being filled and the complete slots before it
+         * that make up {@code windowSeconds}, so the window is up to one slot
+         * longer than asked for.
+         */
+        synchronized Summary summarize(int windowSeconds) {
+            long current = System.nanoTime() / SLOT_NANOS;
+            long oldest = current - Math.min(SLOTS - 1, Math.max(1, windowSeconds / SLOT_SECONDS));
+            long[] merged = new long[BUCKETS];
+            long count = 0;
+            long max = 0;
+            for (int slot = 0; slot < SLOTS; slot++) {
+                long epoch = slotEpochs[slot];
+                if (counts[slot] == null || epoch < oldest || epoch > current) continue;
+                for (int i = 0; i < BUCKETS; i++) {
+                    merged[i] += counts[slot][i];
+                    count += counts[slot][i];
+                }
+                max = Math.max(max, slotMax[slot]);
+            }
+            return new Summary(count, quantile(merged, count, 0.50, max), quantile(merged, count, 0.99, max),
+                max, lifetimeCount, lifetimeSum);
+        }
+
+        private static long quantile(long[] merged, long count, double quantile, long max) {
+            if (count == 0) return 0;
+            long rank = (long) Math.ceil(quantile * count);
+            long seen = 0;
+            for (int i = 0; i < merged.length; i++) {
+                seen += merged[i];
+                if (seen >= rank) return Math.min(bucketUpperBound(i), max);
+            }
+            return max;
+        }
+    }
+
+    /** A metric over one window, plus its lifetime totals. */
+    static final class Summary {
+
+        private final long count;
+        private final long p50;
+        private final long p99;
+        private final long max;
+        private final long lifetimeCount;
+        private final long lifetimeSum;
+
+        private Summary(long count, long p50, long p99, long max, long lifetimeCount, long lifetimeSum) {
+            this.count = count;
+            this.p50 = p50;
+            this.p99 = p99;
+            this.max = max;
+            this.lifetimeCount = lifetimeCount;
+            this.lifetimeSum = lifetimeSum;
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        long getP50() {
+            return p50;
+        }
+
+        long getP99() {
+            return p99;
+        }
+
+        long getMax() {
+            return max;
+        }
+
+        long getLifetimeCount() {
+            return lifetimeCount;
+        }
+
+        long getLifetimeSum() {
+            return lifetimeSum;
+        }
+    }
+}
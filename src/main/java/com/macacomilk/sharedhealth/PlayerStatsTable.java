@@ -0,0 +1,130 @@
+package com.macacomilk.sharedhealth;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Per-player death and damage totals stored in parallel primitive arrays.
+ *
+ * <p>Entries are appended densely and never move, so an entry index is a
+ * stable handle for a player. UUIDs are kept as their two {@code long}
+ * halves and looked up through an open-addressing index, which avoids the
+ * boxing of a {@code Map<UUID, Integer>}.
+ *
+ * <p>Not thread-safe.
+ */
+final class PlayerStatsTable {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private long[] mostBits = new long[INITIAL_CAPACITY];
+    private long[] leastBits = new long[INITIAL_CAPACITY];
+    private int[] deaths = new int[INITIAL_CAPACITY];
+    private double[] damage = new double[INITIAL_CAPACITY];
+    private int size = 0;
+
+    /** Open-addressing slots holding {@code entry + 1}, {@code 0} when empty. */
+    private int[] slots = new int[INITIAL_CAPACITY * 2];
+
+    int size() {
+        return size;
+    }
+
+    int indexOf(UUID uuid) {
+        return indexOf(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+
+    int indexOf(long most, long least) {
+        int mask = slots.length - 1;
+        for (int slot = hash(most, least) & mask; ; slot = (slot + 1) & mask) {
+            int entry = slots[slot] - 1;
+            if (entry < 0) return -1;
+            if (mostBits[entry] == most && leastBits[entry] == least) return entry;
+        }
+    }
+
+    int getOrCreate(UUID uuid) {
+        return getOrCreate(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+
+    int getOrCreate(long most, long least) {
+        int mask = slots.length - 1;
+        int slot = hash(most, least) & mask;
+        for (; ; slot = (slot + 1) & mask) {
+            int entry = slots[slot] - 1;
+            if (entry < 0) break;
+            if (mostBits[entry] == most && leastBits[entry] == least) return entry;
+        }
+
+        if (size == mostBits.length) {
+            int capacity = size * 2;
+            mostBits = Arrays.copyOf(mostBits, capacity);
+            leastBits = Arrays.copyOf(leastBits, capacity);
+            deaths = Arrays.copyOf(deaths, capacity);
+            damage = Arrays.copyOf(damage, capacity);
+        }
+
+        int entry = size++;
+        mostBits[entry] = most;
+        leastBits[entry] = least;
+        if (size * 2 > slots.length) {
+            rehash(slots.length * 2);
+        } else {
+            slots[slot] = entry + 1;
+        }
+        return entry;
+    }
+
+    private void rehash(int capacity) {
+        slots = new int[capacity];
+        int mask = capacity - 1;
+        for (int entry = 0; entry < size; entry++) {
+            int slot = hash(mostBits[entry], leastBits[entry]) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = entry + 1;
+        }
+    }
+
+    private static int hash(long most, long least) {
+        long h = most ^ (least * 0x9E3779B97F4A7C15L);
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    UUID uuid(int entry) {
+        return new UUID(mostBits[entry], leastBits[entry]);
+    }
+
+    long mostBits(int entry) {
+        return mostBits[entry];
+    }
+
+    long leastBits(int entry) {
+        return leastBits[entry];
+    }
+
+    int deaths(int entry) {
+        return deaths[entry];
+    }
+
+    double damage(int entry) {
+        return damage[entry];
+    }
+
+    int addDeaths(int entry, int delta) {
+        return deaths[entry] += delta;
+    }
+
+    double addDamage(int entry, double delta) {
+        return damage[entry] += delta;
+    }
+
+    void set(int entry, int deathCount, double damageTaken) {
+        deaths[entry] = deathCount;
+        damage[entry] = damageTaken;
+    }
+}
@@ -0,0 +1,58 @@
+package com.macacomilk.sharedhealth;
+
+import java.util.UUID;
+
+/**
+ * Death and damage rankings over one {@link PlayerStatsTable}, kept up to date
+ * as the table changes. Used for the persisted all-time table and for each
+ * group's per-run table.
+ *
+ * <p>The table and both boards are guarded by this object's monitor. Reads
+ * that span several calls, like rendering a page, must hold it too.
+ */
+final class RankedStats {
+
+    private final PlayerStatsTable table;
+    private final Leaderboard deaths = new Leaderboard();
+    private final Leaderboard damage = new Leaderboard();
+
+    RankedStats(PlayerStatsTable table) {
+        this.table = table;
+        for (int entry = 0; entry < table.size(); entry++) {
+            deaths.update(entry, table.deaths(entry));
+            damage.update(entry, table.damage(entry));
+        }
+    }
+
+    /**
+     * @return the player's entry in {@link #table()}
+     */
+    synchronized int recordDeath(UUID uuid) {
+        int entry = table.getOrCreate(uuid);
+        table.addDeaths(entry, 1);
+        deaths.update(entry, table.deaths(entry));
+        return entry;
+    }
+
+    /**
+     * @return the player's entry in {@link #table()}
+     */
+    synchronized int recordDamage(UUID uuid, double amount) {
+        int entry = table.getOrCreate(uuid);
+        table.addDamage(entry, amount);
+        damage.update(entry, table.damage(entry));
+        return entry;
+    }
+
+    PlayerStatsTable table() {
+        return table;
+    }
+
+    Leaderboard deaths() {
+        return deaths;
+    }
+
+    Leaderboard damage() {
+        return damage;
+    }
+}
@@ -0,0 +1,607 @@
+package com.macacomilk.sharedhealth;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.World;
+import org.bukkit.event.entity.EntityDamageEvent.DamageCause;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * Records every run of every group: its world and seed, when it started and
+ * ended, who died to what and how much damage each player took from each
+ * cause.
+ *
+ * <p>Damage is added to a {@code double[]} per player indexed by cause
+ * ordinal, so recording a hit allocates nothing. A run ends when its group
+ * moves to the next world, or when the server stops. Finished runs are
+ * folded into running totals for the {@code runs} and {@code causes}
+ * commands and appended by a writer thread to {@code runs/runs-<n>.log},
+ * starting a new file every {@code runsPerFile} runs and deleting the oldest
+ * beyond {@code maxFiles}. Startup rebuilds the totals from those files.
+ *
+ * <p>Cause names rather than ordinals are stored, so the files stay readable
+ * when the server adds damage causes. Safe to record from any thread.
+ */
+final class RunAnalytics {
+
+    private static final int MAGIC = 0x5348524E;
+    private static final int VERSION = 1;
+    private static final String DIRECTORY = "runs";
+    private static final String LOG_PREFIX = "runs-";
+    private static final String LOG_SUFFIX = ".log";
+    private static final int RECENT_RUNS = 10;
+    private static final DamageCause[] CAUSES = DamageCause.values();
+
+    private final Plugin plugin;
+    private final Path folder;
+    private final int runsPerFile;
+    private final int maxFiles;
+    private final Map<ShareGroup, Run> active = new ConcurrentHashMap<>();
+
+    /** Totals over the runs on disk at startup and every run since. Guarded by {@code this}. */
+    private int runCount = 0;
+    private long totalDurationMillis = 0;
+    private final double[] causeDamage = new double[CAUSES.length];
+    private final int[] causeDeaths = new int[CAUSES.length];
+    private final Deque<RunSummary> recent = new ArrayDeque<>();
+
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "SharedHealth-RunWriter");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /** Writer thread only. */
+    private FileChannel log;
+    private long generation = 0;
+    private int runsInLog = 0;
+
+    RunAnalytics(Plugin plugin, File dataFolder, int runsPerFile, int maxFiles) {
+        this.plugin = plugin;
+        this.folder = dataFolder.toPath().resolve(DIRECTORY);
+        this.runsPerFile = Math.max(1, runsPerFile);
+        this.maxFiles = Math.max(1, maxFiles);
+    }
+
+    /**
+     * Rebuilds the totals from the run files. Call once before use.
+     */
+    void load() throws IOException {
+        Files.createDirectories(folder);
+        long started = System.currentTimeMillis();
+        List<Long> generations = listGenerations();
+        for (long logGeneration : generations) {
+            try {
+                runsInLog = readLog(logFile(logGeneration));
+                generation = logGeneration;
+            } catch (IOException e) {
+                // Keep it for inspection, and never append to it.
+                plugin.getLogger().warning(String.format("Skipping unreadable run file: %s", e.getMessage()));
+                runsInLog = 0;
+                generation = logGeneration + 1;
+            }
+        }
+        log = openLog(generation);
+        plugin.getLogger().info(String.format("Loaded %d runs in %d ms", runCount,
+            System.currentTimeMillis() - started));
+    }
+
+    /**
+     * Ends the group's current run and starts one in {@code world}.
+     */
+    void startRun(ShareGroup group, World world) {
+        Run previous = active.put(group, new Run(group.getName(), world));
+        if (previous != null) {
+            finish(previous);
+        }
+    }
+
+    void recordDamage(ShareGroup group, UUID uuid, DamageCause cause, double amount) {
+        Run run = runOf(group);
+        synchronized (run) {
+            PlayerRun player = run.player(uuid);
+            player.damage[cause.ordinal()] += amount;
+            player.lastCause = cause;
+        }
+    }
+
+    /**
+     * Counts a death towards the last cause the player took damage from. The
+     * first death of a run is when it ended.
+     */
+    void recordDeath(ShareGroup group, UUID uuid) {
+        Run run = runOf(group);
+        synchronized (run) {
+            PlayerRun player = run.player(uuid);
+            run.deaths.add(new Death(uuid, player.lastCause));
+            if (run.endedAt == 0) {
+                run.endedAt = System.currentTimeMillis();
+            }
+        }
+    }
+
+    /**
+     * Groups created after startup, and every group until its first reset,
+     * run in the world they are in.
+     */
+    private Run runOf(ShareGroup group) {
+        Run run = active.get(group);
+        if (run == null) {
+            run = active.computeIfAbsent(group, key -> new Run(key.getName(), key.getCurrentWorld()));
+        }
+        return run;
+    }
+
+    /**
+     * Ends every run still going, and waits for the writer. Called on disable.
+     */
+    void close() {
+        for (Run run : active.values()) {
+            finish(run);
+        }
+        active.clear();
+        writer.execute(() -> {
+            try {
+                log.close();
+            } catch (IOException e) {
+                plugin.getLogger().warning(String.format("Failed to close run log: %s", e.getMessage()));
+            }
+        });
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(10, TimeUnit.SECONDS)) {
+                plugin.getLogger().severe("Timed out waiting for runs to be written");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void finish(Run run) {
+        byte[] record;
+        synchronized (run) {
+            // A restart or a reset right after one; nothing happened worth keeping.
+            if (run.players.isEmpty()) return;
+            if (run.endedAt == 0) {
+                run.endedAt = System.currentTimeMillis();
+            }
+            record = encode(run);
+        }
+        try {
+            add(new DataInputStream(new ByteArrayInputStream(record)));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        writer.execute(() -> append(record));
+    }
+
+    synchronized List<RunSummary> getRecentRuns() {
+        return new ArrayList<>(recent);
+    }
+
+    synchronized int getRunCount() {
+        return runCount;
+    }
+
+    synchronized long getAverageDurationMillis() {
+        return runCount == 0 ? 0 : totalDurationMillis / runCount;
+    }
+
+    /**
+     * Every cause that did damage or killed someone, most damage first.
+     */
+    synchronized List<CauseTotal> getCauses() {
+        List<CauseTotal> causes = new ArrayList<>();
+        for (int i = 0; i < CAUSES.length; i++) {
+            if (causeDamage[i] > 0 || causeDeaths[i] > 0) {
+                causes.add(new CauseTotal(CAUSES[i], causeDamage[i], causeDeaths[i]));
+            }
+        }
+        causes.sort((a, b) -> Double.compare(b.damage, a.damage));
+        return causes;
+    }
+
+    /**
+     * Length-prefixed, so a record torn by a crash is recognised and skipped.
+     */
+    private static byte[] encode(Run run) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(0);
+            out.writeUTF(run.group);
+            out.writeUTF(run.world);
+            out.writeLong(run.seed);
+            out.writeLong(run.startedAt);
+            out.writeLong(run.endedAt);
+            out.writeInt(run.deaths.size());
+            for (Death death : run.deaths) {
+                out.writeLong(death.uuid.getMostSignificantBits());
+                out.writeLong(death.uuid.getLeastSignificantBits());
+                out.writeUTF(death.cause == null ? "" : death.cause.name());
+            }
+            out.writeInt(run.players.size());
+            for (Map.Entry<UUID, PlayerRun> entry : run.players.entrySet()) {
+                double[] damage = entry.getValue().damage;
+                int causes = 0;
+                for (double amount : damage) {
+                    if (amount > 0) causes++;
+                }
+                out.writeLong(entry.getKey().getMostSignificantBits());
+                out.writeLong(entry.getKey().getLeastSignificantBits());
+                out.writeInt(causes);
+                for (int i = 0; i < damage.length; i++) {
+                    if (damage[i] > 0) {
+                        out.writeUTF(CAUSES[i].name());
+                        out.writeDouble(damage[i]);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // ByteArrayOutputStream does not throw.
+            throw new IllegalStateException(e);
+        }
+        byte[] record = bytes.toByteArray();
+        ByteBuffer.wrap(record).putInt(0, record.length - Integer.BYTES);
+        return record;
+    }
+
+    /**
+     * Folds one record, without its length, into the totals.
+     */
+    private synchronized void add(DataInputStream in) throws IOException {
+        if (in.readInt() < 0) throw new IOException("Negative run record length");
+        String group = in.readUTF();
+        String world = in.readUTF();
+        long seed = in.readLong();
+        long startedAt = in.readLong();
+        long endedAt = in.readLong();
+
+        int deaths = in.readInt();
+        UUID firstDeath = null;
+        DamageCause firstCause = null;
+        for (int i = 0; i < deaths; i++) {
+            UUID uuid = new UUID(in.readLong(), in.readLong());
+            DamageCause cause = causeNamed(in.readUTF());
+            if (i == 0) {
+                firstDeath = uuid;
+                firstCause = cause;
+            }
+            if (cause != null) {
+                causeDeaths[cause.ordinal()]++;
+            }
+        }
+
+        double total = 0;
+        double[] runDamage = new double[CAUSES.length];
+        int players = in.readInt();
+        for (int i = 0; i < players; i++) {
+            in.readLong();
+            in.readLong();
+            int causes = in.readInt();
+            for (int j = 0; j < causes; j++) {
+                DamageCause cause = causeNamed(in.readUTF());
+                double amount = in.readDouble();
+                total += amount;
+                if (cause != null) {
+                    runDamage[cause.ordinal()] += amount;
+                    causeDamage[cause.ordinal()] += amount;
+                }
+            }
+        }
+
+        DamageCause topCause = null;
+        for (int i = 0; i < runDamage.length; i++) {
+            if (runDamage[i] > 0 && (topCause == null || runDamage[i] > runDamage[topCause.ordinal()])) {
+                topCause = CAUSES[i];
+            }
+        }
+
+        long duration = Math.max(0, endedAt - startedAt);
+        runCount++;
+        totalDurationMillis += duration;
+        recent.addFirst(new RunSummary(group, world, seed, startedAt, duration, deaths, firstDeath, firstCause,
+            total, topCause));
+        if (recent.size() > RECENT_RUNS) {
+            recent.removeLast();
+        }
+    }
+
+    private static DamageCause causeNamed(String name) {
+        if (name.isEmpty()) return null;
+        try {
+            return DamageCause.valueOf(name);
+        } catch (IllegalArgumentException e) {
+            // Removed from the server since it was recorded.
+            return null;
+        }
+    }
+
+    /**
+     * @return the number of complete runs in the file
+     */
+    private int readLog(Path file) throws IOException {
+        int runs = 0;
+        long size = Files.size(file);
+        long position = 2 * Integer.BYTES;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a run log: " + file.getFileName());
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException(String.format("Unsupported run log version %d in %s", version, file.getFileName()));
+            }
+            while (true) {
+                byte[] record;
+                try {
+                    int length = in.readInt();
+                    long next = position + Integer.BYTES + length;
+                    // Same rule as validLength: a bad length means the rest is torn.
+                    if (length < 0 || next > size) break;
+                    position = next;
+                    record = new byte[Integer.BYTES + length];
+                    ByteBuffer.wrap(record).putInt(length);
+                    in.readFully(record, Integer.BYTES, length);
+                } catch (EOFException e) {
+                    break;
+                }
+                add(new DataInputStream(new ByteArrayInputStream(record)));
+                runs++;
+            }
+        } catch (EOFException e) {
+            // A file that ends inside its header holds no runs.
+        }
+        return runs;
+    }
+
+    private void append(byte[] record) {
+        try {
+            if (runsInLog >= runsPerFile) {
+                roll();
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            while (buffer.hasRemaining()) {
+                log.write(buffer);
+            }
+            log.force(false);
+            runsInLog++;
+        } catch (IOException e) {
+            plugin.getLogger().severe(String.format("Failed to write run: %s", e.getMessage()));
+        }
+    }
+
+    private void roll() throws IOException {
+        log.close();
+        generation++;
+        runsInLog = 0;
+        log = openLog(generation);
+        for (long old : listGenerations()) {
+            if (old <= generation - maxFiles) {
+                Files.deleteIfExists(logFile(old));
+            }
+        }
+    }
+
+    /**
+     * Opens a log for appending, writing the header if it is new and
+     * dropping a record torn by a crash.
+     */
+    private FileChannel openLog(long logGeneration) throws IOException {
+        Path file = logFile(logGeneration);
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+        long valid = validLength(channel);
+        channel.truncate(valid);
+        channel.position(valid);
+        if (valid == 0) {
+            ByteBuffer header = ByteBuffer.allocate(2 * Integer.BYTES).putInt(MAGIC).putInt(VERSION);
+            header.flip();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+        }
+        return channel;
+    }
+
+    private static long validLength(FileChannel channel) throws IOException {
+        long size = channel.size();
+        long position = 2 * Integer.BYTES;
+        if (size < position) return 0;
+        ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+        while (position + Integer.BYTES <= size) {
+            length.clear();
+            channel.read(length, position);
+            int recordLength = length.getInt(0);
+            long next = position + Integer.BYTES + recordLength;
+            if (recordLength < 0 || next > size) break;
+            position = next;
+        }
+        return position;
+    }
+
+    private Path logFile(long logGeneration) {
+        return folder.resolve(LOG_PREFIX + logGeneration + LOG_SUFFIX);
+    }
+
+    private List<Long> listGenerations() throws IOException {
+        List<Long> generations = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder, LOG_PREFIX + "*" + LOG_SUFFIX)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                try {
+                    generations.add(Long.parseLong(
+                        name.substring(LOG_PREFIX.length(), name.length() - LOG_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    plugin.getLogger().warning(String.format("Ignoring unexpected run file %s", name));
+                }
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+
+    /** A group's run in progress. Guarded by its own monitor. */
+    private static final class Run {
+
+        private final String group;
+        private final String world;
+        private final long seed;
+        private final long startedAt = System.currentTimeMillis();
+        /** 0 while nobody has died. */
+        private long endedAt = 0;
+        private final Map<UUID, PlayerRun> players = new HashMap<>();
+        private final List<Death> deaths = new ArrayList<>();
+
+        private Run(String group, World world) {
+            this.group = group;
+            this.world = world.getName();
+            this.seed = world.getSeed();
+        }
+
+        private PlayerRun player(UUID uuid) {
+            PlayerRun player = players.get(uuid);
+            if (player == null) {
+                player = new PlayerRun();
+                players.put(uuid, player);
+            }
+            return player;
+        }
+    }
+
+    private static final class PlayerRun {
+        private final double[] damage = new double[CAUSES.length];
+        private DamageCause lastCause;
+    }
+
+    private static final class Death {
+        private final UUID uuid;
+        private final DamageCause cause;
+
+        private Death(UUID uuid, DamageCause cause) {
+            this.uuid = uuid;
+            this.cause = cause;
+        }
+    }
+
+    /** A finished run, as listed by {@code /sharedhealth runs}. */
+    static final class RunSummary {
+
+        private final String group;
+        private final String world;
+        private final long seed;
+        private final long startedAt;
+        private final long durationMillis;
+        private final int deaths;
+        private final UUID firstDeath;
+        private final DamageCause firstDeathCause;
+        private final double damage;
+        private final DamageCause topCause;
+
+        private RunSummary(String group, String world, long seed, long startedAt, long durationMillis, int deaths,
+                UUID firstDeath, DamageCause firstDeathCause, double damage, DamageCause topCause) {
+            this.group = group;
+            this.world = world;
+            this.seed = seed;
+            this.startedAt = startedAt;
+            this.durationMillis = durationMillis;
+            this.deaths = deaths;
+            this.firstDeath = firstDeath;
+            this.firstDeathCause = firstDeathCause;
+            this.damage = damage;
+            this.topCause = topCause;
+        }
+
+        String getGroup() {
+            return group;
+        }
+
+        String getWorld() {
+            return world;
+        }
+
+        long getSeed() {
+            return seed;
+        }
+
+        long getStartedAt() {
+            return startedAt;
+        }
+
+        long getDurationMillis() {
+            return durationMillis;
+        }
+
+        int getDeaths() {
+            return deaths;
+        }
+
+        /** Whose death ended the run, or {@code null} if the server stopped first. */
+        UUID getFirstDeath() {
+            return firstDeath;
+        }
+
+        /** {@code null} if unknown. */
+        DamageCause getFirstDeathCause() {
+            return firstDeathCause;
+        }
+
+        double getDamage() {
+            return damage;
+        }
+
+        /** The cause that did the most damage, or {@code null} if nobody was hurt. */
+        DamageCause getTopCause() {
+            return topCause;
+        }
+    }
+
+    /** Everything one cause did over all runs on disk. */
+    static final class CauseTotal {
+
+        private final DamageCause cause;
+        private final double damage;
+        private final int deaths;
+
+        private CauseTotal(DamageCause cause, double damage, int deaths) {
+            this.cause = cause;
+            this.damage = damage;
+            this.deaths = deaths;
+        }
+
+        DamageCause getCause() {
+            return cause;
+        }
+
+        double getDamage() {
+            return damage;
+        }
+
+        int getDeaths() {
+            return deaths;
+        }
+    }
+}
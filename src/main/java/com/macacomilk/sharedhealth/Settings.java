@@ -0,0 +1,230 @@
+package com.macacomilk.sharedhealth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+/**
+ * An immutable, validated snapshot of {@code config.yml}. The plugin swaps in
+ * a new one on {@code /sharedhealth reload}, so event handlers read plain
+ * final fields of whichever snapshot is current instead of looking values up
+ * in the configuration.
+ */
+final class Settings {
+
+    final String defaultGroup;
+
+    final boolean batchSync;
+    /** Tell each group who took damage from what; see {@link DamageFeed}. */
+    final boolean damageFeed;
+    final boolean damageFeedActionBar;
+    final long damageFeedWindowTicks;
+    final int damageFeedMaxLines;
+    /** Saturation every member gets when the shared hunger changes or a run starts. */
+    final float saturation;
+    /** Ticks between checks that members still match the shared vitals; 0 to never check. */
+    final long reconcileTicks;
+
+    /** How far from the centre of the waiting platform players may walk. */
+    final int waitingAreaBound;
+    final long waitingStateTicks;
+    final long ambientSoundTicks;
+
+    final int poolSize;
+    final int preloadRadius;
+    final int preloadConcurrency;
+
+    final boolean templatesEnabled;
+    final int templatesSize;
+    final int templatesMaxUses;
+
+    final int teleportsPerTick;
+    final int spreadSpacing;
+    final int spreadRadius;
+    final int spawnSearchRadius;
+    final int spawnMaxStep;
+
+    final int reaperRetain;
+    final long reaperMaxRetainedBytes;
+    final int reaperMaxAttempts;
+    /** Ticks an old world stays loaded after a reset before it is unloaded. */
+    final long reaperUnloadDelayTicks;
+
+    final long statsFlushTicks;
+    final int compactAfterRecords;
+
+    final boolean traceOnEnable;
+
+    final int runsPerFile;
+    final int runsMaxFiles;
+
+    /** Share vitals and resets with other servers; see {@link NetworkSync}. */
+    final boolean networkEnabled;
+    final String networkServerId;
+    final String networkRole;
+    final String networkHost;
+    final int networkPort;
+
+    /** 0 to never export. */
+    final long perfExportTicks;
+    final String perfExportFile;
+
+    private Settings(ConfigurationSection config, boolean folia, List<String> errors) {
+        defaultGroup = string(config, "groups.default", "default", errors);
+
+        // Immediate syncs write every member from the event's thread, which
+        // Folia does not allow for players in other regions.
+        batchSync = folia || bool(config, "sync.batch-per-tick", true, errors);
+        damageFeed = bool(config, "damage-feed.enabled", true, errors);
+        damageFeedActionBar = choice(config, "damage-feed.display", "chat", errors, "chat", "action-bar")
+            .equals("action-bar");
+        damageFeedWindowTicks = number(config, "damage-feed.window-ticks", 20, 1, 1200, errors);
+        damageFeedMaxLines = (int) number(config, "damage-feed.max-lines", 3, 1, 50, errors);
+        saturation = (float) decimal(config, "vitals.saturation", 5, 0, 20, errors);
+        reconcileTicks = number(config, "vitals.reconcile-interval-seconds", 30, 0, 3600, errors) * 20L;
+
+        waitingAreaBound = (int) number(config, "waiting-area.bound", 7, 0, 7, errors);
+        waitingStateTicks = number(config, "waiting-area.state-interval-ticks", 20, 1, 1200, errors);
+        ambientSoundTicks = number(config, "waiting-area.ambient-sound-interval-ticks", 100, 1, 12000, errors);
+
+        poolSize = (int) number(config, "world-pool.size", 1, 0, 16, errors);
+        preloadRadius = (int) number(config, "world-pool.preload-radius", 4, 0, 32, errors);
+        preloadConcurrency = (int) number(config, "world-pool.preload-concurrency", 8, 1, 256, errors);
+
+        templatesEnabled = bool(config, "world-templates.enabled", false, errors);
+        templatesSize = (int) number(config, "world-templates.size", 2, 0, 16, errors);
+        templatesMaxUses = (int) number(config, "world-templates.max-uses", 5, 1, 1000, errors);
+
+        teleportsPerTick = (int) number(config, "transition.teleports-per-tick", 5, 1, 1000, errors);
+        spreadSpacing = (int) number(config, "transition.spread-spacing", 2, 1, 16, errors);
+        spreadRadius = (int) number(config, "transition.spread-radius", 8, 0, 64, errors);
+
+        spawnSearchRadius = (int) number(config, "spawn-finder.search-radius", 4, 0, 16, errors);
+        spawnMaxStep = (int) number(config, "spawn-finder.max-height-difference", 2, 0, 16, errors);
+
+        reaperRetain = (int) number(config, "world-reaper.retain", 1, 0, 100, errors);
+        reaperMaxRetainedBytes = number(config, "world-reaper.max-retained-mb", 2048, 0, 1 << 24, errors) << 20;
+        reaperMaxAttempts = (int) number(config, "world-reaper.max-attempts", 3, 1, 20, errors);
+        reaperUnloadDelayTicks = number(config, "world-reaper.unload-delay-ticks", 200, 0, 12000, errors);
+
+        statsFlushTicks = number(config, "stats.flush-interval-seconds", 5, 1, 3600, errors) * 20L;
+        compactAfterRecords = (int) number(config, "stats.compact-after-records", 50000, 1, 10_000_000, errors);
+
+        traceOnEnable = bool(config, "trace.record-on-enable", false, errors);
+
+        runsPerFile = (int) number(config, "runs.runs-per-file", 100, 1, 100_000, errors);
+        runsMaxFiles = (int) number(config, "runs.max-files", 10, 1, 1000, errors);
+
+        networkEnabled = bool(config, "network.enabled", false, errors);
+        networkServerId = string(config, "network.server-id", "auto", errors);
+        networkRole = choice(config, "network.role", "client", errors, "hub", "client");
+        networkHost = string(config, "network.host", "127.0.0.1", errors);
+        networkPort = (int) number(config, "network.port", 25590, 1, 65535, errors);
+
+        perfExportTicks = number(config, "perf.export-interval-seconds", 15, 0, 3600, errors) * 20L;
+        perfExportFile = string(config, "perf.export-file", "sharedhealth.prom", errors);
+    }
+
+    /**
+     * Reads every setting. Invalid values are reported in {@code errors} and
+     * replaced by their defaults, so the result is always usable.
+     */
+    static Settings parse(ConfigurationSection config, boolean folia, List<String> errors) {
+        return new Settings(config, folia, errors);
+    }
+
+    /**
+     * The settings that differ from {@code next} but are only read on
+     * startup, by their config path.
+     */
+    List<String> restartRequired(Settings next) {
+        List<String> paths = new ArrayList<>();
+        if (!defaultGroup.equals(next.defaultGroup)) paths.add("groups.default");
+        if (poolSize != next.poolSize) paths.add("world-pool.size");
+        if (preloadRadius != next.preloadRadius) paths.add("world-pool.preload-radius");
+        if (preloadConcurrency != next.preloadConcurrency) paths.add("world-pool.preload-concurrency");
+        if (templatesEnabled != next.templatesEnabled) paths.add("world-templates.enabled");
+        if (templatesSize != next.templatesSize) paths.add("world-templates.size");
+        if (templatesMaxUses != next.templatesMaxUses) paths.add("world-templates.max-uses");
+        if (compactAfterRecords != next.compactAfterRecords) paths.add("stats.compact-after-records");
+        if (runsPerFile != next.runsPerFile) paths.add("runs.runs-per-file");
+        if (runsMaxFiles != next.runsMaxFiles) paths.add("runs.max-files");
+        if (networkEnabled != next.networkEnabled
+                || !networkServerId.equals(next.networkServerId)
+                || !networkRole.equals(next.networkRole)
+                || !networkHost.equals(next.networkHost)
+                || networkPort != next.networkPort) {
+            paths.add("network.*");
+        }
+        if (!Objects.equals(perfExportFile, next.perfExportFile)) paths.add("perf.export-file");
+        return paths;
+    }
+
+    private static long number(ConfigurationSection config, String path, long def, long min, long max,
+            List<String> errors) {
+        Object value = config.get(path);
+        if (value == null) return def;
+        if (!(value instanceof Integer || value instanceof Long)) {
+            errors.add(String.format("%s must be a whole number, got '%s'", path, value));
+            return def;
+        }
+        long number = ((Number) value).longValue();
+        if (number < min || number > max) {
+            errors.add(String.format("%s must be between %d and %d, got %d", path, min, max, number));
+            return def;
+        }
+        return number;
+    }
+
+    private static double decimal(ConfigurationSection config, String path, double def, double min, double max,
+            List<String> errors) {
+        Object value = config.get(path);
+        if (value == null) return def;
+        if (!(value instanceof Number)) {
+            errors.add(String.format("%s must be a number, got '%s'", path, value));
+            return def;
+        }
+        double number = ((Number) value).doubleValue();
+        if (!(number >= min && number <= max)) {
+            errors.add(String.format("%s must be between %s and %s, got %s", path, min, max, number));
+            return def;
+        }
+        return number;
+    }
+
+    private static boolean bool(ConfigurationSection config, String path, boolean def, List<String> errors) {
+        Object value = config.get(path);
+        if (value == null) return def;
+        if (!(value instanceof Boolean)) {
+            errors.add(String.format("%s must be true or false, got '%s'", path, value));
+            return def;
+        }
+        return (Boolean) value;
+    }
+
+    private static String choice(ConfigurationSection config, String path, String def, List<String> errors,
+            String... allowed) {
+        Object value = config.get(path);
+        if (value == null) return def;
+        String text = value.toString().trim().toLowerCase(Locale.ROOT);
+        for (String option : allowed) {
+            if (option.equals(text)) return option;
+        }
+        errors.add(String.format("%s must be one of %s, got '%s'", path, String.join(", ", allowed), value));
+        return def;
+    }
+
+    private static String string(ConfigurationSection config, String path, String def, List<String> errors) {
+        Object value = config.get(path);
+        if (value == null) return def;
+        String text = value.toString().trim();
+        if (text.isEmpty()) {
+            errors.add(String.format("%s must not be empty", path));
+            return def;
+        }
+        return text;
+    }
+}
@@ -0,0 +1,232 @@
+package com.macacomilk.sharedhealth;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.bukkit.Sound;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+
+import net.kyori.adventure.bossbar.BossBar;
+import net.kyori.adventure.text.Component;
+
+/**
+ * A set of players sharing one pool of health and hunger, one world and one
+ * run. Every sync, broadcast and reset only touches the group's own online
+ * members, so the cost scales with the group and not with the server.
+ *
+ * <p>Safe to use from any thread. Writes to a member's health or hunger go
+ * through {@link TaskScheduler#executeForEntity}, so on Folia each player is
+ * only touched by the region thread that owns them. The immediate
+ * {@link #syncHealth} and {@link #syncHunger} passes write every member
+ * directly and are only used on Paper.
+ */
+final class ShareGroup {
+
+    private final String name;
+    private final Set<Player> members = ConcurrentHashMap.newKeySet();
+    private final Set<UUID> disconnectedPlayers = ConcurrentHashMap.newKeySet();
+    private final SharedVitals vitals = new SharedVitals();
+    private final PendingVitals pendingVitals = new PendingVitals();
+    private final AtomicBoolean flushQueued = new AtomicBoolean();
+
+    private volatile World currentWorld;
+    private final AtomicBoolean generatingWorld = new AtomicBoolean();
+    private final BossBar generationBar = BossBar.bossBar(Component.text("Generating world"), 0f,
+        BossBar.Color.GREEN, BossBar.Overlay.PROGRESS);
+    private volatile TaskScheduler.Task generationProgressTask;
+
+    private volatile RankedStats runStats = new RankedStats(new PlayerStatsTable());
+
+    ShareGroup(String name, World currentWorld) {
+        this.name = name;
+        this.currentWorld = currentWorld;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    Set<Player> getMembers() {
+        return Collections.unmodifiableSet(members);
+    }
+
+    void addMember(Player player) {
+        members.add(player);
+    }
+
+    void removeMember(Player player) {
+        members.remove(player);
+    }
+
+    Set<UUID> getDisconnectedPlayers() {
+        return disconnectedPlayers;
+    }
+
+    World getCurrentWorld() {
+        return currentWorld;
+    }
+
+    void setCurrentWorld(World currentWorld) {
+        this.currentWorld = currentWorld;
+    }
+
+    boolean isGeneratingWorld() {
+        return generatingWorld.get();
+    }
+
+    /**
+     * @return {@code false} if another thread already started a reset
+     */
+    boolean startGeneratingWorld() {
+        return generatingWorld.compareAndSet(false, true);
+    }
+
+    void finishGeneratingWorld() {
+        generatingWorld.set(false);
+    }
+
+    BossBar getGenerationBar() {
+        return generationBar;
+    }
+
+    TaskScheduler.Task getGenerationProgressTask() {
+        return generationProgressTask;
+    }
+
+    void setGenerationProgressTask(TaskScheduler.Task generationProgressTask) {
+        this.generationProgressTask = generationProgressTask;
+    }
+
+    SharedVitals getVitals() {
+        return vitals;
+    }
+
+    PendingVitals getPendingVitals() {
+        return pendingVitals;
+    }
+
+    /**
+     * @return {@code true} if the caller must queue the group for a flush
+     */
+    boolean markFlushQueued() {
+        return flushQueued.compareAndSet(false, true);
+    }
+
+    boolean isFlushQueued() {
+        return flushQueued.get();
+    }
+
+    RankedStats getRunStats() {
+        return runStats;
+    }
+
+    void recordRunDeath(UUID uuid) {
+        runStats.recordDeath(uuid);
+    }
+
+    void recordRunDamage(UUID uuid, double amount) {
+        runStats.recordDamage(uuid, amount);
+    }
+
+    void startNewRun() {
+        runStats = new RankedStats(new PlayerStatsTable());
+    }
+
+    void broadcast(Component message) {
+        for (Player player : members) {
+            player.sendMessage(message);
+        }
+    }
+
+    /**
+     * Takes everything folded into {@link #getPendingVitals()} this tick.
+     *
+     * @return the changes, or {@code null} if nothing changed
+     */
+    PendingVitals.Snapshot drainVitals() {
+        // Cleared before draining: a change that lands after the drain queues
+        // the group again instead of being lost.
+        flushQueued.set(false);
+        PendingVitals.Snapshot drained = pendingVitals.drain(vitals);
+        return drained.isEmpty() ? null : drained;
+    }
+
+    /**
+     * Writes vitals to every member, each on their own thread.
+     *
+     * @return the number of members written to
+     */
+    int applyVitals(TaskScheduler scheduler, PendingVitals.Snapshot vitals, MaxHealthCache maxHealth) {
+        int written = 0;
+        for (Player p : members) {
+            scheduler.executeForEntity(p, () -> applyVitals(p, vitals, maxHealth));
+            written++;
+        }
+        return written;
+    }
+
+    /**
+     * Writes vitals to one player, clamped to their own max health. Run on the
+     * player's thread.
+     */
+    static void applyVitals(Player p, PendingVitals.Snapshot vitals, MaxHealthCache maxHealth) {
+        if (vitals.hasHealth()) {
+            double max = maxHealth.get(p);
+            if (!Double.isNaN(max)) {
+                double currentHealth = p.getHealth();
+                double clamped = Math.max(Math.min(vitals.getHealth(), max), 0.0);
+                if (currentHealth != clamped) {
+                    p.setHealth(clamped);
+                    if (clamped < currentHealth && !vitals.isSource(p)) {
+                        p.playSound(p.getLocation(), Sound.ENTITY_PLAYER_HURT, 1.0f, 1.0f);
+                        p.setVelocity(p.getLocation().getDirection().multiply(-0.1).setY(0.1));
+                    }
+                }
+            }
+        }
+
+        if (vitals.hasFood()) {
+            p.setFoodLevel(Math.min(vitals.getFoodLevel(), 20));
+            p.setSaturation(vitals.getSaturation());
+        }
+
+        if (vitals.hasAbsorption()) {
+            // Vanilla caps it at the player's own max absorption, which only
+            // members under an Absorption effect have.
+            p.setAbsorptionAmount(vitals.getAbsorption());
+        }
+    }
+
+    // Player#setHealth and Player#setFoodLevel do not fire damage, regain or
+    // food events, so the sync passes below cannot re-enter the handlers.
+    // Both return the number of members written to.
+    int syncHealth(double newHealth, Player sourcePlayer, MaxHealthCache maxHealth) {
+        int written = 0;
+        for (Player p : members) {
+            double max = maxHealth.get(p);
+            if (!Double.isNaN(max)) {
+                double currentHealth = p.getHealth();
+                p.setHealth(Math.max(Math.min(newHealth, max), 0.0));
+
+                if (p != sourcePlayer && currentHealth != newHealth) {
+                    p.playSound(p.getLocation(), Sound.ENTITY_PLAYER_HURT, 1.0f, 1.0f);
+                    p.setVelocity(p.getLocation().getDirection().multiply(-0.1).setY(0.1));
+                }
+                written++;
+            }
+        }
+        return written;
+    }
+
+    int syncHunger(int newFood, float saturation) {
+        for (Player p : members) {
+            p.setFoodLevel(Math.min(newFood, 20));
+            p.setSaturation(saturation);
+        }
+        return members.size();
+    }
+}
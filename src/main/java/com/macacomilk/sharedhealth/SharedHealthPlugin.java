@@ -2,526 +2,1040 @@ package com.macacomilk.sharedhealth;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Random;
-import java.util.Set;
-import java.util.UUID;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.Collectors;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
 
 import org.bukkit.Bukkit;
 import org.bukkit.GameMode;
-import org.bukkit.GameRule;
 import org.bukkit.Location;
-import org.bukkit.Material;
-import org.bukkit.Particle;
-import org.bukkit.Sound;
 import org.bukkit.World;
-import org.bukkit.WorldCreator;
-import org.bukkit.WorldType;
-import org.bukkit.attribute.Attribute;
-import org.bukkit.attribute.AttributeInstance;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
-import org.bukkit.configuration.ConfigurationSection;
-import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
 import org.bukkit.event.entity.EntityDamageEvent;
+import org.bukkit.event.entity.EntityPotionEffectEvent;
 import org.bukkit.event.entity.EntityRegainHealthEvent;
 import org.bukkit.event.entity.FoodLevelChangeEvent;
 import org.bukkit.event.entity.PlayerDeathEvent;
 import org.bukkit.event.player.PlayerJoinEvent;
 import org.bukkit.event.player.PlayerQuitEvent;
 import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.potion.PotionEffect;
+import org.bukkit.potion.PotionEffectType;
 
+import com.destroystokyo.paper.event.server.ServerTickEndEvent;
+
+import net.kyori.adventure.bossbar.BossBar;
 import net.kyori.adventure.text.Component;
 import net.kyori.adventure.text.format.NamedTextColor;
 
 public final class SharedHealthPlugin extends JavaPlugin implements Listener {
 
-    private boolean isSyncing = false;
-    private World waitingWorld;
-    private World currentWorld;
-    private final Random random = new Random();
-    private final Set<UUID> disconnectedPlayers = new HashSet<>();
-    private static final String WAITING_WORLD_NAME = "sharedhealth_waiting_area";
-    private Location waitingAreaCenter;
-    private final AtomicInteger worldProgress = new AtomicInteger(0);
-    private boolean isGeneratingWorld = false;
-    private World oldWorldToDelete = null;
+    private TaskScheduler scheduler;
+    private PerfMonitor perf;
+    private WaitingArea waitingArea;
+    private volatile TeleportPipeline teleports;
+    private DamageFeed damageFeed;
+    private GroupManager groupManager;
+    private MaxHealthCache maxHealth;
+    private VitalsReconciler reconciler;
+    private SpawnFinder spawnFinder;
     
-    private final Map<UUID, Integer> playerDeaths = new HashMap<>();
-    private final Map<UUID, Double> playerDamageTaken = new HashMap<>();
-    private File statsFile;
+    private StatsStore statsStore;
+    private RankedStats allTimeStats;
+    private RunAnalytics runAnalytics;
+    private NameCache nameCache;
+    private TraceRecorder traceRecorder;
+
+    /** Swapped whole on reload; handlers read it once per event. */
+    private volatile Settings settings;
+    /** Global thread only. */
+    private TaskScheduler.Task statsFlushTask;
+    private TaskScheduler.Task exportTask;
+    private TaskScheduler.Task reconcileTask;
+    /** Groups with vitals changes waiting for the end-of-tick flush. */
+    private final Queue<ShareGroup> pendingGroups = new ConcurrentLinkedQueue<>();
+    /** Both {@code null} on Folia, which cannot create or unload worlds at runtime. */
+    private WorldPool worldPool;
+    private WorldReaper worldReaper;
+    /** {@code null} unless network sync is enabled. */
+    private NetworkSync network;
 
     @Override
     public void onEnable() {
+        long enableStarted = System.currentTimeMillis();
         try {
-            createWaitingWorld();
+            saveDefaultConfig();
+            scheduler = new TaskScheduler(this);
+            List<String> errors = new ArrayList<>();
+            settings = Settings.parse(getConfig(), scheduler.isFolia(), errors);
+            for (String error : errors) {
+                getLogger().warning(String.format("Invalid config, using the default: %s", error));
+            }
+            if (scheduler.isFolia() && !getConfig().getBoolean("sync.batch-per-tick", true)) {
+                getLogger().warning("sync.batch-per-tick is required on Folia; enabling it");
+            }
+
+            File exportFile = new File(settings.perfExportFile);
+            if (!exportFile.isAbsolute()) {
+                exportFile = new File(getDataFolder(), settings.perfExportFile);
+            }
+            perf = new PerfMonitor(this, exportFile);
+
+            waitingArea = new WaitingArea(this, scheduler, perf, settings);
+            teleports = newTeleportPipeline(settings);
+            damageFeed = new DamageFeed(scheduler, settings);
+            maxHealth = new MaxHealthCache(scheduler);
+            waitingArea.create();
             getServer().getPluginManager().registerEvents(this, this);
+            getServer().getPluginManager().registerEvents(waitingArea, this);
+            getServer().getPluginManager().registerEvents(maxHealth, this);
+            spawnFinder = new SpawnFinder(this, scheduler, settings);
+            getServer().getPluginManager().registerEvents(spawnFinder, this);
             
-            statsFile = new File(getDataFolder(), "player_stats.yml");
-            if (!getDataFolder().exists()) {
-                getDataFolder().mkdirs();
+            // Only keep the store once it loaded, so a failed load can never be
+            // compacted over the good snapshot on disable.
+            StatsStore loadedStats = new StatsStore(this, getDataFolder(), settings.compactAfterRecords);
+            loadedStats.load();
+            statsStore = loadedStats;
+            allTimeStats = statsStore.getRankedStats();
+            RunAnalytics loadedRuns = new RunAnalytics(this, getDataFolder(), settings.runsPerFile, settings.runsMaxFiles);
+            loadedRuns.load();
+            runAnalytics = loadedRuns;
+            nameCache = new NameCache(this, scheduler, getDataFolder());
+            nameCache.load();
+            nameCache.seedFromServer();
+            for (Player player : Bukkit.getOnlinePlayers()) {
+                nameCache.remember(player.getUniqueId(), player.getName());
+            }
+
+            traceRecorder = new TraceRecorder(this, scheduler, getDataFolder());
+            if (settings.traceOnEnable) {
+                try {
+                    Path trace = traceRecorder.start();
+                    getLogger().info(String.format("Recording events to %s", trace.getFileName()));
+                } catch (IOException e) {
+                    getLogger().severe(String.format("Failed to start event trace: %s", e.getMessage()));
+                }
+            }
+
+            scheduleTimers(null, settings);
+            if (scheduler.isFolia()) {
+                // Folia has no single server tick to end; flush on the global region's tick.
+                scheduler.runGlobalTimer(this::flushPendingVitals, 1L, 1L);
             }
-            loadStats();
             
             getCommand("deaths").setExecutor(this::onDeathsCommand);
             getCommand("damage").setExecutor(this::onDamageCommand);
+            getCommand("sharedhealth").setExecutor(this::onSharedHealthCommand);
             
-            scheduleWaitingAreaChecks();
-            scheduleAmbientSounds();
+            waitingArea.apply(settings);
+            damageFeed.apply(settings);
             
-            currentWorld = Bukkit.getWorlds().get(0);
-            getLogger().info("SharedHealthPlugin enabled");
+            groupManager = new GroupManager(this, getDataFolder(), settings.defaultGroup, Bukkit.getWorlds().get(0));
+            groupManager.load();
+            if (!scheduler.isFolia()) {
+                groupManager.restoreWorlds();
+            }
+            reconciler = new VitalsReconciler(this, scheduler, groupManager, waitingArea, maxHealth);
+            for (Player player : Bukkit.getOnlinePlayers()) {
+                ShareGroup group = groupManager.join(player);
+                scheduler.executeForEntity(player, () -> takeSharedVitals(group, player));
+            }
+            if (settings.networkEnabled) {
+                startNetwork(settings);
+            }
+
+            if (scheduler.isFolia()) {
+                getLogger().info("Running on Folia; groups restart their runs in place instead of in new worlds");
+            } else {
+                worldReaper = new WorldReaper(this, settings);
+                worldReaper.reapOrphans();
+
+                TemplateLibrary templates = null;
+                if (settings.templatesEnabled) {
+                    templates = new TemplateLibrary(this, spawnFinder, settings.templatesSize, settings.templatesMaxUses,
+                        settings.preloadRadius, settings.preloadConcurrency);
+                    templates.load();
+                }
+                worldPool = new WorldPool(this, spawnFinder, settings.poolSize,
+                    settings.preloadRadius, settings.preloadConcurrency, templates);
+                worldPool.fill();
+            }
+            getLogger().info(String.format("SharedHealthPlugin enabled in %d ms", System.currentTimeMillis() - enableStarted));
         } catch (Exception e) {
             getLogger().severe(String.format("Failed to enable plugin: %s", e.getMessage()));
             Bukkit.getPluginManager().disablePlugin(this);
         }
     }
 
-    @Override
-    public void onDisable() {
-        saveStats();
+    private void startNetwork(Settings settings) throws IOException {
+        String serverId = settings.networkServerId.equals("auto")
+            ? "server-" + getServer().getPort()
+            : settings.networkServerId;
+        VitalsTransport transport = new SocketTransport(getLogger(), settings.networkHost, settings.networkPort,
+            settings.networkRole.equals("hub"));
+        NetworkSync started = new NetworkSync(this, getDataFolder(), serverId, transport, groupManager, new NetworkSync.Handler() {
+            @Override
+            public void applyVitals(ShareGroup group, PendingVitals.Snapshot vitals) {
+                SharedVitals shared = group.getVitals();
+                if (vitals.hasHealth()) {
+                    shared.setHealth(vitals.getHealth());
+                }
+                if (vitals.hasFood()) {
+                    shared.setFood(vitals.getFoodLevel(), SharedHealthPlugin.this.settings.saturation);
+                }
+                perf.flushFanout.record(group.applyVitals(scheduler,
+                    shared.snapshot(vitals.hasHealth(), vitals.hasFood(), false, Collections.emptySet()), maxHealth));
+            }
+
+            @Override
+            public void changeHealth(ShareGroup group, double change) {
+                SharedVitals shared = group.getVitals();
+                shared.changeHealth(change);
+                perf.flushFanout.record(group.applyVitals(scheduler,
+                    shared.snapshot(true, false, false, Collections.emptySet()), maxHealth));
+            }
+
+            @Override
+            public void reset(ShareGroup group, String origin, String victim) {
+                group.broadcast(victim == null
+                    ? Component.text(String.format("The run already ended on %s", origin), NamedTextColor.RED)
+                    : Component.text(String.format("%s died on %s", victim, origin), NamedTextColor.RED));
+                generateNewWorld(group, null);
+            }
+        });
+        started.start();
+        network = started;
+        getLogger().info(String.format("Sharing vitals with %s:%d as %s", settings.networkHost, settings.networkPort,
+            serverId));
     }
 
-    private void loadStats() {
-        if (!statsFile.exists()) return;
-        
-        YamlConfiguration config = YamlConfiguration.loadConfiguration(statsFile);
-        ConfigurationSection deathsSection = config.getConfigurationSection("deaths");
-        ConfigurationSection damageSection = config.getConfigurationSection("damage");
-        
-        if (deathsSection != null) {
-            for (String key : deathsSection.getKeys(false)) {
-                playerDeaths.put(UUID.fromString(key), deathsSection.getInt(key));
+    private TeleportPipeline newTeleportPipeline(Settings settings) {
+        return new TeleportPipeline(scheduler, settings.teleportsPerTick, settings.spreadSpacing, settings.spreadRadius);
+    }
+
+    /**
+     * Starts the plugin's own repeating timers, or restarts those whose
+     * interval differs from {@code previous}.
+     */
+    private void scheduleTimers(Settings previous, Settings next) {
+        if (previous == null || previous.statsFlushTicks != next.statsFlushTicks) {
+            if (statsFlushTask != null) statsFlushTask.cancel();
+            statsFlushTask = scheduler.runGlobalTimer(() -> {
+                statsStore.flush();
+                nameCache.save();
+                traceRecorder.flush();
+            }, next.statsFlushTicks, next.statsFlushTicks);
+        }
+        if (previous == null || previous.perfExportTicks != next.perfExportTicks) {
+            if (exportTask != null) exportTask.cancel();
+            exportTask = null;
+            if (next.perfExportTicks > 0) {
+                exportTask = scheduler.runGlobalTimer(() -> scheduler.runAsync(perf::export),
+                    next.perfExportTicks, next.perfExportTicks);
             }
         }
-        
-        if (damageSection != null) {
-            for (String key : damageSection.getKeys(false)) {
-                playerDamageTaken.put(UUID.fromString(key), damageSection.getDouble(key));
+        if (previous == null || previous.reconcileTicks != next.reconcileTicks) {
+            if (reconcileTask != null) reconcileTask.cancel();
+            reconcileTask = null;
+            if (next.reconcileTicks > 0) {
+                // Created later in onEnable, but always before the first run.
+                reconcileTask = scheduler.runGlobalTimer(() -> {
+                    long started = System.nanoTime();
+                    reconciler.run();
+                    perf.reconcileTask.recordSince(started);
+                }, next.reconcileTicks, next.reconcileTicks);
             }
         }
     }
-    
-    private void saveStats() {
-        YamlConfiguration config = new YamlConfiguration();
-        
-        ConfigurationSection deathsSection = config.createSection("deaths");
-        playerDeaths.forEach((uuid, count) -> deathsSection.set(uuid.toString(), count));
-        
-        ConfigurationSection damageSection = config.createSection("damage");
-        playerDamageTaken.forEach((uuid, amount) -> damageSection.set(uuid.toString(), amount));
-        
-        try {
-            config.save(statsFile);
-        } catch (IOException e) {
-            getLogger().severe("Failed to save player stats: " + e.getMessage());
+
+    @Override
+    public void onDisable() {
+        if (network != null) {
+            network.close();
+        }
+        if (statsStore != null) {
+            statsStore.close();
+        }
+        if (runAnalytics != null) {
+            runAnalytics.close();
+        }
+        if (nameCache != null) {
+            nameCache.saveNow();
+        }
+        if (traceRecorder != null) {
+            traceRecorder.stop();
         }
     }
-    
+
     private boolean onDeathsCommand(CommandSender sender, Command command, String label, String[] args) {
-        Map<UUID, Integer> sortedDeaths = playerDeaths.entrySet().stream()
-            .sorted(Map.Entry.<UUID, Integer>comparingByValue().reversed())
-            .collect(Collectors.toMap(
-                Map.Entry::getKey,
-                Map.Entry::getValue,
-                (e1, e2) -> e1,
-                LinkedHashMap::new
-            ));
-        
-        sender.sendMessage(Component.text("Top Deaths:", NamedTextColor.GOLD));
-        int rank = 1;
-        for (Map.Entry<UUID, Integer> entry : sortedDeaths.entrySet()) {
-            if (rank > 10) break;
-            Player player = Bukkit.getPlayer(entry.getKey());
-            String name = player != null ? player.getName() : Bukkit.getOfflinePlayer(entry.getKey()).getName();
-            sender.sendMessage(Component.text(rank + ". " + name + ": " + entry.getValue() + " deaths", 
-                NamedTextColor.YELLOW));
-            rank++;
+        RankedStats stats = statsFor(sender, args);
+        synchronized (stats) {
+            Leaderboard board = stats.deaths();
+            PlayerStatsTable table = stats.table();
+            int page = Math.min(parsePage(args), board.pageCount());
+
+            sender.sendMessage(Component.text(String.format("Top Deaths (%s) - page %d/%d:",
+                windowLabel(args), page, board.pageCount()), NamedTextColor.GOLD));
+            int rank = (page - 1) * Leaderboard.PAGE_SIZE + 1;
+            for (int entry : board.page(page)) {
+                sender.sendMessage(Component.text(rank + ". " + nameCache.getName(table.uuid(entry)) + ": " + table.deaths(entry) + " deaths", 
+                    NamedTextColor.YELLOW));
+                rank++;
+            }
         }
         return true;
     }
     
     private boolean onDamageCommand(CommandSender sender, Command command, String label, String[] args) {
-        Map<UUID, Double> sortedDamage = playerDamageTaken.entrySet().stream()
-            .sorted(Map.Entry.<UUID, Double>comparingByValue().reversed())
-            .collect(Collectors.toMap(
-                Map.Entry::getKey,
-                Map.Entry::getValue,
-                (e1, e2) -> e1,
-                LinkedHashMap::new
-            ));
-        
-        sender.sendMessage(Component.text("Top Damage Taken:", NamedTextColor.GOLD));
-        int rank = 1;
-        for (Map.Entry<UUID, Double> entry : sortedDamage.entrySet()) {
-            if (rank > 10) break;
-            Player player = Bukkit.getPlayer(entry.getKey());
-            String name = player != null ? player.getName() : Bukkit.getOfflinePlayer(entry.getKey()).getName();
-            sender.sendMessage(Component.text(rank + ". " + name + ": " + String.format("%.1f", entry.getValue()) + " damage", 
-                NamedTextColor.YELLOW));
-            rank++;
+        RankedStats stats = statsFor(sender, args);
+        synchronized (stats) {
+            Leaderboard board = stats.damage();
+            PlayerStatsTable table = stats.table();
+            int page = Math.min(parsePage(args), board.pageCount());
+
+            sender.sendMessage(Component.text(String.format("Top Damage Taken (%s) - page %d/%d:",
+                windowLabel(args), page, board.pageCount()), NamedTextColor.GOLD));
+            int rank = (page - 1) * Leaderboard.PAGE_SIZE + 1;
+            for (int entry : board.page(page)) {
+                sender.sendMessage(Component.text(rank + ". " + nameCache.getName(table.uuid(entry)) + ": " + String.format("%.1f", table.damage(entry)) + " damage", 
+                    NamedTextColor.YELLOW));
+                rank++;
+            }
         }
         return true;
     }
 
-    private void createWaitingWorld() {
-        waitingWorld = Bukkit.getWorld(WAITING_WORLD_NAME);
-        
-        if (waitingWorld == null) {
-            WorldCreator creator = new WorldCreator(WAITING_WORLD_NAME)
-                .environment(World.Environment.NORMAL)
-                .generateStructures(false)
-                .type(WorldType.FLAT);
-            waitingWorld = creator.createWorld();
-            
-            if (waitingWorld == null) {
-                throw new IllegalStateException("Failed to create waiting world");
+    private static boolean isRunWindow(String[] args) {
+        for (String arg : args) {
+            if (arg.equalsIgnoreCase("run")) return true;
+        }
+        return false;
+    }
+
+    private static String windowLabel(String[] args) {
+        return isRunWindow(args) ? "this run" : "all time";
+    }
+
+    /**
+     * The all-time rankings, or the current run of the sender's group (the
+     * default group for the console).
+     */
+    private RankedStats statsFor(CommandSender sender, String[] args) {
+        if (!isRunWindow(args)) return allTimeStats;
+
+        ShareGroup group = sender instanceof Player ? groupManager.getGroup((Player) sender) : null;
+        if (group == null) {
+            group = groupManager.getDefaultGroup();
+        }
+        return group.getRunStats();
+    }
+
+    private static int parsePage(String[] args) {
+        for (String arg : args) {
+            try {
+                return Math.max(1, Integer.parseInt(arg));
+            } catch (NumberFormatException e) {
+                // Not a page number; the window argument.
             }
         }
-        
-        waitingWorld.setGameRule(GameRule.DO_IMMEDIATE_RESPAWN, true);
-        waitingWorld.setGameRule(GameRule.DO_MOB_SPAWNING, false);
-        waitingWorld.setGameRule(GameRule.DO_DAYLIGHT_CYCLE, false);
-        waitingWorld.setGameRule(GameRule.DO_WEATHER_CYCLE, false);
-        
-        createWaitingPlatform();
-        waitingAreaCenter = new Location(waitingWorld, 0.5, 6, 0.5);
+        return 1;
     }
 
-    private void createWaitingPlatform() {
-        for (int x = -7; x <= 7; x++) {
-            for (int z = -7; z <= 7; z++) {
-                waitingWorld.getBlockAt(x, 4, z).setType(Material.BEDROCK);
-                if ((x + z) % 2 == 0) {
-                    waitingWorld.getBlockAt(x, 5, z).setType(Material.POLISHED_ANDESITE);
-                } else {
-                    waitingWorld.getBlockAt(x, 5, z).setType(Material.POLISHED_DIORITE);
+    private boolean onSharedHealthCommand(CommandSender sender, Command command, String label, String[] args) {
+        if (args.length == 0) {
+            sender.sendMessage(Component.text("Usage: /" + label + " <pool|groups|group|runs|causes|trace|perf|network|reload>", NamedTextColor.RED));
+            return true;
+        }
+
+        switch (args[0].toLowerCase()) {
+            case "pool":
+                if (worldPool == null) {
+                    sender.sendMessage(Component.text("The world pool is disabled on Folia", NamedTextColor.YELLOW));
+                    return true;
                 }
-            }
+                sender.sendMessage(Component.text("World Pool:", NamedTextColor.GOLD));
+                sender.sendMessage(Component.text(String.format("Ready: %d/%d (%d warming)",
+                    worldPool.getDepth(), worldPool.getSize(), worldPool.getWarming()), NamedTextColor.YELLOW));
+                sender.sendMessage(Component.text(String.format("Warm-up: %d ms last, %d ms average, %.1f chunks/s",
+                    worldPool.getLastWarmupMillis(), worldPool.getAverageWarmupMillis(),
+                    worldPool.getLastChunksPerSecond()), NamedTextColor.YELLOW));
+                sender.sendMessage(Component.text(String.format("Hits: %d, misses: %d",
+                    worldPool.getHits(), worldPool.getMisses()), NamedTextColor.YELLOW));
+                TemplateLibrary templates = worldPool.getTemplates();
+                if (templates != null) {
+                    WorldPreparation generating = templates.getGenerating();
+                    sender.sendMessage(Component.text(String.format("Templates: %d/%d ready, %s; %d worlds cloned",
+                        templates.getReady(), templates.getSize(),
+                        generating == null ? "none generating" : String.format("generating (%d%%)",
+                            Math.round(generating.getProgress() * 100)),
+                        worldPool.getCloned()), NamedTextColor.YELLOW));
+                }
+                return true;
+            case "groups":
+                sender.sendMessage(Component.text("Groups:", NamedTextColor.GOLD));
+                for (ShareGroup group : groupManager.getGroups()) {
+                    sender.sendMessage(Component.text(String.format("%s: %d online, world %s%s", group.getName(),
+                        group.getMembers().size(), group.getCurrentWorld().getName(),
+                        group.isGeneratingWorld() ? " (resetting)" : ""), NamedTextColor.YELLOW));
+                }
+                return true;
+            case "group":
+                if (args.length < 3) {
+                    sender.sendMessage(Component.text("Usage: /" + label + " group <player> <group>", NamedTextColor.RED));
+                    return true;
+                }
+                Player target = Bukkit.getPlayerExact(args[1]);
+                if (target == null) {
+                    sender.sendMessage(Component.text("Player not online: " + args[1], NamedTextColor.RED));
+                    return true;
+                }
+                moveToGroup(target, args[2]);
+                sender.sendMessage(Component.text(target.getName() + " is now in group " + args[2], NamedTextColor.GREEN));
+                return true;
+            case "runs":
+                onRunsCommand(sender);
+                return true;
+            case "causes":
+                onCausesCommand(sender);
+                return true;
+            case "trace":
+                onTraceCommand(sender, label, args);
+                return true;
+            case "perf":
+                onPerfCommand(sender, label, args);
+                return true;
+            case "network":
+                if (network == null) {
+                    sender.sendMessage(Component.text("Network sync is disabled", NamedTextColor.YELLOW));
+                    return true;
+                }
+                sender.sendMessage(Component.text(String.format("Network: %s", network.getServerId()), NamedTextColor.GOLD));
+                sender.sendMessage(Component.text(String.format("Batches sent: %d, received: %d, stale values dropped: %d",
+                    network.getBatchesSent(), network.getBatchesReceived(), network.getStaleDropped()),
+                    NamedTextColor.YELLOW));
+                return true;
+            case "reload":
+                // Timers are only ever touched from the global thread.
+                scheduler.runGlobal(() -> onReloadCommand(sender));
+                return true;
+            default:
+                sender.sendMessage(Component.text("Unknown subcommand: " + args[0], NamedTextColor.RED));
+                return true;
         }
-        
-        for (int y = 5; y <= 10; y++) {
-            for (int x = -8; x <= 8; x++) {
-                Material wallMaterial = (y % 2 == 0) ? Material.STONE_BRICKS : Material.MOSSY_STONE_BRICKS;
-                waitingWorld.getBlockAt(x, y, -8).setType(wallMaterial);
-                waitingWorld.getBlockAt(x, y, 8).setType(wallMaterial);
-            }
-            for (int z = -7; z <= 7; z++) {
-                Material wallMaterial = (y % 2 == 0) ? Material.STONE_BRICKS : Material.MOSSY_STONE_BRICKS;
-                waitingWorld.getBlockAt(-8, y, z).setType(wallMaterial);
-                waitingWorld.getBlockAt(8, y, z).setType(wallMaterial);
-            }
+    }
+
+    private void onRunsCommand(CommandSender sender) {
+        List<RunAnalytics.RunSummary> runs = runAnalytics.getRecentRuns();
+        sender.sendMessage(Component.text(String.format("Recent runs (%d recorded, %s on average):",
+            runAnalytics.getRunCount(), formatDuration(runAnalytics.getAverageDurationMillis())), NamedTextColor.GOLD));
+        for (RunAnalytics.RunSummary run : runs) {
+            String ending = run.getFirstDeath() == null
+                ? "stopped by a restart"
+                : String.format("%s died to %s", nameCache.getName(run.getFirstDeath()),
+                    causeName(run.getFirstDeathCause()));
+            sender.sendMessage(Component.text(String.format("%s in %s (seed %d): %s, %s; ❤ %.1f taken, mostly %s",
+                run.getGroup(), run.getWorld(), run.getSeed(), formatDuration(run.getDurationMillis()), ending,
+                run.getDamage(), causeName(run.getTopCause())), NamedTextColor.YELLOW));
         }
-        
-        for (int y = 5; y <= 11; y++) {
-            Material pillarMaterial = (y % 3 == 0) ? Material.QUARTZ_PILLAR : Material.SMOOTH_QUARTZ;
-            waitingWorld.getBlockAt(-8, y, -8).setType(pillarMaterial);
-            waitingWorld.getBlockAt(-8, y, 8).setType(pillarMaterial);
-            waitingWorld.getBlockAt(8, y, -8).setType(pillarMaterial);
-            waitingWorld.getBlockAt(8, y, 8).setType(pillarMaterial);
+    }
+
+    private void onCausesCommand(CommandSender sender) {
+        sender.sendMessage(Component.text(String.format("Damage causes over %d runs:", runAnalytics.getRunCount()),
+            NamedTextColor.GOLD));
+        for (RunAnalytics.CauseTotal cause : runAnalytics.getCauses()) {
+            sender.sendMessage(Component.text(String.format("%s: ❤ %.1f, %d deaths", causeName(cause.getCause()),
+                cause.getDamage(), cause.getDeaths()), NamedTextColor.YELLOW));
         }
-        
-        for (int x = -7; x <= 7; x++) {
-            for (int z = -7; z <= 7; z++) {
-                Material glassType;
-                if (Math.abs(x) == Math.abs(z)) {
-                    glassType = Material.RED_STAINED_GLASS;
-                } else if (x == 0 || z == 0) {
-                    glassType = Material.BLUE_STAINED_GLASS;
-                } else {
-                    glassType = Material.WHITE_STAINED_GLASS;
+    }
+
+    private static String causeName(EntityDamageEvent.DamageCause cause) {
+        return cause == null ? "unknown" : cause.name().toLowerCase().replace('_', ' ');
+    }
+
+    private static String formatDuration(long millis) {
+        long seconds = millis / 1000;
+        if (seconds < 3600) return String.format("%dm %ds", seconds / 60, seconds % 60);
+        return String.format("%dh %dm", seconds / 3600, seconds % 3600 / 60);
+    }
+
+    private void onTraceCommand(CommandSender sender, String label, String[] args) {
+        String action = args.length > 1 ? args[1].toLowerCase() : "";
+        switch (action) {
+            case "start":
+                if (traceRecorder.isRecording()) {
+                    sender.sendMessage(Component.text("Already recording events", NamedTextColor.YELLOW));
+                    return;
                 }
-                waitingWorld.getBlockAt(x, 11, z).setType(glassType);
-            }
+                try {
+                    Path trace = traceRecorder.start();
+                    sender.sendMessage(Component.text("Recording events to " + trace.getFileName(), NamedTextColor.GREEN));
+                } catch (IOException e) {
+                    getLogger().severe(String.format("Failed to start event trace: %s", e.getMessage()));
+                    sender.sendMessage(Component.text("Failed to start recording: " + e.getMessage(), NamedTextColor.RED));
+                }
+                return;
+            case "stop":
+                if (!traceRecorder.isRecording()) {
+                    sender.sendMessage(Component.text("Not recording events", NamedTextColor.YELLOW));
+                    return;
+                }
+                long records = traceRecorder.stop();
+                sender.sendMessage(Component.text(String.format("Stopped recording after %d events", records), NamedTextColor.GREEN));
+                return;
+            default:
+                sender.sendMessage(Component.text("Usage: /" + label + " trace <start|stop>", NamedTextColor.RED));
         }
-        
-        for (int x = -6; x <= 6; x += 4) {
-            for (int z = -6; z <= 6; z += 4) {
-                waitingWorld.getBlockAt(x, 10, z).setType(Material.SEA_LANTERN);
+    }
+
+    /**
+     * Re-reads config.yml and swaps in the new settings only if all of them
+     * are valid, so a typo never leaves the plugin half reconfigured.
+     */
+    private void onReloadCommand(CommandSender sender) {
+        reloadConfig();
+        List<String> errors = new ArrayList<>();
+        Settings next = Settings.parse(getConfig(), scheduler.isFolia(), errors);
+        if (!errors.isEmpty()) {
+            sender.sendMessage(Component.text("Config not reloaded, fix these first:", NamedTextColor.RED));
+            for (String error : errors) {
+                sender.sendMessage(Component.text(error, NamedTextColor.RED));
             }
+            return;
         }
-        
-        waitingWorld.getBlockAt(2, 6, 0).setType(Material.FLOWER_POT);
-        waitingWorld.getBlockAt(-2, 6, 0).setType(Material.FLOWER_POT);
 
-        for (int x = -6; x <= 6; x += 3) {
-            waitingWorld.getBlockAt(x, 8, -7).setType(Material.WHITE_WALL_BANNER);
-            waitingWorld.getBlockAt(x, 8, 7).setType(Material.WHITE_WALL_BANNER);
+        Settings previous = settings;
+        settings = next;
+        teleports = newTeleportPipeline(next);
+        waitingArea.apply(next);
+        damageFeed.apply(next);
+        spawnFinder.apply(next);
+        if (worldReaper != null) {
+            worldReaper.apply(next);
         }
+        scheduleTimers(previous, next);
+        getLogger().info("Reloaded config.yml");
 
-        for (int x = -1; x <= 1; x++) {
-            for (int z = -1; z <= 1; z++) {
-                waitingWorld.getBlockAt(x, 6, z).setType(Material.RED_CARPET);
-            }
+        sender.sendMessage(Component.text("Reloaded config.yml", NamedTextColor.GREEN));
+        List<String> restart = previous.restartRequired(next);
+        if (!restart.isEmpty()) {
+            sender.sendMessage(Component.text("Restart the server to apply: " + String.join(", ", restart),
+                NamedTextColor.YELLOW));
         }
-        
-        waitingWorld.getBlockAt(3, 5, 3).setType(Material.OAK_STAIRS);
-        waitingWorld.getBlockAt(-3, 5, 3).setType(Material.OAK_STAIRS);
-        waitingWorld.getBlockAt(3, 5, -3).setType(Material.OAK_STAIRS);
-        waitingWorld.getBlockAt(-3, 5, -3).setType(Material.OAK_STAIRS);
     }
 
-    private void scheduleWaitingAreaChecks() {
-        Bukkit.getScheduler().scheduleSyncRepeatingTask(this, () -> {
-            for (Player player : Bukkit.getOnlinePlayers()) {
-                if (player.getWorld().equals(waitingWorld)) {
-                    player.setGameMode(GameMode.ADVENTURE);
-                    player.setInvulnerable(true);
-                    player.setNoDamageTicks(20);
-                    
-                    if (player.getLocation().getX() < -7 || player.getLocation().getX() > 7 ||
-                        player.getLocation().getZ() < -7 || player.getLocation().getZ() > 7) {
-                        player.teleport(waitingAreaCenter);
-                    }
-                    
-                    player.spawnParticle(Particle.END_ROD, 
-                        player.getLocation().add(0, 2, 0), 
-                        3, 0.5, 0.5, 0.5, 0.05);
-                }
+    private void onPerfCommand(CommandSender sender, String label, String[] args) {
+        String window = args.length > 1 ? args[1].toLowerCase() : "1m";
+        int windowSeconds;
+        switch (window) {
+            case "10s":
+                windowSeconds = 10;
+                break;
+            case "1m":
+                windowSeconds = 60;
+                break;
+            case "5m":
+                windowSeconds = 300;
+                break;
+            default:
+                sender.sendMessage(Component.text("Usage: /" + label + " perf [10s|1m|5m]", NamedTextColor.RED));
+                return;
+        }
+
+        sender.sendMessage(Component.text(String.format("Performance (last %s, count p50/p99/max):", window),
+            NamedTextColor.GOLD));
+        for (PerfMonitor.Family family : perf.getFamilies()) {
+            for (PerfMonitor.Metric metric : family.getMetrics()) {
+                PerfMonitor.Summary summary = metric.summarize(windowSeconds);
+                if (summary.getCount() == 0) continue;
+
+                String values = family.isNanos()
+                    ? String.format("%s/%s/%s", formatNanos(summary.getP50()), formatNanos(summary.getP99()),
+                        formatNanos(summary.getMax()))
+                    : String.format("%d/%d/%d players", summary.getP50(), summary.getP99(), summary.getMax());
+                sender.sendMessage(Component.text(String.format("%s %s: %d, %s", family.getLabel(),
+                    metric.getLabelValue(), summary.getCount(), values), NamedTextColor.YELLOW));
             }
-        }, 0L, 20L);
+        }
     }
 
-    private void scheduleAmbientSounds() {
-        Bukkit.getScheduler().scheduleSyncRepeatingTask(this, () -> {
-            for (Player player : Bukkit.getOnlinePlayers()) {
-                if (player.getWorld().equals(waitingWorld)) {
-                    player.playSound(player.getLocation(), 
-                        Sound.AMBIENT_UNDERWATER_LOOP, 
-                        0.3f, 1.0f);
-                }
-            }
-        }, 0L, 100L);
+    private static String formatNanos(long nanos) {
+        if (nanos < 1_000_000L) return String.format("%.1fµs", nanos / 1_000.0);
+        return String.format("%.2fms", nanos / 1_000_000.0);
     }
 
     @EventHandler
     public void onPlayerJoin(PlayerJoinEvent event) {
+        long started = System.nanoTime();
+        handlePlayerJoin(event);
+        perf.join.recordSince(started);
+    }
+
+    private void handlePlayerJoin(PlayerJoinEvent event) {
         Player player = event.getPlayer();
-        if (disconnectedPlayers.remove(player.getUniqueId()) && 
-            currentWorld != null && 
-            !currentWorld.equals(waitingWorld)) {
-            
-            Bukkit.getScheduler().runTaskLater(this, () -> {
-                player.teleport(currentWorld.getSpawnLocation());
+        traceRecorder.join(player);
+        nameCache.remember(player.getUniqueId(), player.getName());
+        ShareGroup group = groupManager.join(player);
+        // Left mid-run, and the group has not reset since (a reset clears the
+        // disconnected set) and is not resetting now: back into the run.
+        boolean returnToRun = group.getDisconnectedPlayers().remove(player.getUniqueId()) &&
+            !group.isGeneratingWorld();
+        scheduler.runForEntityLater(player, () -> {
+            if (returnToRun) {
+                player.teleportAsync(group.getCurrentWorld().getSpawnLocation());
                 player.setGameMode(GameMode.SURVIVAL);
                 player.setInvulnerable(false);
-                player.setHealth(20);
-                player.setFoodLevel(20);
-            }, 1L);
-        }
+            }
+            takeSharedVitals(group, player);
+        }, 1L);
+    }
+
+    /**
+     * Gives a player who just came online, or into the group, the group's
+     * vitals; the first member online after a start hands theirs to the group
+     * instead. Run on the player's thread.
+     *
+     * <p>Nothing is applied while the group is dead but its reset has not
+     * started yet, which would kill a member who never played the run.
+     */
+    private void takeSharedVitals(ShareGroup group, Player player) {
+        if (group.isGeneratingWorld() || waitingArea.contains(player)) return;
+        SharedVitals vitals = group.getVitals();
+        if (vitals.seed(player) || vitals.getHealth() <= 0) return;
+        ShareGroup.applyVitals(player, vitals.snapshot(true, true, true, Collections.singleton(player)), maxHealth);
     }
 
     @EventHandler
     public void onPlayerQuit(PlayerQuitEvent event) {
+        long started = System.nanoTime();
+        handlePlayerQuit(event);
+        perf.quit.recordSince(started);
+    }
+
+    private void handlePlayerQuit(PlayerQuitEvent event) {
         Player player = event.getPlayer();
-        if (!player.getWorld().equals(waitingWorld)) {
-            disconnectedPlayers.add(player.getUniqueId());
+        traceRecorder.quit(player);
+        ShareGroup group = groupManager.quit(player);
+        if (group != null && !waitingArea.contains(player)) {
+            group.getDisconnectedPlayers().add(player.getUniqueId());
         }
     }
 
+    private void moveToGroup(Player player, String groupName) {
+        ShareGroup previous = groupManager.getGroup(player);
+        ShareGroup group = groupManager.assign(player, groupName);
+        if (previous != null) {
+            player.hideBossBar(previous.getGenerationBar());
+        }
+
+        scheduler.executeForEntity(player, () -> {
+            if (group.isGeneratingWorld()) {
+                waitingArea.enter(player);
+            } else if (!player.getWorld().equals(group.getCurrentWorld())) {
+                player.teleportAsync(group.getCurrentWorld().getSpawnLocation());
+                player.setGameMode(GameMode.SURVIVAL);
+                player.setInvulnerable(false);
+            }
+            takeSharedVitals(group, player);
+        });
+    }
+
     @EventHandler
     public void onPlayerDeath(PlayerDeathEvent event) {
+        long started = System.nanoTime();
+        handlePlayerDeath(event);
+        perf.death.recordSince(started);
+    }
+
+    private void handlePlayerDeath(PlayerDeathEvent event) {
         Player player = event.getPlayer();
-        playerDeaths.merge(player.getUniqueId(), 1, Integer::sum);
+        traceRecorder.death(player);
+        statsStore.recordDeath(player.getUniqueId());
+        ShareGroup group = groupManager.getGroup(player);
+        if (group == null) return;
+        group.recordRunDeath(player.getUniqueId());
+        runAnalytics.recordDeath(group, player.getUniqueId());
         
         event.setKeepInventory(true);
         event.setKeepLevel(true);
-        disconnectedPlayers.remove(player.getUniqueId());
+        group.getDisconnectedPlayers().remove(player.getUniqueId());
         
-        Bukkit.getScheduler().runTask(this, () -> {
+        scheduler.runForEntityLater(player, () -> {
             player.spigot().respawn();
-            player.teleport(waitingAreaCenter);
+            waitingArea.enter(player);
             player.setGameMode(GameMode.ADVENTURE);
             player.setInvulnerable(true);
             player.sendMessage(Component.text("Generating new world...", NamedTextColor.YELLOW));
-        });
+        }, 1L);
 
-        Bukkit.getScheduler().runTaskLater(this, () -> {
-            generateNewWorld();
+        scheduler.runGlobalLater(() -> {
+            generateNewWorld(group, player.getName());
         }, 20L);
     }
 
-    private void generateNewWorld() {
-        if (isGeneratingWorld) return;
-        isGeneratingWorld = true;
-        worldProgress.set(0);
+    /**
+     * @param victim who died here and caused the reset, or {@code null} when
+     *               another server announced it
+     */
+    private void generateNewWorld(ShareGroup group, String victim) {
+        if (!group.startGeneratingWorld()) return;
+        if (network != null && victim != null) {
+            network.publishReset(group, victim);
+        }
 
-        broadcastToWaiting(Component.text("Starting world generation...", NamedTextColor.YELLOW));
+        if (worldPool == null) {
+            // Folia cannot create worlds at runtime; the next run starts over in the same world.
+            switchToWorld(group, group.getCurrentWorld());
+            return;
+        }
 
-        Bukkit.getScheduler().runTaskAsynchronously(this, () -> {
-            try {
-                long seed = random.nextLong();
-                String worldName = "world_" + System.currentTimeMillis();
-
-                for (int i = 0; i <= 100; i++) {
-                    try {
-                        Thread.sleep(50);
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                        throw new IllegalStateException("World generation interrupted", e);
-                    }
-                }
+        if (worldPool.getDepth() == 0) {
+            broadcastToWaiting(group, Component.text("Starting world generation...", NamedTextColor.YELLOW));
+            startGenerationProgress(group);
+        }
 
-                World newWorld;
-                try {
-                    newWorld = Bukkit.getScheduler().callSyncMethod(this, () -> {
-                        WorldCreator creator = new WorldCreator(worldName)
-                            .seed(seed)
-                            .environment(World.Environment.NORMAL);
-                        return creator.createWorld();
-                    }).get();
-                    
-                    if (newWorld == null) {
-                        throw new IllegalStateException("World creation failed");
-                    }
-                } catch (InterruptedException | ExecutionException e) {
-                    Thread.currentThread().interrupt();
-                    throw new IllegalStateException("World creation failed", e);
-                }
+        long createStarted = System.nanoTime();
+        worldPool.acquire().whenComplete((newWorld, error) -> {
+            if (error != null) {
+                getLogger().severe(String.format("World generation failed for group %s: %s", group.getName(), error.getMessage()));
+                broadcastToWaiting(group, Component.text("World generation failed!", NamedTextColor.RED));
+                stopGenerationProgress(group);
+                group.finishGeneratingWorld();
+                return;
+            }
+            perf.resetCreate.recordSince(createStarted);
+            // A pooled world completes inline; defer so the death tick stays cheap.
+            scheduler.runGlobal(() -> switchToWorld(group, newWorld));
+        });
+    }
 
-                Bukkit.getScheduler().runTask(this, () -> {
-                    oldWorldToDelete = currentWorld;
-                    currentWorld = newWorld;
-                    Location spawn = newWorld.getSpawnLocation();
-
-                    for (Player player : Bukkit.getOnlinePlayers()) {
-                        if (player.getWorld().equals(waitingWorld)) {
-                            player.getInventory().clear();
-                        }
-                        resetPlayerHealth(player);
-                        player.teleport(spawn);
-                        player.setGameMode(GameMode.SURVIVAL);
-                        player.setInvulnerable(false);
-                    }
+    /**
+     * Mirrors the progress of the world the waiting players will get onto a
+     * boss bar, based on the chunk loads that have actually completed.
+     */
+    private void startGenerationProgress(ShareGroup group) {
+        stopGenerationProgress(group);
+        BossBar bar = group.getGenerationBar();
+        bar.progress(0f);
+        group.setGenerationProgressTask(scheduler.runGlobalTimer(() -> {
+            WorldPreparation preparation = worldPool.getLeadingPreparation();
+            if (preparation == null) return;
 
-                    broadcastToWaiting(Component.text("Teleporting to new world!", NamedTextColor.GREEN));
-                    disconnectedPlayers.clear();
-                    isGeneratingWorld = false;
+            float progress = Math.min(Math.max(preparation.getProgress(), 0f), 1f);
+            bar.progress(progress);
+            bar.name(Component.text(String.format("%s: %d/%d chunks (%d%%)",
+                preparation.getStage().getLabel(), preparation.getChunksLoaded(),
+                preparation.getChunksTotal(), Math.round(progress * 100)), NamedTextColor.YELLOW));
 
-                    if (oldWorldToDelete != null && !oldWorldToDelete.equals(waitingWorld)) {
-                        Bukkit.getScheduler().runTaskLater(this, () -> {
-                            Bukkit.unloadWorld(oldWorldToDelete, false);
-                            deleteWorld(oldWorldToDelete.getWorldFolder());
-                            getLogger().info(String.format("Deleted old world: %s", oldWorldToDelete.getName()));
-                        }, 200L);
-                    }
-                });
-
-            } catch (IllegalStateException e) {
-                Bukkit.getScheduler().runTask(this, () -> {
-                    getLogger().severe(String.format("World generation failed: %s", e.getMessage()));
-                    broadcastToWaiting(Component.text("World generation failed!", NamedTextColor.RED));
-                    isGeneratingWorld = false;
-                });
+            for (Player player : group.getMembers()) {
+                if (waitingArea.contains(player)) {
+                    player.showBossBar(bar);
+                }
             }
-        });
+        }, 0L, 10L));
     }
 
-    private void resetPlayerHealth(Player player) {
-        player.setHealth(20);
-        player.setFoodLevel(20);
-        player.setSaturation(5);
+    private void stopGenerationProgress(ShareGroup group) {
+        if (group.getGenerationProgressTask() != null) {
+            group.getGenerationProgressTask().cancel();
+            group.setGenerationProgressTask(null);
+        }
+        for (Player player : group.getMembers()) {
+            player.hideBossBar(group.getGenerationBar());
+        }
     }
 
-    private void broadcastToWaiting(Component message) {
-        Bukkit.getOnlinePlayers().stream()
-            .filter(p -> p.getWorld().equals(waitingWorld))
-            .forEach(p -> p.sendMessage(message));
-    }
+    private void switchToWorld(ShareGroup group, World newWorld) {
+        stopGenerationProgress(group);
+        World previousWorld = group.getCurrentWorld();
+        groupManager.setCurrentWorld(group, newWorld);
+        group.startNewRun();
+        runAnalytics.startRun(group, newWorld);
+        group.getVitals().reset(settings.saturation);
+        if (network != null) {
+            // Other servers may already have taken damage in this run.
+            group.getVitals().setHealth(network.getRunHealth(group));
+        }
 
-    private boolean deleteWorld(File path) {
-        if (path.exists()) {
-            File[] files = path.listFiles();
-            if (files != null) {
-                for (File file : files) {
-                    if (file.isDirectory()) {
-                        deleteWorld(file);
-                    } else {
-                        file.delete();
+        // Before the teleports below empty the waiting area.
+        broadcastToWaiting(group, Component.text("Teleporting to new world!", NamedTextColor.GREEN));
+        long teleportStarted = System.nanoTime();
+        Location fallback = newWorld.getSpawnLocation();
+        Consumer<Player> prepare = player -> {
+            if (waitingArea.contains(player)) {
+                player.getInventory().clear();
+            }
+            resetPlayerHealth(group, player);
+        };
+        Consumer<Player> landed = player -> {
+            // Only once they have landed, so nobody is vulnerable in the waiting area.
+            player.setGameMode(GameMode.SURVIVAL);
+            player.setInvulnerable(false);
+        };
+        // Usually found while the world was prepared; completes on the global thread.
+        CompletableFuture<Location> spawn = spawnFinder.find(newWorld,
+            teleports.spreadExtent(group.getMembers().size())).exceptionally(error -> {
+                getLogger().severe(String.format("Spawn search failed in %s, using its spawn: %s",
+                    newWorld.getName(), error.getMessage()));
+                return fallback;
+            });
+        spawn.thenCompose(found -> teleports.teleport(group.getMembers(), found, prepare, landed))
+            .whenComplete((result, error) -> {
+                perf.resetTeleport.recordSince(teleportStarted);
+                if (error != null) {
+                    // Nobody was moved; send everyone straight to the spawn rather than leave them waiting.
+                    getLogger().severe(String.format("Teleporting group %s to %s failed, using its spawn: %s",
+                        group.getName(), newWorld.getName(), error.getMessage()));
+                    for (Player player : group.getMembers()) {
+                        scheduler.executeForEntity(player, () -> {
+                            try {
+                                prepare.accept(player);
+                            } finally {
+                                player.teleportAsync(fallback).thenAccept(ok -> {
+                                    if (ok) landed.accept(player);
+                                });
+                            }
+                        });
                     }
+                    return;
                 }
+                if (result.getError() != null) {
+                    getLogger().severe(String.format("Group %s: a teleport callback failed in %s: %s",
+                        group.getName(), newWorld.getName(), result.getError()));
+                }
+                getLogger().info(String.format("Group %s: %d/%d players arrived in %s after %d ms (%d failed)",
+                    group.getName(), result.getArrived(), result.getTotal(), newWorld.getName(),
+                    result.getElapsedMillis(), result.getFailed()));
+                if (result.isComplete()) {
+                    group.broadcast(Component.text(String.format("Everyone has arrived (%.1fs)",
+                        result.getElapsedMillis() / 1000.0), NamedTextColor.GREEN));
+                } else {
+                    group.broadcast(Component.text(String.format("%d/%d players arrived", result.getArrived(),
+                        result.getTotal()), NamedTextColor.YELLOW));
+                }
+            });
+
+        long cleanupStarted = System.nanoTime();
+        group.getDisconnectedPlayers().clear();
+        group.finishGeneratingWorld();
+        if (worldPool == null) {
+            perf.resetCleanup.recordSince(cleanupStarted);
+            return;
+        }
+
+        if (previousWorld != null && !previousWorld.equals(newWorld)
+                && !previousWorld.equals(waitingArea.getWorld())
+                && !groupManager.isWorldInUse(previousWorld, group)) {
+            worldReaper.retire(previousWorld);
+        }
+        long cleanupNanos = System.nanoTime() - cleanupStarted;
+
+        // Players keep their own chunks loaded now; drop the warm-up tickets
+        // and start preparing the next standby world once things settle.
+        scheduler.runGlobalLater(() -> {
+            long started = System.nanoTime();
+            newWorld.removePluginChunkTickets(this);
+            worldPool.fill();
+            perf.resetCleanup.record(cleanupNanos + System.nanoTime() - started);
+        }, 100L);
+    }
+
+    private void broadcastToWaiting(ShareGroup group, Component message) {
+        for (Player player : group.getMembers()) {
+            if (waitingArea.contains(player)) {
+                player.sendMessage(message);
             }
         }
-        return path.delete();
     }
 
-    @EventHandler
+    private void resetPlayerHealth(ShareGroup group, Player player) {
+        ShareGroup.applyVitals(player, group.getVitals().snapshot(true, true, true, Collections.singleton(player)),
+            maxHealth);
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
     public void onDamage(EntityDamageEvent event) {
-        if (!(event.getEntity() instanceof Player) || isSyncing) return;
+        long started = System.nanoTime();
+        handleDamage(event);
+        perf.damage.recordSince(started);
+    }
+
+    private void handleDamage(EntityDamageEvent event) {
+        if (!(event.getEntity() instanceof Player)) return;
         
         Player damagedPlayer = (Player) event.getEntity();
         double damageAmount = event.getFinalDamage();
-        playerDamageTaken.merge(damagedPlayer.getUniqueId(), damageAmount, Double::sum);
-        
-        double newHealth = Math.max(damagedPlayer.getHealth() - damageAmount, 0);
-        
-        String cause = event.getCause().toString().toLowerCase().replace("_", " ");
-        Component damageMessage = Component.text()
-            .append(Component.text(damagedPlayer.getName(), NamedTextColor.RED))
-            .append(Component.text(" took ", NamedTextColor.GRAY))
-            .append(Component.text("❤ ", NamedTextColor.RED))
-            .append(Component.text(String.format("%.1f", damageAmount), NamedTextColor.RED))
-            .append(Component.text(" damage from ", NamedTextColor.GRAY))
-            .append(Component.text(cause, NamedTextColor.YELLOW))
-            .build();
-        
-        Bukkit.broadcast(damageMessage);
-        syncHealth(newHealth, damagedPlayer);
-    }
-
-    private void syncHealth(double newHealth, Player sourcePlayer) {
-        isSyncing = true;
-        for (Player p : Bukkit.getOnlinePlayers()) {
-            AttributeInstance maxHealthAttr = p.getAttribute(Attribute.MAX_HEALTH);
-            if (maxHealthAttr != null) {
-                double currentHealth = p.getHealth();
-                p.setHealth(Math.max(Math.min(newHealth, maxHealthAttr.getValue()), 0.0));
-                
-                if (p != sourcePlayer && currentHealth != newHealth) {
-                    p.playSound(p.getLocation(), Sound.ENTITY_PLAYER_HURT, 1.0f, 1.0f);
-                    p.setVelocity(p.getLocation().getDirection().multiply(-0.1).setY(0.1));
-                }
+        traceRecorder.damage(damagedPlayer, event.getCause(), damageAmount);
+        statsStore.recordDamage(damagedPlayer.getUniqueId(), damageAmount);
+
+        ShareGroup group = groupManager.getGroup(damagedPlayer);
+        if (group == null) return;
+        group.recordRunDamage(damagedPlayer.getUniqueId(), damageAmount);
+        runAnalytics.recordDamage(group, damagedPlayer.getUniqueId(), event.getCause(), damageAmount);
+
+        Settings settings = this.settings;
+        if (settings.damageFeed) {
+            damageFeed.record(group, damagedPlayer, event.getCause(), damageAmount);
+        }
+
+        double absorbed = absorbedDamage(event);
+        double newHealth = group.getVitals().damage(damageAmount, absorbed);
+        if (absorbed > 0) {
+            group.getPendingVitals().markAbsorption();
+            queueFlush(group);
+        }
+        if (settings.batchSync) {
+            group.getPendingVitals().markHealth(damagedPlayer);
+            queueFlush(group);
+        } else {
+            perf.healthFanout.record(group.syncHealth(newHealth, damagedPlayer, maxHealth));
+            if (network != null) {
+                network.publishHealth(group);
             }
         }
-        isSyncing = false;
+    }
+
+    /**
+     * How much of the damage the player's absorption hearts took. Damage
+     * modifiers are deprecated without a replacement, but they are the only
+     * place the event reports it.
+     */
+    @SuppressWarnings("deprecation")
+    private static double absorbedDamage(EntityDamageEvent event) {
+        if (!event.isApplicable(EntityDamageEvent.DamageModifier.ABSORPTION)) return 0;
+        return -event.getDamage(EntityDamageEvent.DamageModifier.ABSORPTION);
+    }
+
+    /**
+     * Queues the group for this tick's flush after a change to its pending vitals.
+     */
+    private void queueFlush(ShareGroup group) {
+        if (group.markFlushQueued()) {
+            pendingGroups.add(group);
+        }
     }
 
     @EventHandler
+    public void onTickEnd(ServerTickEndEvent event) {
+        flushPendingVitals();
+    }
+
+    /**
+     * Applies everything that was folded into each group's pending vitals
+     * during the tick. Runs once per tick and only for groups that changed, so
+     * a damage storm costs one update per group member instead of one per event.
+     * The same changes then go out to the other servers in one batch, and
+     * theirs are applied.
+     */
+    private void flushPendingVitals() {
+        long started = System.nanoTime();
+        NetworkSync network = this.network;
+        ShareGroup group;
+        while ((group = pendingGroups.poll()) != null) {
+            PendingVitals.Snapshot vitals = group.drainVitals();
+            if (vitals == null) continue;
+            int written = group.applyVitals(scheduler, vitals, maxHealth);
+            if (written > 0) {
+                perf.flushFanout.record(written);
+            }
+            if (network != null) {
+                network.publish(group, vitals);
+            }
+        }
+        if (network != null) {
+            network.tick();
+        }
+        perf.tickEnd.recordSince(started);
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
     public void onHeal(EntityRegainHealthEvent event) {
-        if (!(event.getEntity() instanceof Player) || isSyncing) return;
+        long started = System.nanoTime();
+        handleHeal(event);
+        perf.heal.recordSince(started);
+    }
+
+    private void handleHeal(EntityRegainHealthEvent event) {
+        if (!(event.getEntity() instanceof Player)) return;
 
         Player player = (Player) event.getEntity();
-        AttributeInstance maxHealthAttr = player.getAttribute(Attribute.MAX_HEALTH);
-        if (maxHealthAttr == null) {
+        traceRecorder.heal(player, event.getRegainReason(), event.getAmount());
+        ShareGroup group = groupManager.getGroup(player);
+        if (group == null) return;
+        double max = maxHealth.get(player);
+        if (Double.isNaN(max)) {
             getLogger().warning(String.format("MAX_HEALTH attribute missing for %s", player.getName()));
             return;
         }
-        
-        double newHealth = Math.min(player.getHealth() + event.getAmount(), maxHealthAttr.getValue());
-        syncHealth(newHealth, player);
+
+        double newHealth = group.getVitals().heal(event.getAmount(), max);
+        if (settings.batchSync) {
+            group.getPendingVitals().markHealth(player);
+            queueFlush(group);
+            return;
+        }
+        perf.healthFanout.record(group.syncHealth(newHealth, player, maxHealth));
+        if (network != null) {
+            network.publishHealth(group);
+        }
     }
 
-    @EventHandler
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
     public void onHunger(FoodLevelChangeEvent event) {
-        if (!(event.getEntity() instanceof Player) || isSyncing) return;
-        syncHunger(event.getFoodLevel());
+        long started = System.nanoTime();
+        handleHunger(event);
+        perf.hunger.recordSince(started);
     }
 
-    private void syncHunger(int newFood) {
-        isSyncing = true;
-        for (Player p : Bukkit.getOnlinePlayers()) {
-            p.setFoodLevel(Math.min(newFood, 20));
-            p.setSaturation(5);
+    private void handleHunger(FoodLevelChangeEvent event) {
+        if (!(event.getEntity() instanceof Player)) return;
+
+        Player player = (Player) event.getEntity();
+        traceRecorder.food(player, event.getFoodLevel());
+        ShareGroup group = groupManager.getGroup(player);
+        if (group == null) return;
+        Settings settings = this.settings;
+        group.getVitals().setFood(event.getFoodLevel(), settings.saturation);
+        if (settings.batchSync) {
+            group.getPendingVitals().markFood();
+            queueFlush(group);
+            return;
+        }
+        perf.hungerFanout.record(group.syncHunger(event.getFoodLevel(), settings.saturation));
+        if (network != null) {
+            network.publishFood(group, event.getFoodLevel());
+        }
+    }
+
+    /**
+     * Shares absorption hearts from golden apples and the like. The event
+     * fires before the effect applies, so the group's members get them in the
+     * tick-end flush.
+     */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPotionEffect(EntityPotionEffectEvent event) {
+        if (!(event.getEntity() instanceof Player) || event.getModifiedType() != PotionEffectType.ABSORPTION) return;
+
+        ShareGroup group = groupManager.getGroup((Player) event.getEntity());
+        if (group == null) return;
+        PotionEffect effect = event.getNewEffect();
+        if (effect != null) {
+            // What vanilla grants per level of the effect.
+            group.getVitals().addAbsorption(4.0 * (effect.getAmplifier() + 1));
+        } else {
+            group.getVitals().clearAbsorption();
         }
-        isSyncing = false;
+        group.getPendingVitals().markAbsorption();
+        queueFlush(group);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,148 @@
+package com.macacomilk.sharedhealth;
+
+import java.util.Set;
+
+import org.bukkit.entity.Player;
+
+/**
+ * The authoritative health, hunger, saturation and absorption of a group.
+ * Event handlers change these numbers and members are written from them, so
+ * the shared value no longer depends on which member an event happened to,
+ * or on what that member's own health was at the time.
+ *
+ * <p>Thread-safe: on Folia the group's members fire their events on
+ * different region threads.
+ */
+final class SharedVitals {
+
+    /** What every run starts with, as before there was shared state. */
+    static final double FULL_HEALTH = 20.0;
+    static final int FULL_FOOD = 20;
+
+    private boolean seeded = false;
+    private double health = FULL_HEALTH;
+    private int foodLevel = FULL_FOOD;
+    private float saturation = 5f;
+    private double absorption = 0;
+    /** How much damage and heals here changed health since other servers were last told. */
+    private double unsentHealthChange = 0;
+
+    /**
+     * Takes the vitals of the first member to come online, so a restart or
+     * reload does not hand the group full health. Run on the player's thread.
+     *
+     * @return {@code false} if the group already had vitals, which the player
+     *         should get instead
+     */
+    synchronized boolean seed(Player player) {
+        if (seeded) return false;
+        seeded = true;
+        health = player.getHealth();
+        foodLevel = player.getFoodLevel();
+        saturation = player.getSaturation();
+        absorption = player.getAbsorptionAmount();
+        return true;
+    }
+
+    /** Full vitals for a new run. */
+    synchronized void reset(float saturation) {
+        seeded = true;
+        health = FULL_HEALTH;
+        foodLevel = FULL_FOOD;
+        this.saturation = saturation;
+        absorption = 0;
+        unsentHealthChange = 0;
+    }
+
+    /**
+     * @param amount   damage after armour and absorption
+     * @param absorbed damage the absorption hearts took
+     * @return the new health
+     */
+    synchronized double damage(double amount, double absorbed) {
+        double before = health;
+        health = Math.max(health - amount, 0.0);
+        unsentHealthChange += health - before;
+        absorption = Math.max(absorption - absorbed, 0.0);
+        return health;
+    }
+
+    /**
+     * Never lowers health, even when a member with a lower maximum than the
+     * shared value heals.
+     *
+     * @param maxHealth the healed member's max health
+     * @return the new health
+     */
+    synchronized double heal(double amount, double maxHealth) {
+        double before = health;
+        health = Math.max(health, Math.min(health + amount, maxHealth));
+        unsentHealthChange += health - before;
+        return health;
+    }
+
+    /**
+     * A change another server made, already capped there.
+     *
+     * @return the new health
+     */
+    synchronized double changeHealth(double change) {
+        seeded = true;
+        health = Math.max(health + change, 0.0);
+        return health;
+    }
+
+    /**
+     * @return the change damage and heals here made to health since the last
+     *         call, for other servers
+     */
+    synchronized double takeHealthChange() {
+        double change = unsentHealthChange;
+        unsentHealthChange = 0;
+        return change;
+    }
+
+    /** Vitals set elsewhere, such as on another server; they count as seeding the group. */
+    synchronized void setHealth(double health) {
+        seeded = true;
+        this.health = Math.max(health, 0.0);
+    }
+
+    synchronized void setFood(int foodLevel, float saturation) {
+        seeded = true;
+        this.foodLevel = Math.min(Math.max(foodLevel, 0), FULL_FOOD);
+        this.saturation = saturation;
+    }
+
+    /** A member drank or ate something that gives absorption; keeps the larger amount. */
+    synchronized void addAbsorption(double amount) {
+        absorption = Math.max(absorption, amount);
+    }
+
+    synchronized void clearAbsorption() {
+        absorption = 0;
+    }
+
+    synchronized double getHealth() {
+        return health;
+    }
+
+    synchronized int getFoodLevel() {
+        return foodLevel;
+    }
+
+    synchronized double getAbsorption() {
+        return absorption;
+    }
+
+    /**
+     * The current values of the given fields, for writing to members.
+     *
+     * @param sources members who caused the change and already have it
+     */
+    synchronized PendingVitals.Snapshot snapshot(boolean withHealth, boolean withFood, boolean withAbsorption,
+            Set<Player> sources) {
+        return new PendingVitals.Snapshot(withHealth, health, sources, withFood, foodLevel, saturation,
+            withAbsorption, absorption);
+    }
+}
@@ -0,0 +1,239 @@
+package com.macacomilk.sharedhealth;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Plain TCP between the servers of a network, in a star: one server is the
+ * hub and listens, the others connect to it. The hub relays every batch it
+ * receives to its other connections, so each server sees every other
+ * server's batches. Clients reconnect with backoff when the hub goes away.
+ *
+ * <p>Batches are length-prefixed frames. Each connection has a reader and a
+ * writer thread and a bounded send queue; when a peer cannot keep up its
+ * batches are dropped rather than blocking the tick. There is no
+ * authentication, so only listen on a private network.
+ */
+final class SocketTransport implements VitalsTransport {
+
+    private static final int MAX_FRAME_BYTES = 1 << 20;
+    private static final int MAX_QUEUED_BATCHES = 1024;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final long MAX_RECONNECT_DELAY_MILLIS = 30_000L;
+
+    private final Logger logger;
+    private final String host;
+    private final int port;
+    private final boolean hub;
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    private volatile Consumer<byte[]> receiver;
+    private volatile Runnable connected;
+    private volatile boolean closed = false;
+    private ServerSocket server;
+    private Thread acceptor;
+
+    /**
+     * @param hub listen on {@code host:port} instead of connecting to it
+     */
+    SocketTransport(Logger logger, String host, int port, boolean hub) {
+        this.logger = logger;
+        this.host = host;
+        this.port = port;
+        this.hub = hub;
+    }
+
+    @Override
+    public void start(Consumer<byte[]> receiver, Runnable connected) throws IOException {
+        this.receiver = receiver;
+        this.connected = connected;
+        if (hub) {
+            server = new ServerSocket();
+            server.bind(new InetSocketAddress(host, port));
+            acceptor = thread("SharedHealth-NetworkHub", this::acceptLoop);
+            logger.info(String.format("Listening for servers on %s:%d", host, port));
+        } else {
+            acceptor = thread("SharedHealth-NetworkClient", this::connectLoop);
+        }
+        acceptor.start();
+    }
+
+    @Override
+    public void send(byte[] batch) {
+        for (Connection connection : connections) {
+            connection.offer(batch);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        if (server != null) {
+            try {
+                server.close();
+            } catch (IOException e) {
+                // Closing anyway.
+            }
+        }
+        if (acceptor != null) {
+            acceptor.interrupt();
+        }
+        for (Connection connection : connections) {
+            connection.close();
+        }
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                Socket socket = server.accept();
+                Connection connection = new Connection(socket);
+                logger.info(String.format("Server connected from %s", socket.getRemoteSocketAddress()));
+                thread("SharedHealth-NetworkReader", connection::readLoop).start();
+            } catch (IOException e) {
+                if (!closed) {
+                    logger.warning(String.format("Failed to accept a server: %s", e.getMessage()));
+                }
+            }
+        }
+    }
+
+    private void connectLoop() {
+        long delay = 1000L;
+        boolean warned = false;
+        while (!closed) {
+            try {
+                Socket socket = new Socket();
+                socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+                logger.info(String.format("Connected to the hub at %s:%d", host, port));
+                delay = 1000L;
+                warned = false;
+                new Connection(socket).readLoop();
+                if (closed) return;
+                logger.warning("Lost the connection to the hub; reconnecting");
+            } catch (IOException e) {
+                if (!warned) {
+                    logger.warning(String.format("Cannot reach the hub at %s:%d (%s); retrying",
+                        host, port, e.getMessage()));
+                    warned = true;
+                }
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                return;
+            }
+            delay = Math.min(delay * 2, MAX_RECONNECT_DELAY_MILLIS);
+        }
+    }
+
+    private static Thread thread(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private final class Connection {
+
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(MAX_QUEUED_BATCHES);
+        private final Thread writer;
+        private volatile boolean dropping = false;
+
+        private Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setTcpNoDelay(true);
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            this.writer = thread("SharedHealth-NetworkWriter", this::writeLoop);
+            connections.add(this);
+            writer.start();
+            connected.run();
+        }
+
+        private void offer(byte[] batch) {
+            if (queue.offer(batch)) {
+                if (dropping) {
+                    dropping = false;
+                    // The peer missed changes; have the sync send it a resync.
+                    connected.run();
+                }
+            } else if (!dropping) {
+                dropping = true;
+                logger.warning(String.format("%s is not keeping up; dropping vitals batches",
+                    socket.getRemoteSocketAddress()));
+            }
+        }
+
+        /**
+         * Delivers frames until the connection closes.
+         */
+        private void readLoop() {
+            try {
+                while (!closed) {
+                    int length = in.readInt();
+                    if (length < 0 || length > MAX_FRAME_BYTES) {
+                        throw new IOException(String.format("Bad frame length %d", length));
+                    }
+                    byte[] batch = new byte[length];
+                    in.readFully(batch);
+                    receiver.accept(batch);
+                    if (hub) {
+                        for (Connection other : connections) {
+                            if (other != this) {
+                                other.offer(batch);
+                            }
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                if (!closed) {
+                    logger.info(String.format("Server %s disconnected: %s", socket.getRemoteSocketAddress(),
+                        e.getMessage()));
+                }
+            } finally {
+                close();
+            }
+        }
+
+        private void writeLoop() {
+            try {
+                while (true) {
+                    byte[] batch = queue.take();
+                    out.writeInt(batch.length);
+                    out.write(batch);
+                    if (queue.isEmpty()) {
+                        out.flush();
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Closed.
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private void close() {
+            connections.remove(this);
+            writer.interrupt();
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Closing anyway.
+            }
+        }
+    }
+}
@@ -0,0 +1,352 @@
+package com.macacomilk.sharedhealth;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.world.WorldUnloadEvent;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * Finds where a group should land in a world: the nearest spot to the
+ * world's spawn where the whole spread of a group is dry, solid, open to the
+ * sky and nearly flat, so nobody lands in water, on a cliff edge or in a
+ * tree.
+ *
+ * <p>The chunks around spawn are loaded through the async chunk API and
+ * copied into {@link ChunkSnapshot}s on the threads that own them; the scan
+ * itself runs async. The result becomes the world's spawn, its chunks are
+ * pinned with a plugin chunk ticket, and it is cached per world until the
+ * world unloads, so a transition goes straight to a loaded spot.
+ *
+ * <p>{@link #find} must be called on the global thread, and its futures
+ * complete there.
+ */
+final class SpawnFinder implements Listener {
+
+    /** Open sky; anything darker is under an overhang or in a cave. */
+    private static final int MIN_SKY_LIGHT = 12;
+    /** Marks columns nobody may stand on; keeps every window containing one out of range. */
+    private static final int UNSAFE_LOW = Integer.MIN_VALUE / 4;
+    private static final int UNSAFE_HIGH = Integer.MAX_VALUE / 4;
+
+    private final Plugin plugin;
+    private final TaskScheduler scheduler;
+    private final Map<UUID, CompletableFuture<Spot>> spots = new ConcurrentHashMap<>();
+
+    private volatile int searchRadius;
+    private volatile int maxStep;
+    private volatile int defaultExtent;
+
+    SpawnFinder(Plugin plugin, TaskScheduler scheduler, Settings settings) {
+        this.plugin = plugin;
+        this.scheduler = scheduler;
+        apply(settings);
+    }
+
+    /** Applies to searches started from now on. */
+    void apply(Settings settings) {
+        searchRadius = settings.spawnSearchRadius;
+        maxStep = settings.spawnMaxStep;
+        defaultExtent = settings.spreadRadius;
+    }
+
+    /**
+     * The spot for the largest spread a group can have.
+     */
+    CompletableFuture<Location> find(World world) {
+        return find(world, defaultExtent);
+    }
+
+    /**
+     * @param extent how far from the spot, in blocks, the ground must be safe
+     *               in every direction; see {@link TeleportPipeline#spreadExtent}
+     * @return the spot, or the world's spawn if the search found none;
+     *         completes exceptionally if the search failed, and the next
+     *         call searches again
+     */
+    CompletableFuture<Location> find(World world, int extent) {
+        UUID id = world.getUID();
+        CompletableFuture<Spot> spot = spots.get(id);
+        if (spot == null || spot.isCompletedExceptionally() || (spot.isDone() && !spot.join().covers(extent))) {
+            try {
+                spot = search(world, extent);
+            } catch (RuntimeException e) {
+                spot = CompletableFuture.failedFuture(e);
+            }
+            spots.put(id, spot);
+        }
+        return spot.thenApply(Spot::getLocation);
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onWorldUnload(WorldUnloadEvent event) {
+        spots.remove(event.getWorld().getUID());
+    }
+
+    private CompletableFuture<Spot> search(World world, int extent) {
+        long started = System.nanoTime();
+        Location origin = world.getSpawnLocation();
+        int radius = searchRadius;
+        int side = radius * 2 + 1;
+        int originChunkX = origin.getBlockX() >> 4;
+        int originChunkZ = origin.getBlockZ() >> 4;
+        int minY = world.getMinHeight();
+        int maxY = world.getMaxHeight();
+
+        ChunkSnapshot[] snapshots = new ChunkSnapshot[side * side];
+        AtomicInteger remaining = new AtomicInteger(snapshots.length);
+        CompletableFuture<Spot> result = new CompletableFuture<>();
+        for (int dz = 0; dz < side; dz++) {
+            for (int dx = 0; dx < side; dx++) {
+                int index = dz * side + dx;
+                world.getChunkAtAsync(originChunkX - radius + dx, originChunkZ - radius + dz)
+                    .whenComplete((chunk, error) -> {
+                        // On the chunk's own thread; a chunk that failed to load stays unsafe.
+                        try {
+                            if (error == null) {
+                                snapshots[index] = chunk.getChunkSnapshot(true, false, false);
+                            }
+                        } finally {
+                            if (remaining.decrementAndGet() == 0) {
+                                scheduler.runAsync(() -> completeWith(result, () -> {
+                                    Grid grid = new Grid(snapshots, side, originChunkX - radius,
+                                        originChunkZ - radius, minY, maxY);
+                                    return grid.find(origin, extent, maxStep);
+                                }, found -> settle(world, origin, found, extent, started)));
+                            }
+                        }
+                    });
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Runs the scan here, then settles its result on the global thread;
+     * anything either throws fails {@code result}.
+     */
+    private void completeWith(CompletableFuture<Spot> result, Supplier<Spot> scan, UnaryOperator<Spot> settle) {
+        Spot found;
+        try {
+            found = scan.get();
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+            return;
+        }
+        scheduler.runGlobal(() -> {
+            try {
+                result.complete(settle.apply(found));
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+    }
+
+    /**
+     * Makes the spot the world's spawn and keeps its chunks loaded. Runs on
+     * the global thread.
+     */
+    private Spot settle(World world, Location origin, Spot found, int extent, long started) {
+        long millis = (System.nanoTime() - started) / 1_000_000L;
+        if (found == null) {
+            plugin.getLogger().warning(String.format("No safe spawn found near %d, %d in %s (%d ms)",
+                origin.getBlockX(), origin.getBlockZ(), world.getName(), millis));
+            return new Spot(origin, 0, true);
+        }
+
+        Location location = found.getLocation();
+        if (found.extent < extent) {
+            plugin.getLogger().info(String.format("Spawn in %s only has safe ground %d blocks around, not %d",
+                world.getName(), found.extent, extent));
+        }
+        world.setSpawnLocation(location.getBlockX(), location.getBlockY(), location.getBlockZ());
+        int x = location.getBlockX();
+        int z = location.getBlockZ();
+        for (int chunkX = (x - found.extent) >> 4; chunkX <= (x + found.extent) >> 4; chunkX++) {
+            for (int chunkZ = (z - found.extent) >> 4; chunkZ <= (z + found.extent) >> 4; chunkZ++) {
+                int pinX = chunkX;
+                int pinZ = chunkZ;
+                scheduler.runAtLocation(new Location(world, pinX << 4, 0, pinZ << 4),
+                    () -> world.addPluginChunkTicket(pinX, pinZ, plugin));
+            }
+        }
+        plugin.getLogger().info(String.format("Spawn in %s moved to %d, %d, %d (%d ms)", world.getName(),
+            x, location.getBlockY(), z, millis));
+        return found;
+    }
+
+    /**
+     * Standing on a column: nothing that hurts, and not a tree.
+     */
+    static boolean isSafeGround(Material type) {
+        return type.isSolid() && !isHazard(type) && !type.name().endsWith("_LEAVES");
+    }
+
+    private static boolean isHazard(Material type) {
+        switch (type) {
+            case WATER:
+            case LAVA:
+            case MAGMA_BLOCK:
+            case CACTUS:
+            case FIRE:
+            case POWDER_SNOW:
+            case SWEET_BERRY_BUSH:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /** A found spot and how far around it the ground is safe. */
+    private static final class Spot {
+
+        private final Location location;
+        private final int extent;
+        /** No spot with a larger extent exists in the searched area. */
+        private final boolean largest;
+
+        private Spot(Location location, int extent, boolean largest) {
+            this.location = location;
+            this.extent = extent;
+            this.largest = largest;
+        }
+
+        private Location getLocation() {
+            return location;
+        }
+
+        private boolean covers(int wanted) {
+            return largest || extent >= wanted;
+        }
+    }
+
+    /**
+     * The surface of the searched chunks, one column per block, scanned off
+     * the main thread.
+     */
+    private static final class Grid {
+
+        private final int size;
+        private final int originX;
+        private final int originZ;
+        /** Surface height of each column, or the unsafe markers; indexed {@code z * size + x}. */
+        private final int[] low;
+        private final int[] high;
+
+        private Grid(ChunkSnapshot[] snapshots, int side, int firstChunkX, int firstChunkZ, int minY, int maxY) {
+            this.size = side * 16;
+            this.originX = firstChunkX << 4;
+            this.originZ = firstChunkZ << 4;
+            this.low = new int[size * size];
+            this.high = new int[size * size];
+
+            for (int chunkZ = 0; chunkZ < side; chunkZ++) {
+                for (int chunkX = 0; chunkX < side; chunkX++) {
+                    ChunkSnapshot snapshot = snapshots[chunkZ * side + chunkX];
+                    for (int z = 0; z < 16; z++) {
+                        for (int x = 0; x < 16; x++) {
+                            int index = (chunkZ * 16 + z) * size + chunkX * 16 + x;
+                            int y = snapshot == null ? Integer.MIN_VALUE : surface(snapshot, x, z, minY, maxY);
+                            low[index] = y == Integer.MIN_VALUE ? UNSAFE_LOW : y;
+                            high[index] = y == Integer.MIN_VALUE ? UNSAFE_HIGH : y;
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return the height of a safe surface block, or {@code Integer.MIN_VALUE}
+         */
+        private static int surface(ChunkSnapshot snapshot, int x, int z, int minY, int maxY) {
+            int y = snapshot.getHighestBlockYAt(x, z);
+            if (y < minY || y + 2 >= maxY) return Integer.MIN_VALUE;
+            if (!isSafeGround(snapshot.getBlockType(x, y, z))) return Integer.MIN_VALUE;
+            Material feet = snapshot.getBlockType(x, y + 1, z);
+            if (feet.isSolid() || isHazard(feet)) return Integer.MIN_VALUE;
+            if (snapshot.getBlockSkyLight(x, y + 1, z) < MIN_SKY_LIGHT) return Integer.MIN_VALUE;
+            return y;
+        }
+
+        /**
+         * The centre nearest to {@code origin} whose square of {@code extent}
+         * is all safe and at most {@code maxStep} high from lowest to highest
+         * column, trying smaller squares if no centre has the full one.
+         */
+        private Spot find(Location origin, int extent, int maxStep) {
+            int wanted = Math.min(Math.max(extent, 0), (size - 1) / 2);
+            for (int e = wanted; e >= 0; e--) {
+                int[] windowLow = window(low, e, false);
+                int[] windowHigh = window(high, e, true);
+                int bestIndex = -1;
+                long bestDistance = Long.MAX_VALUE;
+                for (int z = e; z < size - e; z++) {
+                    for (int x = e; x < size - e; x++) {
+                        int index = z * size + x;
+                        if (windowHigh[index] - windowLow[index] > maxStep) continue;
+
+                        long dx = originX + x - origin.getBlockX();
+                        long dz = originZ + z - origin.getBlockZ();
+                        long distance = dx * dx + dz * dz;
+                        if (distance < bestDistance) {
+                            bestDistance = distance;
+                            bestIndex = index;
+                        }
+                    }
+                }
+                if (bestIndex >= 0) {
+                    int x = bestIndex % size;
+                    int z = bestIndex / size;
+                    Location location = new Location(origin.getWorld(), originX + x + 0.5, high[bestIndex] + 1,
+                        originZ + z + 0.5, origin.getYaw(), origin.getPitch());
+                    return new Spot(location, e, e < extent);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * The minimum or maximum of every square of {@code radius} around each
+         * column, as a pass along x and then one along z.
+         */
+        private int[] window(int[] values, int radius, boolean max) {
+            if (radius == 0) return values;
+            int[] rows = new int[values.length];
+            int[] result = new int[values.length];
+            for (int z = 0; z < size; z++) {
+                for (int x = 0; x < size; x++) {
+                    rows[z * size + x] = extreme(values, z * size, 1, x, radius, max);
+                }
+            }
+            for (int z = 0; z < size; z++) {
+                for (int x = 0; x < size; x++) {
+                    result[z * size + x] = extreme(rows, x, size, z, radius, max);
+                }
+            }
+            return result;
+        }
+
+        private int extreme(int[] values, int start, int stride, int center, int radius, boolean max) {
+            int from = Math.max(center - radius, 0);
+            int to = Math.min(center + radius, size - 1);
+            int value = values[start + from * stride];
+            for (int i = from + 1; i <= to; i++) {
+                int next = values[start + i * stride];
+                value = max ? Math.max(value, next) : Math.min(value, next);
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,405 @@
+package com.macacomilk.sharedhealth;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * Crash-safe storage for player stats.
+ *
+ * <p>Every change is appended as a fixed-size delta record to
+ * {@code stats-<generation>.log}. Records are buffered on the main thread and
+ * written in batches by a single writer thread. Every so often the table is
+ * compacted into {@code stats.snapshot}, written to a temporary file and
+ * atomically renamed into place. The snapshot names the log generation that
+ * follows it, so a crash between the rename and deleting the old log can
+ * never count a delta twice. Startup loads the snapshot plus the log tail.
+ *
+ * <p>Recording may happen on any thread. The table, its rankings and the
+ * record buffer are all guarded by the monitor of {@link #getRankedStats()}.
+ */
+final class StatsStore {
+
+    private static final int SNAPSHOT_MAGIC = 0x53485354;
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final String SNAPSHOT_FILE = "stats.snapshot";
+    private static final String LOG_PREFIX = "stats-";
+    private static final String LOG_SUFFIX = ".log";
+    private static final String LEGACY_FILE = "player_stats.yml";
+
+    private static final byte RECORD_DEATH = 1;
+    private static final byte RECORD_DAMAGE = 2;
+    /** type (1) + UUID (16) + value (8). */
+    private static final int RECORD_SIZE = 25;
+
+    private final Plugin plugin;
+    private final Path folder;
+    private final int compactAfterRecords;
+    private final PlayerStatsTable table = new PlayerStatsTable();
+    private RankedStats ranked;
+
+    private final ByteArrayOutputStream pendingBytes = new ByteArrayOutputStream(4096);
+    private final DataOutputStream pending = new DataOutputStream(pendingBytes);
+    private int recordsSinceCompaction = 0;
+
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "SharedHealth-StatsWriter");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /** Writer thread only. */
+    private FileChannel log;
+    private long generation;
+
+    StatsStore(Plugin plugin, File folder, int compactAfterRecords) {
+        this.plugin = plugin;
+        this.folder = folder.toPath();
+        this.compactAfterRecords = Math.max(1, compactAfterRecords);
+    }
+
+    /**
+     * The all-time rankings; available once {@link #load()} returned.
+     */
+    RankedStats getRankedStats() {
+        return ranked;
+    }
+
+    /**
+     * Loads the snapshot and replays any logged deltas after it, importing the
+     * old {@code player_stats.yml} the first time. Call once before use.
+     */
+    void load() throws IOException {
+        Files.createDirectories(folder);
+        long started = System.currentTimeMillis();
+
+        Path snapshot = folder.resolve(SNAPSHOT_FILE);
+        List<Long> logGenerations = listLogGenerations();
+        Path legacy = folder.resolve(LEGACY_FILE);
+
+        long snapshotGeneration = 0;
+        if (Files.exists(snapshot)) {
+            snapshotGeneration = readSnapshot(snapshot);
+        } else if (logGenerations.isEmpty() && Files.exists(legacy)) {
+            importLegacy(legacy);
+            writeSnapshot(encodeSnapshot(0));
+            Files.move(legacy, folder.resolve(LEGACY_FILE + ".imported"), StandardCopyOption.REPLACE_EXISTING);
+            plugin.getLogger().info(String.format("Imported %d players from %s", table.size(), LEGACY_FILE));
+        }
+
+        generation = snapshotGeneration;
+        int replayed = 0;
+        for (long logGeneration : logGenerations) {
+            Path file = logFile(logGeneration);
+            if (logGeneration < snapshotGeneration) {
+                // Already folded into the snapshot; left over from a crash mid-compaction.
+                Files.deleteIfExists(file);
+                continue;
+            }
+            replayed += replayLog(file);
+            generation = logGeneration;
+        }
+        recordsSinceCompaction = replayed;
+
+        log = openLog(generation);
+        ranked = new RankedStats(table);
+        plugin.getLogger().info(String.format("Loaded stats for %d players (%d logged changes) in %d ms",
+            table.size(), replayed, System.currentTimeMillis() - started));
+    }
+
+    void recordDeath(UUID uuid) {
+        synchronized (ranked) {
+            ranked.recordDeath(uuid);
+            append(RECORD_DEATH, uuid, 1);
+        }
+    }
+
+    void recordDamage(UUID uuid, double amount) {
+        synchronized (ranked) {
+            ranked.recordDamage(uuid, amount);
+            append(RECORD_DAMAGE, uuid, amount);
+        }
+    }
+
+    int getDeaths(UUID uuid) {
+        synchronized (ranked) {
+            int entry = table.indexOf(uuid);
+            return entry < 0 ? 0 : table.deaths(entry);
+        }
+    }
+
+    double getDamage(UUID uuid) {
+        synchronized (ranked) {
+            int entry = table.indexOf(uuid);
+            return entry < 0 ? 0 : table.damage(entry);
+        }
+    }
+
+    private void append(byte type, UUID uuid, double value) {
+        try {
+            pending.writeByte(type);
+            pending.writeLong(uuid.getMostSignificantBits());
+            pending.writeLong(uuid.getLeastSignificantBits());
+            pending.writeDouble(value);
+        } catch (IOException e) {
+            // ByteArrayOutputStream does not throw.
+            throw new IllegalStateException(e);
+        }
+        recordsSinceCompaction++;
+    }
+
+    /**
+     * Hands buffered deltas to the writer thread, and compacts once enough
+     * changes have piled up in the log.
+     */
+    void flush() {
+        synchronized (ranked) {
+            if (pendingBytes.size() > 0) {
+                byte[] batch = pendingBytes.toByteArray();
+                pendingBytes.reset();
+                writer.execute(() -> appendBatch(batch));
+            }
+
+            if (recordsSinceCompaction >= compactAfterRecords) {
+                compact();
+            }
+        }
+    }
+
+    /**
+     * Caller holds the lock, so the snapshot matches exactly the deltas queued
+     * so far and no batch can be queued between it and the log switch.
+     */
+    private void compact() {
+        recordsSinceCompaction = 0;
+        byte[] snapshot = encodeSnapshot(0);
+        writer.execute(() -> {
+            try {
+                long nextGeneration = generation + 1;
+                FileChannel nextLog = openLog(nextGeneration);
+                stampGeneration(snapshot, nextGeneration);
+                writeSnapshot(snapshot);
+
+                FileChannel previousLog = log;
+                long previousGeneration = generation;
+                log = nextLog;
+                generation = nextGeneration;
+                previousLog.close();
+                Files.deleteIfExists(logFile(previousGeneration));
+            } catch (IOException e) {
+                plugin.getLogger().severe(String.format("Failed to compact player stats: %s", e.getMessage()));
+            }
+        });
+    }
+
+    /**
+     * Flushes, compacts and waits for the writer to finish. Called on disable.
+     */
+    void close() {
+        synchronized (ranked) {
+            flush();
+            compact();
+        }
+        writer.execute(() -> {
+            try {
+                log.close();
+            } catch (IOException e) {
+                plugin.getLogger().warning(String.format("Failed to close stats log: %s", e.getMessage()));
+            }
+        });
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(10, TimeUnit.SECONDS)) {
+                plugin.getLogger().severe("Timed out waiting for player stats to be written");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void appendBatch(byte[] batch) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(batch);
+            while (buffer.hasRemaining()) {
+                log.write(buffer);
+            }
+            log.force(false);
+        } catch (IOException e) {
+            plugin.getLogger().severe(String.format("Failed to append player stats: %s", e.getMessage()));
+        }
+    }
+
+    private FileChannel openLog(long logGeneration) throws IOException {
+        FileChannel channel = FileChannel.open(logFile(logGeneration),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        // Drop a record torn by a crash so appends stay aligned.
+        long valid = channel.size() - channel.size() % RECORD_SIZE;
+        channel.truncate(valid);
+        channel.position(valid);
+        return channel;
+    }
+
+    private Path logFile(long logGeneration) {
+        return folder.resolve(LOG_PREFIX + logGeneration + LOG_SUFFIX);
+    }
+
+    private List<Long> listLogGenerations() throws IOException {
+        List<Long> generations = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder, LOG_PREFIX + "*" + LOG_SUFFIX)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                try {
+                    generations.add(Long.parseLong(
+                        name.substring(LOG_PREFIX.length(), name.length() - LOG_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    plugin.getLogger().warning(String.format("Ignoring unexpected stats file %s", name));
+                }
+            }
+        }
+        generations.sort(null);
+        return generations;
+    }
+
+    /**
+     * Applies a log's records to the table. A record with an unknown type
+     * means everything from there on is garbage: the log is truncated before
+     * it, like a torn tail, instead of failing the whole load.
+     */
+    private int replayLog(Path file) throws IOException {
+        int records = 0;
+        boolean corrupt = false;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            while (true) {
+                byte type;
+                long most;
+                long least;
+                double value;
+                try {
+                    type = in.readByte();
+                    most = in.readLong();
+                    least = in.readLong();
+                    value = in.readDouble();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (type != RECORD_DEATH && type != RECORD_DAMAGE) {
+                    plugin.getLogger().warning(String.format(
+                        "Corrupt record type %d at offset %d in %s; dropping the rest of the log",
+                        type, (long) records * RECORD_SIZE, file.getFileName()));
+                    corrupt = true;
+                    break;
+                }
+
+                int entry = table.getOrCreate(most, least);
+                if (type == RECORD_DEATH) {
+                    table.addDeaths(entry, (int) value);
+                } else {
+                    table.addDamage(entry, value);
+                }
+                records++;
+            }
+        }
+        if (corrupt) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate((long) records * RECORD_SIZE);
+            }
+        }
+        return records;
+    }
+
+    private byte[] encodeSnapshot(long snapshotGeneration) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(24 + table.size() * 28);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeLong(snapshotGeneration);
+            out.writeInt(table.size());
+            for (int entry = 0; entry < table.size(); entry++) {
+                out.writeLong(table.mostBits(entry));
+                out.writeLong(table.leastBits(entry));
+                out.writeInt(table.deaths(entry));
+                out.writeDouble(table.damage(entry));
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void stampGeneration(byte[] snapshot, long snapshotGeneration) {
+        ByteBuffer.wrap(snapshot).putLong(8, snapshotGeneration);
+    }
+
+    private void writeSnapshot(byte[] snapshot) throws IOException {
+        Path target = folder.resolve(SNAPSHOT_FILE);
+        Path temp = folder.resolve(SNAPSHOT_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(snapshot);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private long readSnapshot(Path snapshot) throws IOException {
+        try (InputStream raw = Files.newInputStream(snapshot);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(raw, 1 << 16))) {
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not a stats snapshot: " + snapshot.getFileName());
+            }
+            int version = in.readInt();
+            if (version != SNAPSHOT_VERSION) {
+                throw new IOException(String.format("Unsupported stats snapshot version %d", version));
+            }
+            long snapshotGeneration = in.readLong();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int entry = table.getOrCreate(in.readLong(), in.readLong());
+                table.set(entry, in.readInt(), in.readDouble());
+            }
+            return snapshotGeneration;
+        }
+    }
+
+    private void importLegacy(Path legacy) {
+        YamlConfiguration config = YamlConfiguration.loadConfiguration(legacy.toFile());
+        ConfigurationSection deathsSection = config.getConfigurationSection("deaths");
+        ConfigurationSection damageSection = config.getConfigurationSection("damage");
+
+        if (deathsSection != null) {
+            for (String key : deathsSection.getKeys(false)) {
+                table.addDeaths(table.getOrCreate(UUID.fromString(key)), deathsSection.getInt(key));
+            }
+        }
+
+        if (damageSection != null) {
+            for (String key : damageSection.getKeys(false)) {
+                table.addDamage(table.getOrCreate(UUID.fromString(key)), damageSection.getDouble(key));
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.macacomilk.sharedhealth;
+
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.entity.Entity;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitTask;
+
+import io.papermc.paper.threadedregions.scheduler.ScheduledTask;
+
+/**
+ * Runs tasks on the right thread on both Paper and Folia.
+ *
+ * <p>On Paper everything that touches the world runs on the main thread. On
+ * Folia there is no main thread: entities must be touched from their own
+ * region's thread, blocks from the region owning the chunk, and server-wide
+ * work runs on the global region thread.
+ */
+final class TaskScheduler {
+
+    /** A scheduled task that can be cancelled on either platform. */
+    interface Task {
+        void cancel();
+    }
+
+    private static final long MILLIS_PER_TICK = 50L;
+
+    private final Plugin plugin;
+    private final boolean folia;
+
+    TaskScheduler(Plugin plugin) {
+        this.plugin = plugin;
+        this.folia = detectFolia();
+    }
+
+    private static boolean detectFolia() {
+        try {
+            Class.forName("io.papermc.paper.threadedregions.RegionizedServer");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    boolean isFolia() {
+        return folia;
+    }
+
+    /**
+     * Runs on the main thread, or the global region thread on Folia.
+     */
+    Task runGlobal(Runnable task) {
+        if (folia) {
+            return wrap(Bukkit.getGlobalRegionScheduler().run(plugin, scheduled -> task.run()));
+        }
+        return wrap(Bukkit.getScheduler().runTask(plugin, task));
+    }
+
+    Task runGlobalLater(Runnable task, long delayTicks) {
+        if (folia) {
+            return wrap(Bukkit.getGlobalRegionScheduler().runDelayed(plugin, scheduled -> task.run(),
+                Math.max(1L, delayTicks)));
+        }
+        return wrap(Bukkit.getScheduler().runTaskLater(plugin, task, delayTicks));
+    }
+
+    Task runGlobalTimer(Runnable task, long delayTicks, long periodTicks) {
+        if (folia) {
+            return wrap(Bukkit.getGlobalRegionScheduler().runAtFixedRate(plugin, scheduled -> task.run(),
+                Math.max(1L, delayTicks), periodTicks));
+        }
+        return wrap(Bukkit.getScheduler().runTaskTimer(plugin, task, delayTicks, periodTicks));
+    }
+
+    Task runAsync(Runnable task) {
+        if (folia) {
+            return wrap(Bukkit.getAsyncScheduler().runNow(plugin, scheduled -> task.run()));
+        }
+        return wrap(Bukkit.getScheduler().runTaskAsynchronously(plugin, task));
+    }
+
+    Task runAsyncLater(Runnable task, long delayTicks) {
+        if (folia) {
+            return wrap(Bukkit.getAsyncScheduler().runDelayed(plugin, scheduled -> task.run(),
+                Math.max(1L, delayTicks) * MILLIS_PER_TICK, TimeUnit.MILLISECONDS));
+        }
+        return wrap(Bukkit.getScheduler().runTaskLaterAsynchronously(plugin, task, delayTicks));
+    }
+
+    /**
+     * Runs now if the current thread may touch the entity, otherwise on the
+     * thread that owns it. Dropped if the entity is removed first.
+     */
+    void executeForEntity(Entity entity, Runnable task) {
+        if (folia) {
+            if (Bukkit.isOwnedByCurrentRegion(entity)) {
+                task.run();
+            } else {
+                entity.getScheduler().run(plugin, scheduled -> task.run(), null);
+            }
+        } else if (Bukkit.isPrimaryThread()) {
+            task.run();
+        } else {
+            Bukkit.getScheduler().runTask(plugin, task);
+        }
+    }
+
+    void runForEntityLater(Entity entity, Runnable task, long delayTicks) {
+        if (folia) {
+            entity.getScheduler().runDelayed(plugin, scheduled -> task.run(), null, Math.max(1L, delayTicks));
+        } else {
+            Bukkit.getScheduler().runTaskLater(plugin, task, delayTicks);
+        }
+    }
+
+    /**
+     * Runs on the thread that owns the chunk at the location.
+     */
+    void runAtLocation(Location location, Runnable task) {
+        if (folia) {
+            Bukkit.getRegionScheduler().execute(plugin, location, task);
+        } else if (Bukkit.isPrimaryThread()) {
+            task.run();
+        } else {
+            Bukkit.getScheduler().runTask(plugin, task);
+        }
+    }
+
+    private static Task wrap(BukkitTask task) {
+        return task::cancel;
+    }
+
+    private static Task wrap(ScheduledTask task) {
+        return task::cancel;
+    }
+}
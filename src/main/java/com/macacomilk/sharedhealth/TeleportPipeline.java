@@ -0,0 +1,279 @@
+package com.macacomilk.sharedhealth;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import org.bukkit.Chunk;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.entity.Player;
+
+/**
+ * Moves a whole group into a world without a single-tick spike. Players are
+ * spread over points around the target so they do not all land in one
+ * block, the chunks under those points are loaded asynchronously, and
+ * teleports are started at most {@code perTick} per tick once a player's
+ * chunk is ready.
+ *
+ * <p>Safe to use from any thread. Each player is prepared and teleported on
+ * the thread that owns them; chunk surfaces are read on the thread that owns
+ * the chunk.
+ */
+final class TeleportPipeline {
+
+    /**
+     * Players that quit mid-transition are never reported; stop waiting for
+     * them, and send anyone whose chunk has still not loaded to the centre.
+     */
+    private static final long TIMEOUT_TICKS = 600L;
+
+    private final TaskScheduler scheduler;
+    private final int perTick;
+    private final int spacing;
+    private final int spreadRadius;
+
+    TeleportPipeline(TaskScheduler scheduler, int perTick, int spacing, int spreadRadius) {
+        this.scheduler = scheduler;
+        this.perTick = Math.max(1, perTick);
+        this.spacing = Math.max(1, spacing);
+        this.spreadRadius = Math.max(0, spreadRadius);
+    }
+
+    /**
+     * @param prepare run on the player's thread right before they are teleported
+     * @param arrived run on the player's thread once they are in the new place
+     * @return completes once every player has arrived, failed to or timed out;
+     *         players still waiting at the timeout are teleported afterwards
+     */
+    CompletableFuture<Result> teleport(Collection<Player> players, Location center,
+            Consumer<Player> prepare, Consumer<Player> arrived) {
+        List<Player> targets = new ArrayList<>(players);
+        Transition transition = new Transition(targets.size(), prepare, arrived);
+        if (targets.isEmpty()) {
+            transition.finish();
+            return transition.done;
+        }
+
+        World world = center.getWorld();
+        List<int[]> offsets = spreadOffsets();
+        Map<Long, CompletableFuture<Chunk>> chunks = new HashMap<>();
+        for (int i = 0; i < targets.size(); i++) {
+            Player player = targets.get(i);
+            int[] offset = offsets.get(i % offsets.size());
+            if (offset[0] == 0 && offset[1] == 0) {
+                transition.queue(new Move(player, center));
+                continue;
+            }
+
+            int x = center.getBlockX() + offset[0];
+            int z = center.getBlockZ() + offset[1];
+            long key = ((long) (x >> 4) << 32) | ((z >> 4) & 0xFFFFFFFFL);
+            chunks.computeIfAbsent(key, ignored -> world.getChunkAtAsync(x >> 4, z >> 4))
+                .whenComplete((chunk, error) -> {
+                    Location target = error == null ? surfaceAt(world, x, z, center) : center;
+                    transition.queue(new Move(player, target));
+                });
+        }
+
+        transition.pump = scheduler.runGlobalTimer(transition::pump, 1L, 1L);
+        scheduler.runGlobalLater(() -> {
+            transition.finish();
+            for (Player player : targets) {
+                transition.queue(new Move(player, center));
+            }
+        }, TIMEOUT_TICKS);
+        return transition.done;
+    }
+
+    /**
+     * How far from the centre the given number of players are spread, so
+     * {@link SpawnFinder} can find ground that is safe for all of them.
+     */
+    int spreadExtent(int players) {
+        int ring = 0;
+        while ((ring + 1) * spacing <= spreadRadius && (2 * ring + 1) * (2 * ring + 1) < players) {
+            ring++;
+        }
+        return ring * spacing;
+    }
+
+    /**
+     * The centre first, then square rings outwards, {@code spacing} blocks apart.
+     */
+    private List<int[]> spreadOffsets() {
+        List<int[]> offsets = new ArrayList<>();
+        offsets.add(new int[] {0, 0});
+        for (int ring = 1; ring * spacing <= spreadRadius; ring++) {
+            for (int d = -ring; d < ring; d++) {
+                offsets.add(new int[] {d * spacing, -ring * spacing});
+                offsets.add(new int[] {ring * spacing, d * spacing});
+                offsets.add(new int[] {-d * spacing, ring * spacing});
+                offsets.add(new int[] {-ring * spacing, -d * spacing});
+            }
+        }
+        return offsets;
+    }
+
+    /**
+     * Standing on the surface at the column, or the centre if that is not safe ground.
+     */
+    private static Location surfaceAt(World world, int x, int z, Location center) {
+        Block ground = world.getHighestBlockAt(x, z);
+        if (!SpawnFinder.isSafeGround(ground.getType())) return center;
+        return new Location(world, x + 0.5, ground.getY() + 1, z + 0.5, center.getYaw(), center.getPitch());
+    }
+
+    private static final class Move {
+        private final Player player;
+        private final Location target;
+
+        private Move(Player player, Location target) {
+            this.player = player;
+            this.target = target;
+        }
+    }
+
+    private final class Transition {
+
+        private final int total;
+        private final Consumer<Player> prepare;
+        private final Consumer<Player> onArrival;
+        private final long startedAt = System.currentTimeMillis();
+        private final Queue<Move> ready = new ConcurrentLinkedQueue<>();
+        /** Players with a move in {@link #ready} or started; each gets one. */
+        private final Set<Player> queued = ConcurrentHashMap.newKeySet();
+        private final AtomicInteger arrived = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private final AtomicBoolean finished = new AtomicBoolean();
+        /** The first exception a callback threw, if any. */
+        private final AtomicReference<RuntimeException> error = new AtomicReference<>();
+        private final CompletableFuture<Result> done = new CompletableFuture<>();
+        /** Global thread only. */
+        private int started = 0;
+        private volatile TaskScheduler.Task pump;
+
+        private Transition(int total, Consumer<Player> prepare, Consumer<Player> onArrival) {
+            this.total = total;
+            this.prepare = prepare;
+            this.onArrival = onArrival;
+        }
+
+        private void queue(Move move) {
+            if (queued.add(move.player)) {
+                ready.add(move);
+            }
+        }
+
+        /** Runs until every player was started, even after the timeout reported the result. */
+        private void pump() {
+            for (int i = 0; i < perTick; i++) {
+                Move move = ready.poll();
+                if (move == null) break;
+                started++;
+                scheduler.executeForEntity(move.player, () -> start(move));
+            }
+            if (started >= total) {
+                TaskScheduler.Task task = pump;
+                if (task != null) task.cancel();
+            }
+        }
+
+        private void start(Move move) {
+            Player player = move.player;
+            if (!player.isOnline()) {
+                report(false);
+                return;
+            }
+            // A throwing callback must not keep the player, or the whole group, waiting.
+            try {
+                prepare.accept(player);
+            } catch (RuntimeException e) {
+                error.compareAndSet(null, e);
+            }
+            player.teleportAsync(move.target).whenComplete((success, teleportError) -> {
+                boolean ok = teleportError == null && Boolean.TRUE.equals(success);
+                try {
+                    if (ok) {
+                        onArrival.accept(player);
+                    }
+                } catch (RuntimeException e) {
+                    error.compareAndSet(null, e);
+                } finally {
+                    report(ok);
+                }
+            });
+        }
+
+        private void report(boolean ok) {
+            int reported = ok ? arrived.incrementAndGet() + failed.get() : failed.incrementAndGet() + arrived.get();
+            if (reported >= total) {
+                finish();
+            }
+        }
+
+        private void finish() {
+            if (!finished.compareAndSet(false, true)) return;
+            done.complete(new Result(total, arrived.get(), failed.get(), System.currentTimeMillis() - startedAt,
+                error.get()));
+        }
+    }
+
+    /** How a transition went. Players still on their way at the timeout count as neither. */
+    static final class Result {
+
+        private final int total;
+        private final int arrived;
+        private final int failed;
+        private final long elapsedMillis;
+        private final RuntimeException error;
+
+        private Result(int total, int arrived, int failed, long elapsedMillis, RuntimeException error) {
+            this.total = total;
+            this.arrived = arrived;
+            this.failed = failed;
+            this.elapsedMillis = elapsedMillis;
+            this.error = error;
+        }
+
+        int getTotal() {
+            return total;
+        }
+
+        int getArrived() {
+            return arrived;
+        }
+
+        int getFailed() {
+            return failed;
+        }
+
+        long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        boolean isComplete() {
+            return arrived == total;
+        }
+
+        /**
+         * @return the first exception thrown by a prepare or arrival callback;
+         *         the player was still teleported, or reported as failed
+         */
+        RuntimeException getError() {
+            return error;
+        }
+    }
+}
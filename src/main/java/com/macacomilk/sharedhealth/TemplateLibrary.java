@@ -0,0 +1,365 @@
+package com.macacomilk.sharedhealth;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * A library of pre-generated, pre-warmed worlds kept on disk, so a reset can
+ * copy a template's files into a new world folder and load it instead of
+ * generating terrain.
+ *
+ * <p>Templates live in {@code sharedhealth_templates/} inside the world
+ * container, on the same filesystem as the worlds cloned from them. Each is
+ * cloned at most {@code maxUses} times per server session and then replaced
+ * by a template with a new seed, generated one at a time in the background.
+ *
+ * <p>All methods must be called on the main thread; file work runs async.
+ * Not used on Folia, which cannot create or unload worlds at runtime.
+ */
+final class TemplateLibrary {
+
+    private static final String DIRECTORY = "sharedhealth_templates";
+    private static final String GENERATING_PREFIX = "sharedhealth_template_";
+    private static final String METADATA_FILE = "template.yml";
+    /** Identify a world to the server; a clone must get its own. */
+    private static final Set<String> SKIPPED_FILES = Set.of(METADATA_FILE, "uid.dat", "session.lock");
+
+    private final Plugin plugin;
+    private final SpawnFinder spawnFinder;
+    private final Path worldContainer;
+    private final Path directory;
+    private final Random random = new Random();
+    private final int size;
+    private final int maxUses;
+    private final int preloadRadius;
+    private final int preloadConcurrency;
+
+    private final Deque<Template> ready = new ArrayDeque<>();
+    private WorldPreparation generating;
+    private long lastTemplateStamp = 0;
+
+    TemplateLibrary(Plugin plugin, SpawnFinder spawnFinder, int size, int maxUses, int preloadRadius,
+            int preloadConcurrency) {
+        this.plugin = plugin;
+        this.spawnFinder = spawnFinder;
+        this.worldContainer = Bukkit.getWorldContainer().toPath();
+        this.directory = worldContainer.resolve(DIRECTORY);
+        this.size = Math.max(0, size);
+        this.maxUses = Math.max(1, maxUses);
+        this.preloadRadius = Math.max(0, preloadRadius);
+        this.preloadConcurrency = Math.max(1, preloadConcurrency);
+    }
+
+    /**
+     * Picks up the templates on disk and deletes half-finished ones left by a
+     * crash. Only reads each template's small metadata file.
+     */
+    void load() {
+        Set<String> loaded = new HashSet<>();
+        for (World world : Bukkit.getWorlds()) {
+            loaded.add(world.getName());
+        }
+
+        List<Path> leftovers = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(worldContainer,
+                path -> path.getFileName().toString().startsWith(GENERATING_PREFIX))) {
+            for (Path folder : stream) {
+                if (!loaded.contains(folder.getFileName().toString())) {
+                    leftovers.add(folder);
+                }
+            }
+        } catch (IOException e) {
+            plugin.getLogger().warning(String.format("Failed to scan for unfinished templates: %s", e.getMessage()));
+        }
+
+        if (Files.isDirectory(directory)) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, Files::isDirectory)) {
+                for (Path folder : stream) {
+                    Path metadata = folder.resolve(METADATA_FILE);
+                    if (!Files.isRegularFile(metadata)) {
+                        leftovers.add(folder);
+                        continue;
+                    }
+                    YamlConfiguration config = YamlConfiguration.loadConfiguration(metadata.toFile());
+                    ready.add(new Template(folder, config.getLong("seed"), config.getLong("size-bytes")));
+                }
+            } catch (IOException e) {
+                plugin.getLogger().warning(String.format("Failed to scan world templates: %s", e.getMessage()));
+            }
+        }
+        plugin.getLogger().info(String.format("Loaded %d world templates", ready.size()));
+
+        if (!leftovers.isEmpty()) {
+            Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+                for (Path folder : leftovers) {
+                    try {
+                        WorldReaper.deleteTree(folder);
+                        plugin.getLogger().info(String.format("Deleted unfinished template %s", folder.getFileName()));
+                    } catch (IOException e) {
+                        plugin.getLogger().warning(String.format("Failed to delete unfinished template %s: %s",
+                            folder.getFileName(), e.getMessage()));
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * The next template to clone, or {@code null} when none is ready. Must be
+     * handed back with {@link #release} once the clone is done.
+     */
+    Template take() {
+        Template template = ready.poll();
+        if (template == null) return null;
+
+        template.uses++;
+        template.clonesInFlight++;
+        if (template.uses < maxUses) {
+            // Round robin, so clones spread over every seed in the library.
+            ready.add(template);
+        } else {
+            template.retired = true;
+            fill();
+        }
+        return template;
+    }
+
+    void release(Template template) {
+        template.clonesInFlight--;
+        if (template.retired && template.clonesInFlight == 0) {
+            Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+                try {
+                    WorldReaper.deleteTree(template.folder);
+                } catch (IOException e) {
+                    plugin.getLogger().warning(String.format("Failed to delete used-up template %s: %s",
+                        template.folder.getFileName(), e.getMessage()));
+                }
+            });
+        }
+    }
+
+    /**
+     * Starts generating a template if the library is short of its size and
+     * nothing is generating yet. One at a time, so topping up the library
+     * never competes with a reset for more than one world's worth of chunk loads.
+     */
+    void fill() {
+        if (generating != null || ready.size() >= size) return;
+
+        lastTemplateStamp = Math.max(System.currentTimeMillis(), lastTemplateStamp + 1);
+        long stamp = lastTemplateStamp;
+        String name = GENERATING_PREFIX + stamp;
+        long seed = random.nextLong();
+        WorldPreparation preparation = new WorldPreparation(plugin, spawnFinder, name, seed, preloadRadius,
+            preloadConcurrency, null);
+        generating = preparation;
+
+        preparation.start().whenComplete((world, error) -> {
+            if (error != null) {
+                plugin.getLogger().severe(String.format("Failed to generate template %s: %s", name, error.getMessage()));
+                generating = null;
+                return;
+            }
+
+            // Everything generated so far is written to the region files on unload.
+            Path folder = world.getWorldFolder().toPath();
+            world.removePluginChunkTickets(plugin);
+            if (!Bukkit.unloadWorld(world, true)) {
+                plugin.getLogger().severe(String.format("Could not unload template world %s", name));
+                generating = null;
+                return;
+            }
+
+            Path target = directory.resolve("template_" + stamp);
+            Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+                Template template = store(folder, target, seed);
+                Bukkit.getScheduler().runTask(plugin, () -> {
+                    generating = null;
+                    if (template != null) {
+                        ready.add(template);
+                        plugin.getLogger().info(String.format("World template %s ready (%d MB)",
+                            target.getFileName(), template.sizeBytes >> 20));
+                    }
+                    fill();
+                });
+            });
+        });
+    }
+
+    /**
+     * Moves a freshly unloaded world into the library. Runs async.
+     *
+     * @return the template, or {@code null} if it could not be stored
+     */
+    private Template store(Path folder, Path target, long seed) {
+        try {
+            Files.createDirectories(directory);
+            Files.move(folder, target, StandardCopyOption.ATOMIC_MOVE);
+            long sizeBytes = sizeOf(target);
+
+            YamlConfiguration config = new YamlConfiguration();
+            config.set("seed", seed);
+            config.set("size-bytes", sizeBytes);
+            config.save(target.resolve(METADATA_FILE).toFile());
+            return new Template(target, seed, sizeBytes);
+        } catch (IOException e) {
+            plugin.getLogger().severe(String.format("Failed to store template %s: %s",
+                target.getFileName(), e.getMessage()));
+            try {
+                WorldReaper.deleteTree(Files.exists(target) ? target : folder);
+            } catch (IOException ignored) {
+                // Picked up as a leftover on the next start.
+            }
+            return null;
+        }
+    }
+
+    private static long sizeOf(Path root) throws IOException {
+        AtomicLong bytes = new AtomicLong();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                bytes.addAndGet(attrs.size());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return bytes.get();
+    }
+
+    int getReady() {
+        return ready.size();
+    }
+
+    int getSize() {
+        return size;
+    }
+
+    /** The template being generated, or {@code null}. */
+    WorldPreparation getGenerating() {
+        return generating;
+    }
+
+    /** A pre-generated world on disk that new worlds are cloned from. */
+    static final class Template {
+
+        private final Path folder;
+        private final long seed;
+        private final long sizeBytes;
+        /** Main thread only. */
+        private int uses = 0;
+        private int clonesInFlight = 0;
+        private boolean retired = false;
+
+        private Template(Path folder, long seed, long sizeBytes) {
+            this.folder = folder;
+            this.seed = seed;
+            this.sizeBytes = sizeBytes;
+        }
+
+        long getSeed() {
+            return seed;
+        }
+
+        long getSizeBytes() {
+            return sizeBytes;
+        }
+
+        /**
+         * Copies the template into a new world folder off the main thread,
+         * leaving out the files that identify the original world. Region
+         * files are rewritten in place by the server, so they cannot be
+         * shared through hard links; each file is streamed with
+         * {@link FileChannel#transferTo}, which lets the kernel copy without
+         * going through the heap and, on filesystems that support it, share
+         * the blocks copy-on-write. Completes on the main thread; a failed
+         * copy leaves nothing behind.
+         *
+         * @param copied incremented as bytes are copied, for progress
+         */
+        CompletableFuture<Void> cloneTo(Plugin plugin, Path target, AtomicLong copied) {
+            CompletableFuture<Void> done = new CompletableFuture<>();
+            Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+                IOException failure = null;
+                try {
+                    copyTree(target, copied);
+                } catch (IOException e) {
+                    failure = e;
+                    try {
+                        WorldReaper.deleteTree(target);
+                    } catch (IOException ignored) {
+                        // Left for the reaper's orphan scan.
+                    }
+                }
+                IOException error = failure;
+                Bukkit.getScheduler().runTask(plugin, () -> {
+                    if (error == null) {
+                        done.complete(null);
+                    } else {
+                        done.completeExceptionally(error);
+                    }
+                });
+            });
+            return done;
+        }
+
+        private void copyTree(Path target, AtomicLong copied) throws IOException {
+            Files.walkFileTree(folder, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    Files.createDirectories(target.resolve(folder.relativize(dir).toString()));
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if (file.getParent().equals(folder) && SKIPPED_FILES.contains(file.getFileName().toString())) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    Path destination = target.resolve(folder.relativize(file).toString());
+                    try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+                         FileChannel out = FileChannel.open(destination, StandardOpenOption.CREATE_NEW,
+                             StandardOpenOption.WRITE)) {
+                        long length = in.size();
+                        long position = 0;
+                        while (position < length) {
+                            long transferred = in.transferTo(position, length - position, out);
+                            if (transferred <= 0) {
+                                // Nothing moved: the file shrank under us, or the
+                                // channel is stuck. Never spin on it.
+                                length = in.size();
+                                if (position >= length) break;
+                                throw new IOException(String.format("Copy of %s stalled at byte %d of %d",
+                                    file, position, length));
+                            }
+                            position += transferred;
+                            copied.addAndGet(transferred);
+                        }
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.macacomilk.sharedhealth;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
+import org.bukkit.event.entity.EntityDamageEvent;
+import org.bukkit.event.entity.EntityRegainHealthEvent;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * Records the events the plugin handles, in the order it handles them, to an
+ * {@link EventTrace} file under {@code traces/} so a fight or reset can be
+ * replayed offline.
+ *
+ * <p>Records are buffered under this object's lock from any thread and
+ * written by a single writer thread on each {@link #flush()}. When not
+ * recording, each call costs one volatile read.
+ */
+final class TraceRecorder {
+
+    private static final long NANOS_PER_TICK = 50_000_000L;
+
+    private final Plugin plugin;
+    private final TaskScheduler scheduler;
+    private final Path folder;
+
+    private volatile boolean recording = false;
+    private final ByteArrayOutputStream pendingBytes = new ByteArrayOutputStream(4096);
+    private final DataOutputStream pending = new DataOutputStream(pendingBytes);
+    private final Map<UUID, Integer> playerIds = new HashMap<>();
+    private long startTick;
+    private long startNanos;
+    private long lastTick;
+    private long records;
+
+    private ExecutorService writer;
+    /** Writer thread only. */
+    private FileChannel channel;
+    private Path file;
+
+    TraceRecorder(Plugin plugin, TaskScheduler scheduler, File dataFolder) {
+        this.plugin = plugin;
+        this.scheduler = scheduler;
+        this.folder = dataFolder.toPath().resolve("traces");
+    }
+
+    boolean isRecording() {
+        return recording;
+    }
+
+    /**
+     * @return the trace file
+     */
+    synchronized Path start() throws IOException {
+        if (recording) return file;
+
+        Files.createDirectories(folder);
+        file = folder.resolve("trace-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".bin");
+        FileChannel opened = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        writer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "SharedHealth-TraceWriter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        writer.execute(() -> channel = opened);
+
+        pendingBytes.reset();
+        playerIds.clear();
+        records = 0;
+        startNanos = System.nanoTime();
+        startTick = currentTick();
+        lastTick = 0;
+        pending.writeInt(EventTrace.MAGIC);
+        pending.writeInt(EventTrace.VERSION);
+        pending.writeLong(System.currentTimeMillis());
+        recording = true;
+        return file;
+    }
+
+    /**
+     * Writes what is left, closes the file and waits for the writer.
+     *
+     * @return the number of records in the finished trace
+     */
+    synchronized long stop() {
+        if (!recording) return 0;
+        recording = false;
+
+        flush();
+        writer.execute(() -> {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                plugin.getLogger().warning(String.format("Failed to close event trace: %s", e.getMessage()));
+            }
+        });
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(10, TimeUnit.SECONDS)) {
+                plugin.getLogger().severe("Timed out waiting for the event trace to be written");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writer = null;
+        plugin.getLogger().info(String.format("Recorded %d events to %s", records, file.getFileName()));
+        return records;
+    }
+
+    /**
+     * Hands buffered records to the writer thread.
+     */
+    synchronized void flush() {
+        if (pendingBytes.size() == 0 || writer == null) return;
+
+        byte[] batch = pendingBytes.toByteArray();
+        pendingBytes.reset();
+        writer.execute(() -> {
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(batch);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } catch (IOException e) {
+                plugin.getLogger().severe(String.format("Failed to write event trace: %s", e.getMessage()));
+            }
+        });
+    }
+
+    void damage(Player player, EntityDamageEvent.DamageCause cause, double amount) {
+        append(EventTrace.DAMAGE, player, cause.ordinal(), (float) amount);
+    }
+
+    void heal(Player player, EntityRegainHealthEvent.RegainReason reason, double amount) {
+        append(EventTrace.HEAL, player, reason.ordinal(), (float) amount);
+    }
+
+    void food(Player player, int foodLevel) {
+        append(EventTrace.FOOD, player, Math.max(0, Math.min(foodLevel, 255)), 0f);
+    }
+
+    void death(Player player) {
+        append(EventTrace.DEATH, player, 0, 0f);
+    }
+
+    void join(Player player) {
+        append(EventTrace.JOIN, player, 0, 0f);
+    }
+
+    void quit(Player player) {
+        append(EventTrace.QUIT, player, 0, 0f);
+    }
+
+    private void append(byte type, Player player, int value, float amount) {
+        if (!recording) return;
+
+        synchronized (this) {
+            if (!recording) return;
+            try {
+                long tick = currentTick() - startTick;
+                UUID uuid = player.getUniqueId();
+                Integer id = playerIds.get(uuid);
+                if (id == null) {
+                    id = playerIds.size();
+                    playerIds.put(uuid, id);
+                    writeHeader(EventTrace.PLAYER, tick, id);
+                    pending.writeLong(uuid.getMostSignificantBits());
+                    pending.writeLong(uuid.getLeastSignificantBits());
+                    pending.writeUTF(player.getName());
+                }
+
+                writeHeader(type, tick, id);
+                if (type == EventTrace.DAMAGE || type == EventTrace.HEAL) {
+                    pending.writeByte(value);
+                    pending.writeFloat(amount);
+                } else if (type == EventTrace.FOOD) {
+                    pending.writeByte(value);
+                }
+                records++;
+            } catch (IOException e) {
+                // ByteArrayOutputStream does not throw.
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private void writeHeader(byte type, long tick, int id) throws IOException {
+        // On Folia a region thread can take the lock with a slightly older tick; keep order, not time.
+        long delta = Math.max(0, tick - lastTick);
+        lastTick += delta;
+        pending.writeByte(type);
+        EventTrace.writeVarInt(pending, (int) Math.min(delta, Integer.MAX_VALUE));
+        EventTrace.writeVarInt(pending, id);
+    }
+
+    /**
+     * The server tick on Paper. Folia has no single tick counter, so there it
+     * is derived from the time since the recording started.
+     */
+    private long currentTick() {
+        if (scheduler.isFolia()) {
+            return (System.nanoTime() - startNanos) / NANOS_PER_TICK;
+        }
+        return Bukkit.getCurrentTick();
+    }
+}
@@ -0,0 +1,131 @@
+package com.macacomilk.sharedhealth;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bukkit.attribute.Attribute;
+import org.bukkit.attribute.AttributeInstance;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * A slow pass over every group's members that corrects anyone whose health,
+ * hunger, saturation, absorption or cached max health drifted from the
+ * group's {@link SharedVitals}, for example because another plugin or a
+ * command changed them without an event the plugin handles. Players are
+ * checked on their own threads, so each pass logs what the previous one
+ * corrected.
+ *
+ * <p>Saturation drains on each member separately between hunger events, so
+ * only saturation above the group's is drift; it cannot rise without one.
+ *
+ * <p>Groups that are resetting, have an unflushed change or are dead are
+ * skipped, as are members in the waiting area.
+ */
+final class VitalsReconciler {
+
+    private static final double HEALTH_TOLERANCE = 0.01;
+    private static final float SATURATION_TOLERANCE = 0.01f;
+    private static final double ABSORPTION_TOLERANCE = 0.01;
+
+    private final Plugin plugin;
+    private final TaskScheduler scheduler;
+    private final GroupManager groupManager;
+    private final WaitingArea waitingArea;
+    private final MaxHealthCache maxHealth;
+
+    private final AtomicInteger checked = new AtomicInteger();
+    private final AtomicInteger healthFixed = new AtomicInteger();
+    private final AtomicInteger foodFixed = new AtomicInteger();
+    private final AtomicInteger saturationFixed = new AtomicInteger();
+    private final AtomicInteger absorptionFixed = new AtomicInteger();
+    private final AtomicInteger maxHealthStale = new AtomicInteger();
+    /** Guarded by {@link #checked}. */
+    private double largestHealthDrift = 0;
+
+    VitalsReconciler(Plugin plugin, TaskScheduler scheduler, GroupManager groupManager, WaitingArea waitingArea,
+            MaxHealthCache maxHealth) {
+        this.plugin = plugin;
+        this.scheduler = scheduler;
+        this.groupManager = groupManager;
+        this.waitingArea = waitingArea;
+        this.maxHealth = maxHealth;
+    }
+
+    /** Runs on the global thread. */
+    void run() {
+        report();
+        for (ShareGroup group : groupManager.getGroups()) {
+            if (group.isGeneratingWorld() || group.isFlushQueued()) continue;
+            PendingVitals.Snapshot vitals = group.getVitals().snapshot(true, true, true, Collections.emptySet());
+            if (vitals.getHealth() <= 0) continue;
+
+            for (Player player : group.getMembers()) {
+                scheduler.executeForEntity(player, () -> check(player, vitals));
+            }
+        }
+    }
+
+    private void check(Player player, PendingVitals.Snapshot vitals) {
+        if (!player.isOnline() || player.isDead() || waitingArea.contains(player)) return;
+        checked.incrementAndGet();
+        if (!maxHealth.verify(player)) {
+            maxHealthStale.incrementAndGet();
+        }
+
+        double max = maxHealth.get(player);
+        if (!Double.isNaN(max)) {
+            double expected = Math.min(vitals.getHealth(), max);
+            double drift = Math.abs(player.getHealth() - expected);
+            if (drift > HEALTH_TOLERANCE) {
+                player.setHealth(expected);
+                healthFixed.incrementAndGet();
+                synchronized (checked) {
+                    largestHealthDrift = Math.max(largestHealthDrift, drift);
+                }
+            }
+        }
+
+        int foodLevel = Math.min(vitals.getFoodLevel(), 20);
+        if (player.getFoodLevel() != foodLevel) {
+            player.setFoodLevel(foodLevel);
+            foodFixed.incrementAndGet();
+        }
+
+        if (player.getSaturation() - vitals.getSaturation() > SATURATION_TOLERANCE) {
+            player.setSaturation(vitals.getSaturation());
+            saturationFixed.incrementAndGet();
+        }
+
+        // The server clamps absorption to the player's own max, which only
+        // members under an Absorption effect have; that is not drift.
+        AttributeInstance maxAbsorption = player.getAttribute(Attribute.MAX_ABSORPTION);
+        if (maxAbsorption != null) {
+            double expected = Math.min(vitals.getAbsorption(), maxAbsorption.getValue());
+            if (Math.abs(player.getAbsorptionAmount() - expected) > ABSORPTION_TOLERANCE) {
+                player.setAbsorptionAmount(expected);
+                absorptionFixed.incrementAndGet();
+            }
+        }
+    }
+
+    private void report() {
+        int players = checked.getAndSet(0);
+        int health = healthFixed.getAndSet(0);
+        int food = foodFixed.getAndSet(0);
+        int saturation = saturationFixed.getAndSet(0);
+        int absorption = absorptionFixed.getAndSet(0);
+        int stale = maxHealthStale.getAndSet(0);
+        double largest;
+        synchronized (checked) {
+            largest = largestHealthDrift;
+            largestHealthDrift = 0;
+        }
+        if (health == 0 && food == 0 && saturation == 0 && absorption == 0 && stale == 0) return;
+
+        plugin.getLogger().info(String.format(
+            "Vitals drifted: checked %d players, corrected health of %d (up to %.2f off), food of %d,"
+                + " saturation of %d, absorption of %d and cached max health of %d",
+            players, health, largest, food, saturation, absorption, stale));
+    }
+}
@@ -0,0 +1,30 @@
+package com.macacomilk.sharedhealth;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * Carries {@link NetworkSync} batches between the servers sharing vitals.
+ * Batches are opaque byte arrays; a transport only has to deliver each one
+ * whole to every other server, in the order it was sent.
+ */
+interface VitalsTransport {
+
+    /**
+     * Starts delivering batches from other servers to {@code receiver}, which
+     * may be called on any thread.
+     *
+     * @param connected run, on any thread, whenever a connection to another
+     *                  server opens or catches up after dropping batches, so
+     *                  the sync can tell it where it is
+     */
+    void start(Consumer<byte[]> receiver, Runnable connected) throws IOException;
+
+    /**
+     * Sends a batch to every other server. Never blocks; a batch that cannot
+     * be sent right away may be dropped.
+     */
+    void send(byte[] batch);
+
+    void close();
+}
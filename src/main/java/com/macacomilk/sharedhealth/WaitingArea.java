@@ -0,0 +1,414 @@
+package com.macacomilk.sharedhealth;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bukkit.Bukkit;
+import org.bukkit.GameMode;
+import org.bukkit.GameRule;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.NamespacedKey;
+import org.bukkit.Particle;
+import org.bukkit.Sound;
+import org.bukkit.World;
+import org.bukkit.WorldCreator;
+import org.bukkit.WorldType;
+import org.bukkit.block.structure.Mirror;
+import org.bukkit.block.structure.StructureRotation;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerMoveEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.event.player.PlayerTeleportEvent;
+import org.bukkit.persistence.PersistentDataType;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.structure.Structure;
+import org.bukkit.structure.StructureManager;
+import org.bukkit.util.BlockVector;
+
+import net.kyori.adventure.text.Component;
+
+/**
+ * The lobby world players wait in while the next world is prepared.
+ *
+ * <p>Keeps the set of players currently inside it up to date from join, quit
+ * and world-change events (teleports and respawns into or out of the world
+ * all end in a world change), so the periodic tasks and broadcasts only touch
+ * those players instead of scanning everyone online.
+ *
+ * <p>Folia cannot create worlds at runtime, so there the platform is hosted
+ * high above the main world instead and membership follows teleports onto
+ * and off the platform rather than world changes.
+ */
+final class WaitingArea implements Listener {
+
+    static final String WORLD_NAME = "sharedhealth_waiting_area";
+    /** Bump whenever the platform layout below changes to force a rebuild. */
+    private static final int PLATFORM_VERSION = 1;
+    private static final int PLATFORM_RADIUS = 8;
+    private static final int PLATFORM_BOTTOM = 4;
+    private static final int PLATFORM_TOP = 11;
+    /**
+     * Where the platform sits when hosted in the main world. Keeps it inside a
+     * single 8x8 chunk section so one region thread owns all of it.
+     */
+    private static final int HOSTED_ORIGIN_X = 64;
+    private static final int HOSTED_ORIGIN_Y = 296;
+    private static final int HOSTED_ORIGIN_Z = 64;
+
+    private final Plugin plugin;
+    private final TaskScheduler scheduler;
+    private final PerfMonitor perf;
+    private World world;
+    private boolean hosted = false;
+    private int originX;
+    private int originY;
+    private int originZ;
+    private Location center;
+    private final Set<Player> members = ConcurrentHashMap.newKeySet();
+    /** How far from the centre members may walk; at most the floor's 7. */
+    private volatile int bound;
+    /** Guarded by {@code this}. */
+    private TaskScheduler.Task stateTask;
+    private TaskScheduler.Task soundTask;
+    private long stateTicks;
+    private long soundTicks;
+
+    WaitingArea(Plugin plugin, TaskScheduler scheduler, PerfMonitor perf, Settings settings) {
+        this.plugin = plugin;
+        this.scheduler = scheduler;
+        this.perf = perf;
+        this.bound = settings.waitingAreaBound;
+    }
+
+    void create() {
+        world = Bukkit.getWorld(WORLD_NAME);
+
+        if (world == null && scheduler.isFolia()) {
+            world = Bukkit.getWorlds().get(0);
+            hosted = true;
+            originX = HOSTED_ORIGIN_X;
+            originY = HOSTED_ORIGIN_Y;
+            originZ = HOSTED_ORIGIN_Z;
+            plugin.getLogger().info(String.format("Folia cannot create worlds; hosting the waiting area in %s",
+                world.getName()));
+        } else if (world == null) {
+            WorldCreator creator = new WorldCreator(WORLD_NAME)
+                .environment(World.Environment.NORMAL)
+                .generateStructures(false)
+                .type(WorldType.FLAT);
+            world = creator.createWorld();
+            
+            if (world == null) {
+                throw new IllegalStateException("Failed to create waiting world");
+            }
+        }
+        
+        if (!hosted) {
+            world.setGameRule(GameRule.DO_IMMEDIATE_RESPAWN, true);
+            world.setGameRule(GameRule.DO_MOB_SPAWNING, false);
+            world.setGameRule(GameRule.DO_DAYLIGHT_CYCLE, false);
+            world.setGameRule(GameRule.DO_WEATHER_CYCLE, false);
+        }
+
+        center = new Location(world, originX + 0.5, originY + 6, originZ + 0.5);
+        scheduler.runAtLocation(center, this::createWaitingPlatform);
+
+        for (Player player : world.getPlayers()) {
+            if (isInside(player.getLocation())) {
+                join(player);
+            }
+        }
+    }
+
+    /**
+     * Builds the platform unless the world says it already has the current
+     * version. Rebuilds place the saved structure template in one bulk write;
+     * the first build writes the blocks directly, without physics, and saves
+     * the result as that template.
+     */
+    private void createWaitingPlatform() {
+        NamespacedKey versionKey = new NamespacedKey(plugin, "platform_version");
+        Integer builtVersion = world.getPersistentDataContainer().get(versionKey, PersistentDataType.INTEGER);
+        if (builtVersion != null && builtVersion == PLATFORM_VERSION) return;
+
+        long started = System.currentTimeMillis();
+        File templateFile = new File(plugin.getDataFolder(), "waiting_platform_v" + PLATFORM_VERSION + ".nbt");
+        StructureManager structures = Bukkit.getStructureManager();
+        Location origin = new Location(world, originX - PLATFORM_RADIUS, originY + PLATFORM_BOTTOM,
+            originZ - PLATFORM_RADIUS);
+
+        boolean fromTemplate = false;
+        if (templateFile.exists()) {
+            try {
+                structures.loadStructure(templateFile)
+                    .place(origin, false, StructureRotation.NONE, Mirror.NONE, 0, 1.0f, new Random());
+                fromTemplate = true;
+            } catch (IOException e) {
+                plugin.getLogger().warning(String.format("Failed to load platform template: %s", e.getMessage()));
+            }
+        }
+
+        if (!fromTemplate) {
+            buildPlatformBlocks();
+            Structure template = structures.createStructure();
+            template.fill(origin, new BlockVector(PLATFORM_RADIUS * 2 + 1, PLATFORM_TOP - PLATFORM_BOTTOM + 1,
+                PLATFORM_RADIUS * 2 + 1), false);
+            try {
+                structures.saveStructure(templateFile, template);
+            } catch (IOException e) {
+                plugin.getLogger().warning(String.format("Failed to save platform template: %s", e.getMessage()));
+            }
+        }
+
+        world.getPersistentDataContainer().set(versionKey, PersistentDataType.INTEGER, PLATFORM_VERSION);
+        plugin.getLogger().info(String.format("Built waiting platform v%d %s in %d ms", PLATFORM_VERSION,
+            fromTemplate ? "from template" : "block by block", System.currentTimeMillis() - started));
+    }
+
+    private void buildPlatformBlocks() {
+        for (int x = -7; x <= 7; x++) {
+            for (int z = -7; z <= 7; z++) {
+                setBlock(x, 4, z, Material.BEDROCK);
+                if ((x + z) % 2 == 0) {
+                    setBlock(x, 5, z, Material.POLISHED_ANDESITE);
+                } else {
+                    setBlock(x, 5, z, Material.POLISHED_DIORITE);
+                }
+            }
+        }
+        
+        for (int y = 5; y <= 10; y++) {
+            for (int x = -8; x <= 8; x++) {
+                Material wallMaterial = (y % 2 == 0) ? Material.STONE_BRICKS : Material.MOSSY_STONE_BRICKS;
+                setBlock(x, y, -8, wallMaterial);
+                setBlock(x, y, 8, wallMaterial);
+            }
+            for (int z = -7; z <= 7; z++) {
+                Material wallMaterial = (y % 2 == 0) ? Material.STONE_BRICKS : Material.MOSSY_STONE_BRICKS;
+                setBlock(-8, y, z, wallMaterial);
+                setBlock(8, y, z, wallMaterial);
+            }
+        }
+        
+        for (int y = 5; y <= 11; y++) {
+            Material pillarMaterial = (y % 3 == 0) ? Material.QUARTZ_PILLAR : Material.SMOOTH_QUARTZ;
+            setBlock(-8, y, -8, pillarMaterial);
+            setBlock(-8, y, 8, pillarMaterial);
+            setBlock(8, y, -8, pillarMaterial);
+            setBlock(8, y, 8, pillarMaterial);
+        }
+        
+        for (int x = -7; x <= 7; x++) {
+            for (int z = -7; z <= 7; z++) {
+                Material glassType;
+                if (Math.abs(x) == Math.abs(z)) {
+                    glassType = Material.RED_STAINED_GLASS;
+                } else if (x == 0 || z == 0) {
+                    glassType = Material.BLUE_STAINED_GLASS;
+                } else {
+                    glassType = Material.WHITE_STAINED_GLASS;
+                }
+                setBlock(x, 11, z, glassType);
+            }
+        }
+        
+        for (int x = -6; x <= 6; x += 4) {
+            for (int z = -6; z <= 6; z += 4) {
+                setBlock(x, 10, z, Material.SEA_LANTERN);
+            }
+        }
+        
+        setBlock(2, 6, 0, Material.FLOWER_POT);
+        setBlock(-2, 6, 0, Material.FLOWER_POT);
+
+        for (int x = -6; x <= 6; x += 3) {
+            setBlock(x, 8, -7, Material.WHITE_WALL_BANNER);
+            setBlock(x, 8, 7, Material.WHITE_WALL_BANNER);
+        }
+
+        for (int x = -1; x <= 1; x++) {
+            for (int z = -1; z <= 1; z++) {
+                setBlock(x, 6, z, Material.RED_CARPET);
+            }
+        }
+        
+        setBlock(3, 5, 3, Material.OAK_STAIRS);
+        setBlock(-3, 5, 3, Material.OAK_STAIRS);
+        setBlock(3, 5, -3, Material.OAK_STAIRS);
+        setBlock(-3, 5, -3, Material.OAK_STAIRS);
+    }
+
+    private void setBlock(int x, int y, int z, Material type) {
+        world.getBlockAt(originX + x, originY + y, originZ + z).setType(type, false);
+    }
+
+    /**
+     * Starts the repeating tasks, or restarts whichever ones changed period
+     * after a reload, and applies the new walking bound.
+     */
+    synchronized void apply(Settings settings) {
+        bound = settings.waitingAreaBound;
+        if (stateTask == null || stateTicks != settings.waitingStateTicks) {
+            if (stateTask != null) stateTask.cancel();
+            stateTicks = settings.waitingStateTicks;
+            stateTask = scheduler.runGlobalTimer(this::refreshMembers, 0L, stateTicks);
+        }
+        if (soundTask == null || soundTicks != settings.ambientSoundTicks) {
+            if (soundTask != null) soundTask.cancel();
+            soundTicks = settings.ambientSoundTicks;
+            soundTask = scheduler.runGlobalTimer(this::playAmbientSounds, 0L, soundTicks);
+        }
+    }
+
+    /**
+     * On Folia the timings of this and {@link #playAmbientSounds} only cover
+     * handing the per-player work to each player's region, not the work itself.
+     */
+    private void refreshMembers() {
+        long started = System.nanoTime();
+        for (Player player : members) {
+            scheduler.executeForEntity(player, () -> {
+                applyWaitingState(player);
+                player.spawnParticle(Particle.END_ROD, 
+                    player.getLocation().add(0, 2, 0), 
+                    3, 0.5, 0.5, 0.5, 0.05);
+            });
+        }
+        perf.waitingAreaTask.recordSince(started);
+    }
+
+    private void playAmbientSounds() {
+        long started = System.nanoTime();
+        for (Player player : members) {
+            scheduler.executeForEntity(player, () -> player.playSound(player.getLocation(), 
+                Sound.AMBIENT_UNDERWATER_LOOP, 
+                0.3f, 1.0f));
+        }
+        perf.ambientSoundTask.recordSince(started);
+    }
+
+    /**
+     * Sends the player to the platform. Must run on the player's thread.
+     */
+    void enter(Player player) {
+        player.teleportAsync(center);
+    }
+
+    World getWorld() {
+        return world;
+    }
+
+    Location getCenter() {
+        return center;
+    }
+
+    boolean contains(Player player) {
+        return members.contains(player);
+    }
+
+    Set<Player> getMembers() {
+        return Collections.unmodifiableSet(members);
+    }
+
+    void broadcast(Component message) {
+        for (Player player : members) {
+            player.sendMessage(message);
+        }
+    }
+
+    private boolean isInside(Location location) {
+        if (!world.equals(location.getWorld())) return false;
+        if (!hosted) return true;
+
+        int y = location.getBlockY() - originY;
+        return Math.abs(location.getBlockX() - originX) <= PLATFORM_RADIUS
+            && Math.abs(location.getBlockZ() - originZ) <= PLATFORM_RADIUS
+            && y >= PLATFORM_BOTTOM && y <= PLATFORM_TOP;
+    }
+
+    private void join(Player player) {
+        if (members.add(player)) {
+            applyWaitingState(player);
+        }
+    }
+
+    /**
+     * Only writes what differs, so re-applying it every second is cheap.
+     */
+    private static void applyWaitingState(Player player) {
+        if (player.getGameMode() != GameMode.ADVENTURE) {
+            player.setGameMode(GameMode.ADVENTURE);
+        }
+        if (!player.isInvulnerable()) {
+            player.setInvulnerable(true);
+        }
+    }
+
+    @EventHandler
+    public void onPlayerJoin(PlayerJoinEvent event) {
+        Player player = event.getPlayer();
+        if (isInside(player.getLocation())) {
+            join(player);
+        }
+    }
+
+    @EventHandler
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        members.remove(event.getPlayer());
+    }
+
+    @EventHandler
+    public void onPlayerChangedWorld(PlayerChangedWorldEvent event) {
+        if (hosted) return;
+
+        Player player = event.getPlayer();
+        if (player.getWorld().equals(world)) {
+            join(player);
+        } else if (event.getFrom().equals(world)) {
+            members.remove(player);
+        }
+    }
+
+    /**
+     * Tracks membership when hosted, where teleports onto the platform do not
+     * have to change worlds.
+     */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPlayerTeleport(PlayerTeleportEvent event) {
+        if (!hosted) return;
+
+        Player player = event.getPlayer();
+        if (isInside(event.getTo())) {
+            join(player);
+        } else {
+            members.remove(player);
+        }
+    }
+
+    /**
+     * Keeps members on the platform. Runs on every movement but only does a
+     * set lookup and integer compares when the player crosses a block.
+     */
+    @EventHandler(priority = EventPriority.HIGH, ignoreCancelled = true)
+    public void onPlayerMove(PlayerMoveEvent event) {
+        if (!event.hasChangedBlock() || !members.contains(event.getPlayer())) return;
+
+        Location to = event.getTo();
+        int x = to.getBlockX() - originX;
+        int z = to.getBlockZ() - originZ;
+        int limit = bound;
+        if (x < -limit || x > limit || z < -limit || z > limit) {
+            event.setTo(center);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.macacomilk.sharedhealth;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+import org.bukkit.World;
+import org.bukkit.WorldCreator;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * Keeps a number of standby worlds generated ahead of time so a death only has
+ * to swap worlds instead of waiting for terrain generation.
+ *
+ * <p>All methods must be called on the main thread. {@link WorldCreator#createWorld()}
+ * cannot run anywhere else, so each {@link WorldPreparation} creates its world
+ * without a spawn area and then warms the spawn chunks through the async chunk API.
+ * With a {@link TemplateLibrary}, standby worlds are cloned from its templates
+ * whenever one is ready and generated from a random seed otherwise.
+ * Not used on Folia, which cannot create worlds at runtime.
+ */
+final class WorldPool {
+
+    private final Plugin plugin;
+    private final SpawnFinder spawnFinder;
+    private final Random random = new Random();
+    private final int size;
+    private final int preloadRadius;
+    private final int preloadConcurrency;
+    private final TemplateLibrary templates;
+
+    private final Deque<World> ready = new ArrayDeque<>();
+    private final Deque<CompletableFuture<World>> waiters = new ArrayDeque<>();
+    private final List<WorldPreparation> warming = new ArrayList<>();
+    private long lastWorldStamp = 0;
+
+    private int hits = 0;
+    private int misses = 0;
+    private int cloned = 0;
+    private long lastWarmupMillis = 0;
+    private long totalWarmupMillis = 0;
+    private int warmedWorlds = 0;
+    private double lastChunksPerSecond = 0;
+
+    /**
+     * @param templates the templates to clone standby worlds from, or {@code null} to always generate
+     */
+    WorldPool(Plugin plugin, SpawnFinder spawnFinder, int size, int preloadRadius, int preloadConcurrency,
+            TemplateLibrary templates) {
+        this.plugin = plugin;
+        this.spawnFinder = spawnFinder;
+        this.size = Math.max(0, size);
+        this.preloadRadius = Math.max(0, preloadRadius);
+        this.preloadConcurrency = Math.max(1, preloadConcurrency);
+        this.templates = templates;
+    }
+
+    /**
+     * Hands out the next world. Completes immediately when a standby world is
+     * ready, otherwise once the world currently warming up (or a freshly
+     * started one) is done.
+     */
+    CompletableFuture<World> acquire() {
+        World world = ready.poll();
+        if (world != null) {
+            hits++;
+            return CompletableFuture.completedFuture(world);
+        }
+
+        misses++;
+        CompletableFuture<World> waiter = new CompletableFuture<>();
+        waiters.add(waiter);
+        if (warming.size() < waiters.size()) {
+            warm();
+        }
+        return waiter;
+    }
+
+    /**
+     * Starts warming worlds until the configured depth is reached.
+     */
+    void fill() {
+        int missing = size + waiters.size() - ready.size() - warming.size();
+        for (int i = 0; i < missing; i++) {
+            warm();
+        }
+        if (templates != null) {
+            templates.fill();
+        }
+    }
+
+    private void warm() {
+        lastWorldStamp = Math.max(System.currentTimeMillis(), lastWorldStamp + 1);
+        TemplateLibrary.Template template = templates != null ? templates.take() : null;
+        if (template != null) {
+            cloned++;
+        }
+        WorldPreparation preparation = new WorldPreparation(plugin, spawnFinder, "world_" + lastWorldStamp,
+                template != null ? template.getSeed() : random.nextLong(), preloadRadius, preloadConcurrency, template);
+        warming.add(preparation);
+
+        preparation.start().whenComplete((world, error) -> {
+            warming.remove(preparation);
+            if (template != null) {
+                templates.release(template);
+            }
+            if (error != null) {
+                onWarmFailed(preparation, error);
+            } else {
+                onWarmed(preparation, world);
+            }
+        });
+    }
+
+    private void onWarmed(WorldPreparation preparation, World world) {
+        long warmupMillis = preparation.getElapsedMillis();
+        warmedWorlds++;
+        lastWarmupMillis = warmupMillis;
+        totalWarmupMillis += warmupMillis;
+        lastChunksPerSecond = preparation.getChunksPerSecond();
+        plugin.getLogger().info(String.format("Standby world %s ready in %d ms (%d chunks, %.1f chunks/s)",
+            world.getName(), warmupMillis, preparation.getChunksTotal(), lastChunksPerSecond));
+
+        CompletableFuture<World> waiter = waiters.poll();
+        if (waiter != null) {
+            waiter.complete(world);
+        } else {
+            ready.add(world);
+        }
+    }
+
+    private void onWarmFailed(WorldPreparation preparation, Throwable error) {
+        plugin.getLogger().severe(String.format("Failed to prepare standby world %s: %s",
+            preparation.getWorldName(), error.getMessage()));
+
+        CompletableFuture<World> waiter = waiters.poll();
+        if (waiter != null) {
+            waiter.completeExceptionally(error);
+        }
+    }
+
+    /**
+     * The preparation furthest along, which is the one a waiting player will
+     * get first. {@code null} when nothing is warming.
+     */
+    WorldPreparation getLeadingPreparation() {
+        WorldPreparation leading = null;
+        for (WorldPreparation preparation : warming) {
+            if (leading == null || preparation.getProgress() > leading.getProgress()) {
+                leading = preparation;
+            }
+        }
+        return leading;
+    }
+
+    int getDepth() {
+        return ready.size();
+    }
+
+    int getWarming() {
+        return warming.size();
+    }
+
+    int getSize() {
+        return size;
+    }
+
+    int getHits() {
+        return hits;
+    }
+
+    int getMisses() {
+        return misses;
+    }
+
+    /** Standby worlds cloned from a template rather than generated. */
+    int getCloned() {
+        return cloned;
+    }
+
+    TemplateLibrary getTemplates() {
+        return templates;
+    }
+
+    long getLastWarmupMillis() {
+        return lastWarmupMillis;
+    }
+
+    double getLastChunksPerSecond() {
+        return lastChunksPerSecond;
+    }
+
+    long getAverageWarmupMillis() {
+        return warmedWorlds == 0 ? 0 : totalWarmupMillis / warmedWorlds;
+    }
+}
@@ -0,0 +1,184 @@
+package com.macacomilk.sharedhealth;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.WorldCreator;
+import org.bukkit.plugin.Plugin;
+
+import net.kyori.adventure.util.TriState;
+
+/**
+ * Prepares one world in three stages: create it, pre-generate the chunks
+ * around spawn through the async chunk API, then have the {@link SpawnFinder}
+ * move spawn onto safe ground. Progress is derived from the chunk loads that
+ * actually completed.
+ *
+ * <p>Given a {@link TemplateLibrary.Template}, the world folder is cloned
+ * from it first, so creating the world loads the template's terrain and
+ * chunks come off disk instead of being generated. Its spawn was already
+ * moved when the template was generated, so the search ends where it starts.
+ * If the copy fails the world is generated from the template's seed.
+ *
+ * <p>Must be started on the main thread.
+ */
+final class WorldPreparation {
+
+    enum Stage {
+        COPYING_TEMPLATE("Copying template"),
+        CREATING("Creating world"),
+        LOADING_CHUNKS("Generating terrain"),
+        FINDING_SPAWN("Finding spawn"),
+        READY("Ready");
+
+        private final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+
+        String getLabel() {
+            return label;
+        }
+    }
+
+    private static final float CREATE_WEIGHT = 0.05f;
+    private static final float CHUNK_WEIGHT = 0.9f;
+
+    private final Plugin plugin;
+    private final SpawnFinder spawnFinder;
+    private final String worldName;
+    private final long seed;
+    private final int radius;
+    private final int parallelism;
+    private TemplateLibrary.Template template;
+    private final AtomicLong templateBytesCopied = new AtomicLong();
+
+    private Stage stage = Stage.CREATING;
+    private ChunkPreloader preloader;
+    private long startedAt;
+    private long chunksStartedAt;
+    private long chunksFinishedAt;
+
+    /**
+     * @param template the template to clone, or {@code null} to generate
+     */
+    WorldPreparation(Plugin plugin, SpawnFinder spawnFinder, String worldName, long seed, int radius, int parallelism,
+            TemplateLibrary.Template template) {
+        this.plugin = plugin;
+        this.spawnFinder = spawnFinder;
+        this.worldName = worldName;
+        this.seed = seed;
+        this.radius = Math.max(0, radius);
+        this.parallelism = Math.max(1, parallelism);
+        this.template = template;
+    }
+
+    CompletableFuture<World> start() {
+        startedAt = System.currentTimeMillis();
+        if (template == null) return create();
+
+        stage = Stage.COPYING_TEMPLATE;
+        CompletableFuture<World> result = new CompletableFuture<>();
+        template.cloneTo(plugin, Bukkit.getWorldContainer().toPath().resolve(worldName), templateBytesCopied)
+            .whenComplete((ignored, error) -> {
+                if (error != null) {
+                    plugin.getLogger().warning(String.format("Failed to copy template for %s, generating it instead: %s",
+                        worldName, error.getMessage()));
+                    template = null;
+                }
+                create().whenComplete((world, createError) -> {
+                    if (createError != null) {
+                        result.completeExceptionally(createError);
+                    } else {
+                        result.complete(world);
+                    }
+                });
+            });
+        return result;
+    }
+
+    private CompletableFuture<World> create() {
+        stage = Stage.CREATING;
+        World world;
+        try {
+            world = new WorldCreator(worldName)
+                .seed(seed)
+                .environment(World.Environment.NORMAL)
+                .keepSpawnLoaded(TriState.FALSE)
+                .createWorld();
+            if (world == null) {
+                throw new IllegalStateException("World creation failed");
+            }
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        stage = Stage.LOADING_CHUNKS;
+        chunksStartedAt = System.currentTimeMillis();
+        Location spawn = world.getSpawnLocation();
+        preloader = new ChunkPreloader(plugin, world, spawn.getBlockX() >> 4, spawn.getBlockZ() >> 4,
+                radius, parallelism);
+
+        return preloader.start().thenCompose(ignored -> {
+            chunksFinishedAt = System.currentTimeMillis();
+            stage = Stage.FINDING_SPAWN;
+            return spawnFinder.find(world);
+        }).thenApply(spawnPoint -> {
+            stage = Stage.READY;
+            return world;
+        });
+    }
+
+    String getWorldName() {
+        return worldName;
+    }
+
+    Stage getStage() {
+        return stage;
+    }
+
+    float getProgress() {
+        switch (stage) {
+            case COPYING_TEMPLATE:
+                long total = Math.max(1, template.getSizeBytes());
+                return CREATE_WEIGHT * Math.min(1f, (float) templateBytesCopied.get() / total);
+            case CREATING:
+                return CREATE_WEIGHT * (template != null ? 1f : 0f);
+            case LOADING_CHUNKS:
+                float chunks = (float) preloader.getCompleted() / preloader.getTotal();
+                return CREATE_WEIGHT + CHUNK_WEIGHT * chunks;
+            case FINDING_SPAWN:
+                return CREATE_WEIGHT + CHUNK_WEIGHT;
+            default:
+                return 1f;
+        }
+    }
+
+    int getChunksLoaded() {
+        return preloader == null ? 0 : preloader.getCompleted();
+    }
+
+    int getChunksTotal() {
+        int side = radius * 2 + 1;
+        return side * side;
+    }
+
+    /**
+     * Chunk throughput of the pre-generation stage, so radius and parallelism
+     * can be tuned against what the server actually delivers.
+     */
+    double getChunksPerSecond() {
+        if (chunksStartedAt == 0) return 0;
+        long end = chunksFinishedAt != 0 ? chunksFinishedAt : System.currentTimeMillis();
+        long elapsed = Math.max(1, end - chunksStartedAt);
+        return getChunksLoaded() * 1000.0 / elapsed;
+    }
+
+    long getElapsedMillis() {
+        return System.currentTimeMillis() - startedAt;
+    }
+}
@@ -0,0 +1,267 @@
+package com.macacomilk.sharedhealth;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * Unloads and deletes worlds left behind by resets without blocking ticks.
+ *
+ * <p>Worlds are unloaded on the main thread, then kept on disk until the
+ * retention count or size cap is exceeded. A world being removed is first
+ * renamed into a trash directory, so a half-deleted folder never looks like a
+ * world to the server, and then deleted off the main thread. Anything left in
+ * the trash, or not loaded under a {@code world_<timestamp>} name at startup,
+ * is treated as a leftover: groups' current worlds are loaded again by
+ * {@link GroupManager#restoreWorlds} first, so what remains is retired worlds,
+ * unused pool worlds and interrupted deletes. Not used on Folia, which cannot
+ * unload worlds at runtime.
+ */
+final class WorldReaper {
+
+    static final Pattern RESET_WORLD_NAME = Pattern.compile("world_\\d+");
+
+    private static final String TRASH_DIRECTORY = "sharedhealth_trash";
+    private static final long RETRY_DELAY_TICKS = 100L;
+
+    private final Plugin plugin;
+    private final Path worldContainer;
+    private final Path trash;
+    /** Replaced on reload; read from the async deletes too. */
+    private volatile int retain;
+    private volatile long maxRetainedBytes;
+    private volatile int maxAttempts;
+    private volatile long unloadDelayTicks;
+
+    /** Unloaded worlds still on disk, oldest first. Main thread only. */
+    private final Deque<RetiredWorld> retained = new ArrayDeque<>();
+
+    WorldReaper(Plugin plugin, Settings settings) {
+        this.plugin = plugin;
+        this.worldContainer = Bukkit.getWorldContainer().toPath();
+        this.trash = worldContainer.resolve(TRASH_DIRECTORY);
+        setLimits(settings);
+    }
+
+    /**
+     * Switches to the limits of reloaded settings, deleting retained worlds
+     * right away if they now exceed them. Must be called on the main thread.
+     */
+    void apply(Settings settings) {
+        setLimits(settings);
+        enforce();
+    }
+
+    private void setLimits(Settings settings) {
+        retain = settings.reaperRetain;
+        maxRetainedBytes = settings.reaperMaxRetainedBytes;
+        maxAttempts = settings.reaperMaxAttempts;
+        unloadDelayTicks = settings.reaperUnloadDelayTicks;
+    }
+
+    /**
+     * Picks up reset worlds that are on disk but not loaded, which no group
+     * is playing in any more, and empties the trash left by an interrupted
+     * delete. Must be called on the main thread so no world can be created
+     * while the container is listed.
+     */
+    void reapOrphans() {
+        Set<String> loaded = new HashSet<>();
+        for (World world : Bukkit.getWorlds()) {
+            loaded.add(world.getName());
+        }
+
+        List<Path> orphans = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(worldContainer, Files::isDirectory)) {
+            for (Path folder : stream) {
+                String name = folder.getFileName().toString();
+                if (RESET_WORLD_NAME.matcher(name).matches() && !loaded.contains(name)) {
+                    orphans.add(folder);
+                }
+            }
+        } catch (IOException e) {
+            plugin.getLogger().warning(String.format("Failed to scan for orphaned worlds: %s", e.getMessage()));
+        }
+
+        // world_<timestamp> sorts by age once the timestamps have equal length.
+        orphans.sort((a, b) -> {
+            String left = a.getFileName().toString();
+            String right = b.getFileName().toString();
+            return left.length() != right.length()
+                ? Integer.compare(left.length(), right.length())
+                : left.compareTo(right);
+        });
+        for (Path folder : orphans) {
+            plugin.getLogger().info(String.format("Found orphaned world folder: %s", folder.getFileName()));
+            track(folder);
+        }
+
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, this::emptyTrash);
+    }
+
+    /**
+     * Schedules a world that is no longer in use for unloading and eventual
+     * deletion. Only worlds created by resets are ever touched.
+     */
+    void retire(World world) {
+        if (!RESET_WORLD_NAME.matcher(world.getName()).matches()) return;
+        Bukkit.getScheduler().runTaskLater(plugin, () -> unload(world, 1), unloadDelayTicks);
+    }
+
+    private void unload(World world, int attempt) {
+        Path folder = world.getWorldFolder().toPath();
+        if (!Bukkit.unloadWorld(world, false)) {
+            if (attempt < maxAttempts) {
+                plugin.getLogger().warning(String.format("Could not unload %s (attempt %d/%d), retrying",
+                    world.getName(), attempt, maxAttempts));
+                Bukkit.getScheduler().runTaskLater(plugin, () -> unload(world, attempt + 1), RETRY_DELAY_TICKS);
+            } else {
+                plugin.getLogger().severe(String.format("Giving up unloading old world %s", world.getName()));
+            }
+            return;
+        }
+        track(folder);
+    }
+
+    private void track(Path folder) {
+        RetiredWorld retired = new RetiredWorld(folder);
+        retained.add(retired);
+        enforce();
+
+        // Sizes only matter for the disk cap; measure off the main thread.
+        if (maxRetainedBytes > 0) {
+            Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+                long size = measure(folder);
+                Bukkit.getScheduler().runTask(plugin, () -> {
+                    retired.sizeBytes = size;
+                    enforce();
+                });
+            });
+        }
+    }
+
+    private void enforce() {
+        long total = 0;
+        for (RetiredWorld retired : retained) {
+            total += retired.sizeBytes;
+        }
+
+        while (!retained.isEmpty()
+                && (retained.size() > retain || (maxRetainedBytes > 0 && total > maxRetainedBytes))) {
+            RetiredWorld oldest = retained.poll();
+            total -= oldest.sizeBytes;
+            Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> delete(oldest.folder, 1));
+        }
+    }
+
+    private void delete(Path folder, int attempt) {
+        Path target = folder;
+        try {
+            if (!folder.startsWith(trash) && Files.exists(folder)) {
+                Files.createDirectories(trash);
+                target = trash.resolve(folder.getFileName() + "_" + System.nanoTime());
+                try {
+                    Files.move(folder, target, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    target = folder;
+                }
+            }
+
+            long started = System.currentTimeMillis();
+            long bytes = deleteTree(target);
+            plugin.getLogger().info(String.format("Deleted old world: %s (%d MB in %d ms)",
+                folder.getFileName(), bytes >> 20, System.currentTimeMillis() - started));
+        } catch (IOException e) {
+            Path remaining = target;
+            if (attempt < maxAttempts) {
+                plugin.getLogger().warning(String.format("Failed to delete %s (attempt %d/%d): %s",
+                    folder.getFileName(), attempt, maxAttempts, e.getMessage()));
+                Bukkit.getScheduler().runTaskLaterAsynchronously(plugin,
+                    () -> delete(remaining, attempt + 1), RETRY_DELAY_TICKS);
+            } else {
+                plugin.getLogger().severe(String.format("Giving up deleting %s: %s", folder.getFileName(), e.getMessage()));
+            }
+        }
+    }
+
+    private void emptyTrash() {
+        if (!Files.isDirectory(trash)) return;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(trash)) {
+            for (Path leftover : stream) {
+                delete(leftover, 1);
+            }
+        } catch (IOException e) {
+            plugin.getLogger().warning(String.format("Failed to empty world trash: %s", e.getMessage()));
+        }
+    }
+
+    static long deleteTree(Path root) throws IOException {
+        if (!Files.exists(root)) return 0;
+
+        AtomicLong bytes = new AtomicLong();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                bytes.addAndGet(attrs.size());
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                if (exc != null) throw exc;
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return bytes.get();
+    }
+
+    private long measure(Path root) {
+        AtomicLong bytes = new AtomicLong();
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    bytes.addAndGet(attrs.size());
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            plugin.getLogger().warning(String.format("Failed to measure %s: %s", root.getFileName(), e.getMessage()));
+        }
+        return bytes.get();
+    }
+
+    private static final class RetiredWorld {
+        private final Path folder;
+        private long sizeBytes = 0;
+
+        private RetiredWorld(Path folder) {
+            this.folder = folder;
+        }
+    }
+}